@@ -0,0 +1,230 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Active mode. Instead of waiting for Zabbix to poll each item, VmBix
+  # collects a configured set of items for every VM, host, datastore or
+  # cluster at a fixed interval and pushes them to a Zabbix trapper in
+  # large batches.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class ActiveCollector implements Runnable {
+
+  static final Logger LOG = LoggerFactory.getLogger(ActiveCollector.class);
+
+  /**
+   * Where the values are collected, a vCenter connection
+   */
+  interface Source {
+    /**
+     * Returns the names, or the UUIDs if useuuid is set, of the objects of
+     * a type
+     */
+    List<String> getEntityIds(String meType) throws IOException;
+
+    /**
+     * Returns the value of an item key
+     */
+    VmBix.ValidationResult check(String key) throws IOException;
+  }
+
+  // The placeholder replaced by the object name (or UUID) in the item keys
+  // and in the host names
+  static final String ID = "{ID}";
+
+  // The values the trapper could not store, in its response
+  static final Pattern FAILED = Pattern.compile("failed: (\\d+)");
+
+  // The item types of the configuration and the matching vSphere types
+  static final Map<String, String> TYPES = new LinkedHashMap<>();
+  static {
+    TYPES.put("vm", "VirtualMachine");
+    TYPES.put("esx", "HostSystem");
+    TYPES.put("datastore", "Datastore");
+    TYPES.put("cluster", "ClusterComputeResource");
+  }
+
+  private final ZabbixSender sender;
+  private final Supplier<Source> sources;
+  private final Map<String, String[]> items;
+  private final String host;
+  private final int batchSize;
+  private final ExecutorService collectors;
+  private final ScheduledExecutorService scheduler;
+  private final AtomicLong pushed = new AtomicLong();
+  private final AtomicLong unsent = new AtomicLong();
+  private final AtomicLong refused = new AtomicLong();
+
+  /**
+   * The items map the item types ("vm", "esx", ...) to a list of item keys
+   * in which {ID} is replaced by each object name. The values are sent for
+   * the Zabbix host named after host, in which {ID} is replaced too. Each
+   * object is collected from a new source.
+   */
+  ActiveCollector(ZabbixSender sender, Supplier<Source> sources, Map<String, String[]> items, String host,
+    int batchSize, int threads) {
+    this.sender = sender;
+    this.sources = sources;
+    this.items = items;
+    this.host = host;
+    this.batchSize = batchSize;
+    this.collectors = Executors.newFixedThreadPool(threads, new WorkerPool.Factory("vmbix-collector-"));
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(new WorkerPool.Factory("vmbix-trapper-"));
+  }
+
+  void start(int interval) {
+    LOG.info("pushing values to the Zabbix trapper every " + interval + " seconds");
+    scheduler.scheduleWithFixedDelay(this, interval, interval, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Stops the collection, a running cycle is interrupted
+   */
+  void shutdown() {
+    scheduler.shutdownNow();
+    collectors.shutdownNow();
+  }
+
+  /**
+   * Returns the values sent, the values which could not be sent and the
+   * values the trapper refused, since the start
+   */
+  JsonObject getStats() {
+    JsonObject stats = new JsonObject();
+    stats.addProperty("pushed", pushed.get());
+    stats.addProperty("unsent", unsent.get());
+    stats.addProperty("refused", refused.get());
+    return stats;
+  }
+
+  @Override
+  public void run() {
+    long timerStart = System.currentTimeMillis();
+    long clock = timerStart / 1000;
+    JsonArray batch = new JsonArray();
+    int collected = 0;
+    int failed = 0;
+
+    try {
+      // The tasks and their number of keys
+      Map<Future<List<JsonObject>>, Integer> tasks = new LinkedHashMap<>();
+      for (Map.Entry<String, String[]> entry : items.entrySet()) {
+        String meType = TYPES.get(entry.getKey());
+        if (meType == null) {
+          LOG.warn("Unknown trapper item type " + entry.getKey());
+          continue;
+        }
+        List<String> ids;
+        try {
+          ids = sources.get().getEntityIds(meType);
+        } catch (IOException ex) {
+          LOG.error(String.format("Cannot list the %s objects : %s", entry.getKey(), ex.toString()));
+          continue;
+        }
+        for (String id : ids) {
+          tasks.put(collectors.submit(() -> collect(id, entry.getValue(), clock)), entry.getValue().length);
+        }
+      }
+
+      for (Map.Entry<Future<List<JsonObject>>, Integer> task : tasks.entrySet()) {
+        List<JsonObject> values;
+        try {
+          values = task.getKey().get();
+        } catch (ExecutionException ex) {
+          // Only the values of this object are lost
+          LOG.error(String.format("An error occurred while collecting the trapper values : %s", ex.getCause().toString()));
+          failed += task.getValue();
+          continue;
+        }
+        for (JsonObject value : values) {
+          batch.add(value);
+          collected++;
+          if (batch.size() >= batchSize) {
+            failed += send(batch);
+            batch = new JsonArray();
+          }
+        }
+      }
+      if (batch.size() > 0) {
+        failed += send(batch);
+      }
+    } catch (Exception ex) {
+      LOG.error(String.format("An error occurred while collecting the trapper values : %s", ex.toString()));
+      return;
+    }
+
+    unsent.addAndGet(failed);
+    long timerEnd = System.currentTimeMillis();
+    LOG.info(String.format("Pushed %d values (%d not sent) in %d ms", collected, failed, timerEnd - timerStart));
+  }
+
+  /**
+   * Collects the items of one object. All the keys of the object run on
+   * the same source, so that they share its cached lookups.
+   */
+  private List<JsonObject> collect(String id, String[] keys, long clock) throws Exception {
+    List<JsonObject> values = new ArrayList<>();
+    Source source = sources.get();
+    for (String template : keys) {
+      String key = template.replace(ID, id);
+      VmBix.ValidationResult result = source.check(key);
+      if (result.getStatus() == 0) {
+        values.add(ZabbixSender.value(host.replace(ID, id), key, result.getMessage(), clock));
+      } else {
+        LOG.debug(String.format("Not pushing %s : %s", key, result.getMessage()));
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Sends a batch and returns the number of values that were not sent. The
+   * values the trapper received but could not store, usually for an
+   * unknown host or item, are counted apart.
+   */
+  private int send(JsonArray batch) {
+    try {
+      String info = sender.send(batch);
+      LOG.debug("Trapper response : " + info);
+      Matcher matcher = FAILED.matcher(info);
+      int count = matcher.find() ? Math.min(Integer.parseInt(matcher.group(1)), batch.size()) : 0;
+      if (count > 0) {
+        LOG.warn(String.format("The Zabbix trapper refused %d of %d values : %s", count, batch.size(), info));
+        refused.addAndGet(count);
+      }
+      pushed.addAndGet(batch.size() - count);
+      return 0;
+    } catch (Exception ex) {
+      LOG.error(String.format("Cannot send %d values to the Zabbix trapper : %s", batch.size(), ex.toString()));
+      return batch.size();
+    }
+  }
+}
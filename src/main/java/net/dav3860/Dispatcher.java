@@ -0,0 +1,36 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the decoded requests. Implemented by the platform thread pool
+ * (WorkerPool) and by the virtual thread executor (VirtualWorkers).
+ */
+interface Dispatcher extends Executor {
+
+  /**
+   * Returns the number of threads running or waiting for requests
+   */
+  int getThreadCount();
+
+  /**
+   * Returns the number of requests waiting for a thread
+   */
+  int getQueueSize();
+
+  /**
+   * Returns the number of requests rejected because all workers were busy
+   */
+  long getRejectedCount();
+}
@@ -0,0 +1,89 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Cache of the object references found by name or by UUID, keyed by
+  # object type and id. Each type has its own size and TTL and is named in
+  # the cache statistics, like "vm" or "pool". The entries are refreshed
+  # in the background when they get old.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import com.google.common.cache.Cache;
+import com.vmware.vim25.ManagedObjectReference;
+
+class EntityCache {
+
+  interface Finder {
+    /**
+     * Searches vCenter for an object, returns null if it does not exist
+     */
+    ManagedObjectReference find(String type, String id, boolean uuid) throws Exception;
+  }
+
+  static final String NAME = "name:";
+  static final String UUID = "uuid:";
+
+  private final Finder finder;
+  private final Map<String, Cache<String, ManagedObjectReference>> types = new HashMap<String, Cache<String, ManagedObjectReference>>();
+  private final Map<String, Cache<String, ManagedObjectReference>> names = new LinkedHashMap<String, Cache<String, ManagedObjectReference>>();
+
+  EntityCache(Finder finder) {
+    this.finder = finder;
+  }
+
+  /**
+   * Caches the objects of a type for ttl minutes
+   */
+  EntityCache add(String name, String type, int ttl, int size) {
+    Cache<String, ManagedObjectReference> cache = new RefreshingCache<ManagedObjectReference>(name, size, ttl, TimeUnit.MINUTES,
+      (String key) -> finder.find(type, key.substring(UUID.length()), key.startsWith(UUID))).cache;
+    types.put(type, cache);
+    names.put(name, cache);
+    return this;
+  }
+
+  boolean handles(String type) {
+    return types.containsKey(type);
+  }
+
+  ManagedObjectReference get(String type, String id, boolean uuid) {
+    Cache<String, ManagedObjectReference> cache = types.get(type);
+    return cache == null ? null : cache.getIfPresent(key(id, uuid));
+  }
+
+  void put(String type, String id, boolean uuid, ManagedObjectReference mor) {
+    Cache<String, ManagedObjectReference> cache = types.get(type);
+    if (cache != null) {
+      cache.put(key(id, uuid), mor);
+    }
+  }
+
+  /**
+   * Returns the cache of a type by its statistics name, or null
+   */
+  Cache<String, ManagedObjectReference> getCache(String name) {
+    return names.get(name);
+  }
+
+  void invalidateAll() {
+    for (Cache<String, ManagedObjectReference> cache : names.values()) {
+      cache.invalidateAll();
+    }
+  }
+
+  private static String key(String id, boolean uuid) {
+    return (uuid ? UUID : NAME) + id;
+  }
+}
@@ -0,0 +1,197 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Name and UUID index of the VMs, hosts and datastores. It is built with
+  # one property collector request per type, fetching only the names and
+  # the UUIDs, and refreshed in the background. Looking up an object then
+  # costs no vCenter call instead of a search over the whole inventory.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.mo.ServiceInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class EntityIndex implements Runnable {
+
+  static final Logger LOG = LoggerFactory.getLogger(EntityIndex.class);
+
+  // The indexed types and the property holding their UUID
+  static final Map<String, String> UUID_PATHS = new LinkedHashMap<String, String>();
+  static {
+    UUID_PATHS.put("VirtualMachine", "config.uuid");
+    UUID_PATHS.put("HostSystem", "summary.hardware.uuid");
+    UUID_PATHS.put("Datastore", "info.url");
+  }
+
+  /**
+   * The objects of one type
+   */
+  static class Entries {
+    final Map<String, ManagedObjectReference> names = new HashMap<String, ManagedObjectReference>();
+    final Map<String, ManagedObjectReference> uuids = new HashMap<String, ManagedObjectReference>();
+    final List<String[]> ids = new ArrayList<String[]>();
+  }
+
+  /**
+   * An immutable state of the index, replaced as a whole on each refresh
+   */
+  static class Snapshot {
+    final Map<String, Entries> types = new HashMap<String, Entries>();
+    final long time = System.currentTimeMillis();
+  }
+
+  private final int interval;
+  private final long minAge;
+  private final ScheduledExecutorService scheduler;
+  private volatile Snapshot snapshot;
+
+  /**
+   * The index is refreshed every interval seconds. An unknown object also
+   * refreshes it if it is older than minAge seconds, so that new objects
+   * are found without waiting for the next refresh.
+   */
+  EntityIndex(int interval, int minAge) {
+    this.interval = interval;
+    this.minAge = minAge * 1000L;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(new WorkerPool.Factory("vmbix-index-"));
+  }
+
+  void start() {
+    run();
+    scheduler.scheduleWithFixedDelay(this, interval, interval, TimeUnit.SECONDS);
+  }
+
+  @Override
+  public void run() {
+    try {
+      refresh();
+    } catch (Exception ex) {
+      LOG.error(String.format("An error occurred while refreshing the object index : %s", ex.toString()));
+    }
+  }
+
+  boolean handles(String meType) {
+    return UUID_PATHS.containsKey(meType);
+  }
+
+  /**
+   * Returns the reference of an object by name or by UUID, or null if it
+   * does not exist. A miss on an index older than minAge waits for a
+   * refresh, which the threads missing at the same time share.
+   */
+  ManagedObjectReference lookup(String meType, String id, boolean uuid) throws IOException {
+    Snapshot current = snapshot;
+    ManagedObjectReference mor = find(current, meType, id, uuid);
+    if (mor == null && !isRecent(current)) {
+      refreshAfter(current);
+      mor = find(snapshot, meType, id, uuid);
+    }
+    return mor;
+  }
+
+  private boolean isRecent(Snapshot current) {
+    return current != null && System.currentTimeMillis() - current.time <= minAge;
+  }
+
+  /**
+   * Returns the names of all the objects of a type, or their UUIDs when
+   * they have one
+   */
+  List<String> ids(String meType, boolean uuid) throws IOException {
+    if (snapshot == null) {
+      refreshAfter(null);
+    }
+    List<String> ids = new ArrayList<String>();
+    Entries entries = snapshot == null ? null : snapshot.types.get(meType);
+    if (entries != null) {
+      for (String[] id : entries.ids) {
+        ids.add(uuid && id[1] != null ? id[1] : id[0]);
+      }
+    }
+    return ids;
+  }
+
+  private static ManagedObjectReference find(Snapshot current, String meType, String id, boolean uuid) {
+    Entries entries = current == null ? null : current.types.get(meType);
+    if (entries == null) {
+      return null;
+    }
+    return uuid ? entries.uuids.get(id) : entries.names.get(id);
+  }
+
+  /**
+   * Refreshes the index unless another thread did it since it was read
+   */
+  private synchronized void refreshAfter(Snapshot seen) throws IOException {
+    if (snapshot == seen) {
+      refresh();
+    }
+  }
+
+  synchronized void refresh() throws IOException {
+    long timerStart = System.currentTimeMillis();
+    ServiceInstance serviceInstance = VmBix.session.get().serviceInstance;
+    PropertyRetriever retriever = new PropertyRetriever(serviceInstance);
+    Snapshot next = new Snapshot();
+    int count = 0;
+    for (Map.Entry<String, String> type : UUID_PATHS.entrySet()) {
+      Entries entries = new Entries();
+      String uuidPath = type.getValue();
+      retriever.retrieve(type.getKey(), new String[] { "name", uuidPath },
+        (ManagedObjectReference mor, Map<String, Object> props) -> {
+          Object name = props.get("name");
+          if (name == null) {
+            return;
+          }
+          String uuid = uuid(uuidPath, props.get(uuidPath));
+          entries.names.putIfAbsent(name.toString(), mor);
+          if (uuid != null) {
+            entries.uuids.putIfAbsent(uuid, mor);
+          }
+          entries.ids.add(new String[] { name.toString(), uuid });
+        });
+      next.types.put(type.getKey(), entries);
+      count += entries.ids.size();
+    }
+    snapshot = next;
+    long timerEnd = System.currentTimeMillis();
+    LOG.debug("Indexed " + count + " objects in " + (timerEnd - timerStart) + " ms");
+  }
+
+  private static String uuid(String path, Object value) {
+    if (value == null) {
+      return null;
+    }
+    return "info.url".equals(path) ? datastoreUuid(value.toString()) : value.toString();
+  }
+
+  /**
+   * The datastore UUID is the last part of its URL, like
+   * ds:///vmfs/volumes/uuid/
+   */
+  static String datastoreUuid(String url) {
+    if (url == null || url.length() < 20) {
+      return null;
+    }
+    return url.substring(19, url.length() - 1);
+  }
+}
@@ -0,0 +1,64 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Call count, error count and latency of an item handler.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import java.util.concurrent.atomic.LongAdder;
+import com.google.gson.JsonObject;
+
+class HandlerStats {
+
+  final String name;
+  private final LongAdder calls = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder nanos = new LongAdder();
+
+  HandlerStats(String name) {
+    this.name = name;
+  }
+
+  void record(long elapsed, boolean error) {
+    calls.increment();
+    nanos.add(elapsed);
+    if (error) {
+      errors.increment();
+    }
+  }
+
+  long getCalls() {
+    return calls.sum();
+  }
+
+  long getErrors() {
+    return errors.sum();
+  }
+
+  /**
+   * Returns the average latency in ms
+   */
+  double getLatency() {
+    long count = calls.sum();
+    return count == 0 ? 0 : nanos.sum() / 1000000.0 / count;
+  }
+
+  JsonObject toJson() {
+    JsonObject jObject = new JsonObject();
+    long count = getCalls();
+    long failed = getErrors();
+    jObject.addProperty("calls", count);
+    jObject.addProperty("errors", failed);
+    jObject.addProperty("errorrate", count == 0 ? 0 : (double) failed / count);
+    jObject.addProperty("latency", getLatency());
+    return jObject;
+  }
+}
@@ -0,0 +1,76 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Memory usage of the powered on VMs of a host, as the average percentage
+  # of their configured memory. All the statistics are computed together
+  # from a single property collector traversal of the host's VMs.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.VirtualMachineQuickStats;
+
+class HostVmsMemory {
+
+  static final List<String> STATS = Arrays.asList(
+    "private", "shared", "swapped", "compressed", "overheadConsumed", "consumed", "ballooned", "active");
+
+  static final String[] PATHS = { "summary.quickStats", "summary.config.memorySizeMB", "runtime.powerState" };
+
+  private final long[] sums = new long[STATS.size()];
+  private int activeVms;
+
+  /**
+   * Reads the VMs of a host
+   */
+  static HostVmsMemory collect(PropertyRetriever retriever, ManagedObjectReference host) throws IOException {
+    HostVmsMemory memory = new HostVmsMemory();
+    retriever.retrieve(host, "vm", "VirtualMachine", PATHS,
+      (ManagedObjectReference mor, Map<String, Object> props) -> memory.add(props));
+    return memory;
+  }
+
+  private void add(Map<String, Object> props) {
+    Object state = props.get("runtime.powerState");
+    VirtualMachineQuickStats qs = (VirtualMachineQuickStats) props.get("summary.quickStats");
+    long size = PropertyRetriever.value(props.get("summary.config.memorySizeMB"), 0);
+    if (state == null || !"poweredOn".equals(state.toString()) || qs == null || size == 0) {
+      return;
+    }
+    // Same units as the VM items : MB, except swapped and compressed in KB
+    long[] used = {
+      PropertyRetriever.value(qs.getPrivateMemory(), 0),
+      PropertyRetriever.value(qs.getSharedMemory(), 0),
+      PropertyRetriever.value(qs.getSwappedMemory(), 0) / 1024,
+      PropertyRetriever.value(qs.getCompressedMemory(), 0) / 1024,
+      PropertyRetriever.value(qs.getConsumedOverheadMemory(), 0),
+      PropertyRetriever.value(qs.getHostMemoryUsage(), 0),
+      PropertyRetriever.value(qs.getBalloonedMemory(), 0),
+      PropertyRetriever.value(qs.getGuestMemoryUsage(), 0)
+    };
+    for (int i = 0; i < used.length; i++) {
+      sums[i] += used[i] * 100 / size;
+    }
+    activeVms++;
+  }
+
+  /**
+   * Returns the average percentage of a statistic, 0 without powered on VMs
+   */
+  int getAverage(String stat) {
+    int index = STATS.indexOf(stat);
+    return activeVms == 0 ? 0 : (int) (sums[index] / activeVms);
+  }
+}
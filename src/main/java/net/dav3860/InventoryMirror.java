@@ -0,0 +1,364 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Local mirror of the inventory, kept up to date with WaitForUpdatesEx.
+  # A single property filter covers the VMs, hosts, datastores, clusters
+  # and resource pools, and vCenter only sends what changed since the last
+  # version. The items of the Prometheus endpoint are then answered from
+  # memory, without any vCenter call.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import com.google.gson.JsonObject;
+import com.vmware.vim25.DatastoreSummary;
+import com.vmware.vim25.HostHardwareSummary;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RequestCanceled;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.WaitOptions;
+import com.vmware.vim25.mo.ContainerView;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class InventoryMirror implements Runnable {
+
+  static final Logger LOG = LoggerFactory.getLogger(InventoryMirror.class);
+
+  // How long vCenter holds a WaitForUpdatesEx call when nothing changes
+  static final int MAX_WAIT = 60;
+  // The delay before watching again after an error
+  static final int RETRY_DELAY = 10000;
+
+  /**
+   * An object and its properties. It is replaced as a whole when one of
+   * its properties changes.
+   */
+  static class Entity {
+    final MetricsServer.Kind kind;
+    final Map<String, Object> props;
+    final String name;
+    final String uuid;
+
+    Entity(MetricsServer.Kind kind, Map<String, Object> props) {
+      this.kind = kind;
+      this.props = props;
+      Object value = props.get("name");
+      this.name = value == null ? null : value.toString();
+      this.uuid = uuid(kind.type, props);
+    }
+  }
+
+  private final Map<String, MetricsServer.Kind> kinds = new HashMap<String, MetricsServer.Kind>();
+  private final Map<String, Entity> entities = new ConcurrentHashMap<String, Entity>();
+  final Map<String, Map<String, String>> names = new ConcurrentHashMap<String, Map<String, String>>();
+  final Map<String, Map<String, String>> uuids = new ConcurrentHashMap<String, Map<String, String>>();
+  private final KeyRouter<InventoryMirror> router = new KeyRouter<InventoryMirror>();
+  private final AtomicLong updates = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private volatile boolean ready;
+  private volatile PropertyCollector waiting;
+
+  InventoryMirror() {
+    for (MetricsServer.Kind kind : MetricsServer.KINDS) {
+      kinds.put(kind.type, kind);
+      names.put(kind.type, new ConcurrentHashMap<String, String>());
+      uuids.put(kind.type, new ConcurrentHashMap<String, String>());
+      for (int i = 0; i < kind.families.length; i++) {
+        final int index = i;
+        router.add(kind.families[i][1], (m, p) -> m.value(kind, index, p[0]));
+      }
+    }
+    // vApps are resource pools
+    kinds.put("VirtualApp", kinds.get("ResourcePool"));
+  }
+
+  void start() {
+    Thread thread = new WorkerPool.Factory("vmbix-mirror-").newThread(this);
+    thread.start();
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      boolean failed = false;
+      try {
+        watch();
+      } catch (Exception ex) {
+        LOG.error(String.format("An error occurred while watching the inventory : %s", ex.toString()));
+        failed = true;
+      }
+      ready = false;
+      clear();
+      if (failed) {
+        VmBix.sleep(RETRY_DELAY);
+      }
+    }
+  }
+
+  /**
+   * Called when the vCenter session is replaced : the pending
+   * WaitForUpdatesEx call is canceled, so that the inventory is watched
+   * again in the new session without waiting for MAX_WAIT
+   */
+  void sessionChanged() {
+    PropertyCollector collector = waiting;
+    if (collector == null) {
+      return;
+    }
+    try {
+      collector.cancelWaitForUpdates();
+    } catch (Exception ex) {
+      LOG.debug(String.format("Could not cancel the inventory watch : %s", ex.toString()));
+    }
+  }
+
+  /**
+   * Returns the value of an item from the mirror, or null if the mirror
+   * cannot answer it and the item must be read from vCenter
+   */
+  VmBix.ValidationResult evaluate(String key) throws IOException {
+    if (!ready) {
+      return null;
+    }
+    return router.route(this, key);
+  }
+
+  /**
+   * Returns the mirror statistics
+   */
+  JsonObject getStats() {
+    JsonObject stats = new JsonObject();
+    stats.addProperty("ready", ready ? 1 : 0);
+    stats.addProperty("objects", entities.size());
+    stats.addProperty("updates", updates.get());
+    stats.addProperty("hits", hits.get());
+    return stats;
+  }
+
+  private VmBix.ValidationResult value(MetricsServer.Kind kind, int index, String id) {
+    Entity entity = find(kind.type, id);
+    if (entity == null) {
+      return null;
+    }
+    long value = kind.values(entity.props)[index];
+    if (value == MetricsServer.MISSING) {
+      return null;
+    }
+    hits.incrementAndGet();
+    return new VmBix.ValidationResult(0, Long.toString(value));
+  }
+
+  private Entity find(String type, String id) {
+    // The clusters and pools are always looked up by name
+    boolean byUuid = VmBix.useUuid && EntityIndex.UUID_PATHS.containsKey(type);
+    String mor = (byUuid ? uuids : names).get(type).get(id);
+    return mor == null ? null : entities.get(mor);
+  }
+
+  /**
+   * Creates a filter over the whole inventory and applies the updates until
+   * an error occurs or the session changes
+   */
+  void watch() throws IOException {
+    ServiceInstance serviceInstance = serviceInstance();
+    PropertyCollector collector = serviceInstance.getPropertyCollector().createPropertyCollector();
+    ContainerView view = null;
+    try {
+      MetricsServer.Kind[] all = MetricsServer.KINDS;
+      String[] types = new String[all.length];
+      PropertySpec[] specs = new PropertySpec[all.length];
+      for (int i = 0; i < all.length; i++) {
+        types[i] = all[i].type;
+        specs[i] = new PropertySpec();
+        specs[i].setType(all[i].type);
+        specs[i].setAll(false);
+        specs[i].setPathSet(all[i].paths);
+      }
+      view = serviceInstance.getViewManager().createContainerView(serviceInstance.getRootFolder(), types, true);
+      // No partial updates : a changed property is sent with its whole value
+      collector.createFilter(PropertyRetriever.filterSpec(view, specs), false);
+
+      WaitOptions options = new WaitOptions();
+      options.setMaxWaitSeconds(MAX_WAIT);
+      options.setMaxObjectUpdates(PropertyRetriever.PAGE_SIZE);
+
+      String version = "";
+      waiting = collector;
+      while (serviceInstance() == serviceInstance) {
+        UpdateSet set;
+        try {
+          set = collector.waitForUpdatesEx(version, options);
+        } catch (RequestCanceled ex) {
+          // Canceled by sessionChanged()
+          continue;
+        } catch (RemoteException ex) {
+          if (serviceInstance() != serviceInstance) {
+            // Canceled by sessionChanged(), but yavijava cannot map the
+            // faults to their class on the recent JVMs
+            break;
+          }
+          throw ex;
+        }
+        if (set == null) {
+          // Nothing changed during MAX_WAIT
+          continue;
+        }
+        update(set);
+        version = set.getVersion();
+      }
+      LOG.info("The session changed, watching the inventory again");
+    } finally {
+      waiting = null;
+      try {
+        if (view != null) {
+          view.destroyView();
+        }
+        collector.destroyPropertyCollector();
+      } catch (Exception ex) {
+        LOG.debug(String.format("Could not destroy the inventory filter : %s", ex.toString()));
+      }
+    }
+  }
+
+  /**
+   * Returns the service instance of the current vCenter session
+   */
+  ServiceInstance serviceInstance() {
+    return VmBix.session.get().serviceInstance;
+  }
+
+  /**
+   * Applies a set of updates. The mirror answers the items once the first
+   * complete set is applied.
+   */
+  void update(UpdateSet set) {
+    apply(set);
+    if (!ready && !Boolean.TRUE.equals(set.getTruncated())) {
+      ready = true;
+      LOG.info("Inventory mirror synchronized with " + entities.size() + " objects");
+    }
+  }
+
+  private void apply(UpdateSet set) {
+    PropertyFilterUpdate[] filters = set.getFilterSet();
+    for (int i = 0; filters != null && i < filters.length; i++) {
+      ObjectUpdate[] objects = filters[i].getObjectSet();
+      for (int j = 0; objects != null && j < objects.length; j++) {
+        apply(objects[j]);
+        updates.incrementAndGet();
+      }
+    }
+  }
+
+  private void apply(ObjectUpdate update) {
+    ManagedObjectReference mor = update.getObj();
+    MetricsServer.Kind kind = kinds.get(mor.getType());
+    if (kind == null) {
+      // The container view itself, or a type which is not mirrored
+      return;
+    }
+    Entity previous = entities.get(mor.getVal());
+    if ("leave".equals(update.getKind().toString())) {
+      if (previous != null) {
+        entities.remove(mor.getVal());
+        index(mor.getVal(), previous, null);
+      }
+      return;
+    }
+    Map<String, Object> props = previous == null
+      ? new HashMap<String, Object>() : new HashMap<String, Object>(previous.props);
+    PropertyChange[] changes = update.getChangeSet();
+    for (int i = 0; changes != null && i < changes.length; i++) {
+      String op = changes[i].getOp().toString();
+      if ("remove".equals(op) || "indirectRemove".equals(op)) {
+        props.remove(changes[i].getName());
+      } else {
+        props.put(changes[i].getName(), changes[i].getVal());
+      }
+    }
+    Entity entity = new Entity(kind, props);
+    entities.put(mor.getVal(), entity);
+    index(mor.getVal(), previous, entity);
+  }
+
+  /**
+   * Updates the name and UUID indexes of an object which entered, changed
+   * or left the inventory. The object must already be replaced in the
+   * mirror.
+   */
+  private void index(String mor, Entity previous, Entity entity) {
+    MetricsServer.Kind kind = previous != null ? previous.kind : entity.kind;
+    index(names.get(kind.type), kind, mor, previous, entity, e -> e.name);
+    index(uuids.get(kind.type), kind, mor, previous, entity, e -> e.uuid);
+  }
+
+  private void index(Map<String, String> index, MetricsServer.Kind kind, String mor,
+    Entity previous, Entity entity, Function<Entity, String> key) {
+    String before = previous == null ? null : key.apply(previous);
+    String after = entity == null ? null : key.apply(entity);
+    if (Objects.equals(before, after)) {
+      return;
+    }
+    if (before != null && index.remove(before, mor)) {
+      // Names are not unique : another object with the same name is found
+      // from now on
+      for (Map.Entry<String, Entity> other : entities.entrySet()) {
+        if (other.getValue().kind == kind && before.equals(key.apply(other.getValue()))) {
+          index.putIfAbsent(before, other.getKey());
+          break;
+        }
+      }
+    }
+    if (after != null) {
+      index.putIfAbsent(after, mor);
+    }
+  }
+
+  private void clear() {
+    entities.clear();
+    for (Map<String, String> index : names.values()) {
+      index.clear();
+    }
+    for (Map<String, String> index : uuids.values()) {
+      index.clear();
+    }
+  }
+
+  private static String uuid(String type, Map<String, Object> props) {
+    switch (type) {
+      case "VirtualMachine":
+        Object uuid = props.get("config.uuid");
+        return uuid == null ? null : uuid.toString();
+      case "HostSystem":
+        HostHardwareSummary hw = (HostHardwareSummary) props.get("summary.hardware");
+        return hw == null ? null : hw.getUuid();
+      case "Datastore":
+        DatastoreSummary ds = (DatastoreSummary) props.get("summary");
+        return ds == null ? null : EntityIndex.datastoreUuid(ds.getUrl());
+      default:
+        return null;
+    }
+  }
+}
@@ -0,0 +1,35 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # The vCenter connection and the lookups available to the item handlers.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import java.io.IOException;
+import com.vmware.vim25.mo.InventoryNavigator;
+import com.vmware.vim25.mo.ManagedEntity;
+import com.vmware.vim25.mo.PerformanceManager;
+import com.vmware.vim25.mo.ServiceInstance;
+
+public interface ItemContext {
+
+  ServiceInstance getServiceInstance();
+
+  InventoryNavigator getInventoryNavigator();
+
+  PerformanceManager getPerformanceManager();
+
+  /**
+   * Returns an object by name, or by UUID if useuuid is set, using the
+   * VmBix caches. Returns null if it is not found.
+   */
+  ManagedEntity getManagedEntity(String id, String meType) throws IOException;
+}
@@ -0,0 +1,43 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Interface of the custom items. The implementations are discovered with
+  # the ServiceLoader, so that new items can be shipped in a separate jar
+  # listing its classes in META-INF/services/net.dav3860.ItemHandler.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import java.io.IOException;
+
+public interface ItemHandler {
+
+  /**
+   * Returns the name under which the statistics of the handler are kept
+   */
+  default String getName() {
+    return getClass().getName();
+  }
+
+  /**
+   * Returns the item keys handled, for example "vm.mycheck[*]" or
+   * "vm.mycheck[*,size]". The parameter syntax is described in KeyRouter.
+   */
+  String[] getKeys();
+
+  /**
+   * Evaluates an item. The parameters are the ones matched by the "*" of
+   * the key. The result status is 0 for a value, 1 for an error and 2 when
+   * the object is not found. A null result means that the handler cannot
+   * answer the item, it is reported as an unknown item and not counted as
+   * an error of the handler.
+   */
+  VmBix.ValidationResult execute(ItemContext context, String[] params) throws IOException;
+}
@@ -0,0 +1,219 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Item key router. The routes are registered once with key patterns like
+  # "vm.memory[*,private]", and each request key is parsed once into its
+  # name and parameters and dispatched with a few map lookups. The calls,
+  # errors and latency of each handler are recorded.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+class KeyRouter<T> {
+
+  interface Handler<T> {
+    VmBix.ValidationResult handle(T target, String[] params) throws IOException;
+  }
+
+  static class Route<T> {
+    final Handler<T> handler;
+    final HandlerStats stats;
+
+    Route(Handler<T> handler, HandlerStats stats) {
+      this.handler = handler;
+      this.stats = stats;
+    }
+  }
+
+  static final String[] NONE = new String[0];
+
+  private final Map<String, Route<T>> routes = new HashMap<String, Route<T>>();
+  private final Map<String, HandlerStats> stats = new LinkedHashMap<String, HandlerStats>();
+
+  /**
+   * Registers a route. The pattern is one of :
+   * - name : the key, with or without parameters
+   * - name[literal] : the key with exactly these parameters
+   * - name[*] : any parameters, passed as a single string
+   * - name[*,selector] : the last parameter is the selector, the handler
+   *   gets everything before it, which may contain commas
+   * - name[selector,*] : the first parameter is the selector, the handler
+   *   gets everything after it
+   * - name[*,*] : the parameters split at the last comma
+   * A comma inside a quoted parameter does not separate parameters, and the
+   * parameters passed to the handler are unquoted like Zabbix does.
+   */
+  KeyRouter<T> add(String pattern, Handler<T> handler) {
+    return add(pattern, handler, new HandlerStats(pattern));
+  }
+
+  /**
+   * Registers a route whose statistics are shared with other routes
+   */
+  KeyRouter<T> add(String pattern, Handler<T> handler, HandlerStats handlerStats) {
+    if (routes.containsKey(pattern)) {
+      throw new IllegalArgumentException("duplicate route " + pattern);
+    }
+    routes.put(pattern, new Route<T>(handler, handlerStats));
+    stats.put(handlerStats.name, handlerStats);
+    return this;
+  }
+
+  Collection<HandlerStats> getStats() {
+    return stats.values();
+  }
+
+  HandlerStats getStats(String name) {
+    return stats.get(name);
+  }
+
+  /**
+   * Runs the handler of a key, or returns null if no route matches
+   */
+  VmBix.ValidationResult route(T target, String key) throws IOException {
+    key = key.trim();
+    int open = key.indexOf('[');
+    if (open < 0) {
+      Route<T> route = routes.get(key);
+      return route == null ? null : call(route, target, NONE);
+    }
+    if (!key.endsWith("]")) {
+      return null;
+    }
+    String name = key.substring(0, open);
+    String params = key.substring(open + 1, key.length() - 1);
+
+    Route<T> route = routes.get(key);
+    if (route != null) {
+      return call(route, target, new String[] { params });
+    }
+    int first = separator(params, false);
+    if (first >= 0) {
+      int last = separator(params, true);
+      String before = unquote(params.substring(0, last));
+      String after = unquote(params.substring(last + 1));
+      route = routes.get(name + "[*," + after + "]");
+      if (route != null && !before.isEmpty()) {
+        return call(route, target, new String[] { before });
+      }
+      route = routes.get(name + "[" + unquote(params.substring(0, first)) + ",*]");
+      if (route != null && first + 1 < params.length()) {
+        return call(route, target, new String[] { unquote(params.substring(first + 1)) });
+      }
+      route = routes.get(name + "[*,*]");
+      if (route != null && !before.isEmpty() && !after.isEmpty()) {
+        return call(route, target, new String[] { before, after });
+      }
+    }
+    route = routes.get(name + "[*]");
+    if (route != null && !params.isEmpty()) {
+      return call(route, target, new String[] { unquote(params) });
+    }
+    route = routes.get(name);
+    if (route != null) {
+      return call(route, target, new String[] { unquote(params) });
+    }
+    return null;
+  }
+
+  /**
+   * Returns the index of the first or last comma which is not inside a
+   * quoted parameter, or -1
+   */
+  static int separator(String params, boolean last) {
+    int found = -1;
+    boolean quoted = false;
+    for (int i = 0; i < params.length(); i++) {
+      char c = params.charAt(i);
+      if (quoted) {
+        if (c == '\\' && i + 1 < params.length() && params.charAt(i + 1) == '"') {
+          i++;
+        } else if (c == '"') {
+          quoted = false;
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        found = i;
+        if (!last) {
+          break;
+        }
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Removes the quotes of a single quoted parameter, and its \" escapes.
+   * Any other parameter is only trimmed.
+   */
+  static String unquote(String param) {
+    String value = param.trim();
+    if (value.length() < 2 || value.charAt(0) != '"' || value.charAt(value.length() - 1) != '"') {
+      return value;
+    }
+    StringBuilder unquoted = new StringBuilder();
+    for (int i = 1; i < value.length() - 1; i++) {
+      char c = value.charAt(i);
+      if (c == '\\' && i + 1 < value.length() - 1 && value.charAt(i + 1) == '"') {
+        unquoted.append('"');
+        i++;
+      } else if (c == '"') {
+        // Several parameters, like "a","b"
+        return value;
+      } else {
+        unquoted.append(c);
+      }
+    }
+    return unquoted.toString();
+  }
+
+  /**
+   * Runs a handler and records its latency. Errors are the exceptions and
+   * the results with an error status. A handler may return null when it
+   * cannot answer.
+   */
+  private VmBix.ValidationResult call(Route<T> route, T target, String[] params) throws IOException {
+    long start = System.nanoTime();
+    boolean error = true;
+    try {
+      VmBix.ValidationResult result = route.handler.handle(target, params);
+      error = result != null && result.getStatus() == 1;
+      return result;
+    } finally {
+      route.stats.record(System.nanoTime() - start, error);
+    }
+  }
+
+  /**
+   * Splits comma-separated parameters into count unquoted values. The
+   * missing ones are null, and the last one keeps any extra comma.
+   */
+  static String[] split(String params, int count) {
+    String[] values = new String[count];
+    String rest = params;
+    for (int i = 0; i < count; i++) {
+      int comma = i < count - 1 ? separator(rest, false) : -1;
+      if (comma < 0) {
+        values[i] = unquote(rest);
+        break;
+      }
+      values[i] = unquote(rest.substring(0, comma));
+      rest = rest.substring(comma + 1);
+    }
+    return values;
+  }
+}
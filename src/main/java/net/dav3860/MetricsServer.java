@@ -0,0 +1,476 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Optional HTTP listener serving the main VM, host, datastore, cluster and
+  # pool values on /metrics in the Prometheus text format. Each scrape reads
+  # the whole inventory with one property collector request per object type,
+  # and writes the lines of the objects page by page.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.vmware.vim25.ClusterComputeResourceSummary;
+import com.vmware.vim25.DatastoreSummary;
+import com.vmware.vim25.HostHardwareSummary;
+import com.vmware.vim25.HostListSummaryQuickStats;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ResourcePoolRuntimeInfo;
+import com.vmware.vim25.VirtualMachineQuickStats;
+import com.vmware.vim25.VirtualMachineStorageSummary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class MetricsServer implements HttpHandler {
+
+  static final Logger LOG = LoggerFactory.getLogger(MetricsServer.class);
+
+  static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  // The value of a metric which is not available for an object
+  static final long MISSING = Long.MIN_VALUE;
+
+  private final HttpServer server;
+
+  MetricsServer(InetSocketAddress address) throws IOException {
+    server = HttpServer.create(address, 0);
+    server.createContext("/metrics", this);
+    server.setExecutor(Executors.newFixedThreadPool(2, new WorkerPool.Factory("vmbix-metrics-")));
+  }
+
+  void start() {
+    server.start();
+    LOG.info("serving metrics on " + server.getAddress() + "/metrics");
+  }
+
+  /**
+   * Reads the objects with the current vCenter session
+   */
+  PropertyRetriever retriever() {
+    return new PropertyRetriever(VmBix.session.get().serviceInstance);
+  }
+
+  InetSocketAddress getAddress() {
+    return server.getAddress();
+  }
+
+  void stop() {
+    server.stop(0);
+  }
+
+  @Override
+  public void handle(HttpExchange exchange) throws IOException {
+    try {
+      if (!"GET".equals(exchange.getRequestMethod())) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      long timerStart = System.currentTimeMillis();
+
+      // The lines of each object are written as its page is read. The
+      // response only starts when the buffer is first flushed, so an error
+      // on the first objects is still reported with a 500. A later one is
+      // reported by vmbix_scrape_success.
+      Exposition body = new Exposition(exchange, accepts(exchange, "gzip"));
+      Writer writer = new BufferedWriter(body, 65536);
+      long success = 1;
+      try {
+        PropertyRetriever retriever = retriever();
+        for (Kind kind : KINDS) {
+          kind.write(retriever, writer);
+        }
+      } catch (Exception ex) {
+        LOG.error(String.format("An error occurred while reading the metrics : %s", ex.toString()));
+        if (!body.isOpen()) {
+          exchange.sendResponseHeaders(500, -1);
+          return;
+        }
+        success = 0;
+      }
+      writer.write("# HELP vmbix_scrape_success 1 if all the objects were read\n");
+      writer.write("# TYPE vmbix_scrape_success gauge\n");
+      writer.write("vmbix_scrape_success " + success + "\n");
+      writer.close();
+
+      long timerEnd = System.currentTimeMillis();
+      LOG.debug("Metrics scrape took " + (timerEnd - timerStart) + " ms");
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static boolean accepts(HttpExchange exchange, String encoding) {
+    List<String> values = exchange.getRequestHeaders().get("Accept-Encoding");
+    if (values == null) {
+      return false;
+    }
+    for (String value : values) {
+      if (value.contains(encoding)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The response body, its headers are sent with the first characters
+   */
+  static class Exposition extends Writer {
+    private final HttpExchange exchange;
+    private final boolean gzip;
+    private Writer out;
+
+    Exposition(HttpExchange exchange, boolean gzip) {
+      this.exchange = exchange;
+      this.gzip = gzip;
+    }
+
+    boolean isOpen() {
+      return out != null;
+    }
+
+    private void open() throws IOException {
+      exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+      if (gzip) {
+        exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+      }
+      // A 0 length means a chunked response
+      exchange.sendResponseHeaders(200, 0);
+      OutputStream body = exchange.getResponseBody();
+      if (gzip) {
+        body = new GZIPOutputStream(body, 8192);
+      }
+      out = new OutputStreamWriter(body, ZabbixServer.UTF8);
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+      if (out == null) {
+        open();
+      }
+      out.write(chars, offset, length);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (out != null) {
+        out.flush();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (out == null) {
+        open();
+      }
+      out.close();
+    }
+  }
+
+  /**
+   * An object type, the properties to read and the metric families built
+   * from them. Each family is a metric name, the Zabbix item returning the
+   * same value and a note on its values.
+   */
+  abstract static class Kind {
+    final String type;
+    final String[] paths;
+    final String[][] families;
+
+    Kind(String type, String[] paths, String[][] families) {
+      this.type = type;
+      this.paths = paths;
+      this.families = families;
+    }
+
+    abstract String labels(Map<String, Object> props);
+
+    abstract long[] values(Map<String, Object> props);
+
+    /**
+     * Writes the help of the families, then the lines of each object as it
+     * is read. The lines of a family are not grouped, which the Prometheus
+     * parser accepts.
+     */
+    void write(PropertyRetriever retriever, Writer writer) throws IOException {
+      for (int f = 0; f < families.length; f++) {
+        String note = families[f][2].isEmpty() ? "" : " " + families[f][2];
+        writer.write("# HELP " + families[f][0] + " Zabbix item " + families[f][1] + note + "\n");
+        writer.write("# TYPE " + families[f][0] + " gauge\n");
+      }
+      retriever.retrieve(type, paths, (ManagedObjectReference mor, Map<String, Object> props) -> {
+        // Names are not unique, the reference tells the objects apart
+        String labels = labels(props) + ",moref=\"" + escape(mor.getVal()) + "\"";
+        long[] values = values(props);
+        for (int f = 0; f < families.length; f++) {
+          if (values[f] == MISSING) {
+            continue;
+          }
+          writer.write(families[f][0]);
+          writer.write('{');
+          writer.write(labels);
+          writer.write("} ");
+          writer.write(Long.toString(values[f]));
+          writer.write('\n');
+        }
+      });
+    }
+  }
+
+  static final Kind[] KINDS = new Kind[] {
+    new Kind("VirtualMachine",
+      new String[] { "name", "config.uuid", "summary.quickStats", "summary.storage",
+        "summary.config.memorySizeMB", "summary.overallStatus", "runtime.powerState" },
+      new String[][] {
+        { "vmbix_vm_cpu_used_mhz", "vm.cpu.load[*,used]", "" },
+        { "vmbix_vm_memory_size_mb", "vm.memory[*,total]", "" },
+        { "vmbix_vm_memory_private_mb", "vm.memory[*,private]", "" },
+        { "vmbix_vm_memory_shared_mb", "vm.memory[*,shared]", "" },
+        { "vmbix_vm_memory_swapped_mb", "vm.memory[*,swapped]", "" },
+        { "vmbix_vm_memory_compressed_kb", "vm.memory[*,compressed]", "" },
+        { "vmbix_vm_memory_overhead_consumed_mb", "vm.memory[*,overheadConsumed]", "" },
+        { "vmbix_vm_memory_consumed_mb", "vm.memory[*,consumed]", "" },
+        { "vmbix_vm_memory_ballooned_mb", "vm.memory[*,ballooned]", "" },
+        { "vmbix_vm_memory_active_mb", "vm.memory[*,active]", "" },
+        { "vmbix_vm_storage_committed_bytes", "vm.storage.committed[*]", "" },
+        { "vmbix_vm_storage_uncommitted_bytes", "vm.storage.uncommitted[*]", "" },
+        { "vmbix_vm_storage_unshared_bytes", "vm.storage.unshared[*]", "" },
+        { "vmbix_vm_uptime_seconds", "vm.uptime[*]", "" },
+        { "vmbix_vm_status", "vm.status[*]", "(0 grey, 1 green, 2 yellow, 3 red, 4 unknown)" },
+        { "vmbix_vm_powerstate", "vm.powerstate[*]", "(0 off, 1 on, 2 suspended, 3 unknown)" }
+      }) {
+      String labels(Map<String, Object> props) {
+        return "vm=\"" + escape(props.get("name")) + "\",uuid=\"" + escape(props.get("config.uuid")) + "\"";
+      }
+
+      long[] values(Map<String, Object> props) {
+        VirtualMachineQuickStats qs = (VirtualMachineQuickStats) props.get("summary.quickStats");
+        VirtualMachineStorageSummary st = (VirtualMachineStorageSummary) props.get("summary.storage");
+        return new long[] {
+          qs == null ? MISSING : PropertyRetriever.value(qs.getOverallCpuUsage(), 0),
+          PropertyRetriever.value(props.get("summary.config.memorySizeMB"), MISSING),
+          qs == null ? MISSING : PropertyRetriever.value(qs.getPrivateMemory(), MISSING),
+          qs == null ? MISSING : PropertyRetriever.value(qs.getSharedMemory(), MISSING),
+          qs == null ? MISSING : PropertyRetriever.value(qs.getSwappedMemory(), MISSING),
+          qs == null ? MISSING : PropertyRetriever.value(qs.getCompressedMemory(), MISSING),
+          qs == null ? MISSING : PropertyRetriever.value(qs.getConsumedOverheadMemory(), MISSING),
+          qs == null ? MISSING : PropertyRetriever.value(qs.getHostMemoryUsage(), MISSING),
+          qs == null ? MISSING : PropertyRetriever.value(qs.getBalloonedMemory(), MISSING),
+          qs == null ? MISSING : PropertyRetriever.value(qs.getGuestMemoryUsage(), MISSING),
+          st == null ? MISSING : PropertyRetriever.value(st.getCommitted(), MISSING),
+          st == null ? MISSING : PropertyRetriever.value(st.getUncommitted(), MISSING),
+          st == null ? MISSING : PropertyRetriever.value(st.getUnshared(), MISSING),
+          qs == null ? 0 : PropertyRetriever.value(qs.getUptimeSeconds(), 0),
+          status(props.get("summary.overallStatus")),
+          powerState(props.get("runtime.powerState"))
+        };
+      }
+    },
+    new Kind("HostSystem",
+      new String[] { "name", "summary.quickStats", "summary.hardware", "summary.overallStatus",
+        "runtime.inMaintenanceMode", "runtime.connectionState" },
+      new String[][] {
+        { "vmbix_esx_cpu_used_mhz", "esx.cpu.load[*,used]", "" },
+        { "vmbix_esx_cpu_total_mhz", "esx.cpu.load[*,total]", "" },
+        { "vmbix_esx_cpu_cores", "esx.cpu.load[*,cores]", "" },
+        { "vmbix_esx_memory_used_mb", "esx.memory[*,used]", "" },
+        { "vmbix_esx_memory_total_bytes", "esx.memory[*,total]", "" },
+        { "vmbix_esx_uptime_seconds", "esx.uptime[*]", "" },
+        { "vmbix_esx_status", "esx.status[*]", "(0 grey, 1 green, 2 yellow, 3 red, 4 unknown)" },
+        { "vmbix_esx_maintenance", "esx.maintenance[*]", "" },
+        { "vmbix_esx_connection", "esx.connection[*]", "(0 connected, 1 disconnected, 2 other)" }
+      }) {
+      String labels(Map<String, Object> props) {
+        return "host=\"" + escape(props.get("name")) + "\"";
+      }
+
+      long[] values(Map<String, Object> props) {
+        HostListSummaryQuickStats qs = (HostListSummaryQuickStats) props.get("summary.quickStats");
+        HostHardwareSummary hw = (HostHardwareSummary) props.get("summary.hardware");
+        Object maintenance = props.get("runtime.inMaintenanceMode");
+        Object connection = props.get("runtime.connectionState");
+        long connectionState = 2;
+        if (connection != null && "connected".equals(connection.toString())) {
+          connectionState = 0;
+        } else if (connection != null && "disconnected".equals(connection.toString())) {
+          connectionState = 1;
+        }
+        return new long[] {
+          qs == null ? MISSING : PropertyRetriever.value(qs.getOverallCpuUsage(), MISSING),
+          hw == null ? MISSING : PropertyRetriever.value(hw.getCpuMhz(), 0),
+          hw == null ? MISSING : PropertyRetriever.value(hw.getNumCpuCores(), MISSING),
+          qs == null ? MISSING : PropertyRetriever.value(qs.getOverallMemoryUsage(), MISSING),
+          hw == null ? MISSING : PropertyRetriever.value(hw.getMemorySize(), 0),
+          qs == null ? 0 : PropertyRetriever.value(qs.getUptime(), 0),
+          status(props.get("summary.overallStatus")),
+          Boolean.TRUE.equals(maintenance) ? 1 : 0,
+          connectionState
+        };
+      }
+    },
+    new Kind("Datastore",
+      new String[] { "name", "summary" },
+      new String[][] {
+        { "vmbix_datastore_size_free_bytes", "datastore.size[*,free]", "" },
+        { "vmbix_datastore_size_total_bytes", "datastore.size[*,total]", "" },
+        { "vmbix_datastore_size_provisioned_bytes", "datastore.size[*,provisioned]", "" },
+        { "vmbix_datastore_size_uncommitted_bytes", "datastore.size[*,uncommitted]", "" }
+      }) {
+      String labels(Map<String, Object> props) {
+        return "datastore=\"" + escape(props.get("name")) + "\"";
+      }
+
+      long[] values(Map<String, Object> props) {
+        DatastoreSummary ds = (DatastoreSummary) props.get("summary");
+        if (ds == null) {
+          return new long[] { MISSING, MISSING, MISSING, MISSING };
+        }
+        long uncommitted = PropertyRetriever.value(ds.getUncommitted(), 0);
+        return new long[] {
+          ds.getFreeSpace(),
+          ds.getCapacity(),
+          ds.getCapacity() - ds.getFreeSpace() + uncommitted,
+          uncommitted
+        };
+      }
+    },
+    new Kind("ClusterComputeResource",
+      new String[] { "name", "summary" },
+      new String[][] {
+        { "vmbix_cluster_cpu_free_mhz", "cluster.cpu[*,free]", "" },
+        { "vmbix_cluster_cpu_total_mhz", "cluster.cpu[*,total]", "" },
+        { "vmbix_cluster_cpu_usage_mhz", "cluster.cpu[*,usage]", "" },
+        { "vmbix_cluster_cpu_cores", "cluster.cpu.num[*,cores]", "" },
+        { "vmbix_cluster_cpu_threads", "cluster.cpu.num[*,threads]", "" },
+        { "vmbix_cluster_memory_free_bytes", "cluster.mem[*,free]", "" },
+        { "vmbix_cluster_memory_total_bytes", "cluster.mem[*,total]", "" },
+        { "vmbix_cluster_memory_usage_bytes", "cluster.mem[*,usage]", "" },
+        { "vmbix_cluster_hosts_online", "cluster.hosts[*,online]", "" },
+        { "vmbix_cluster_hosts_maintenance", "cluster.hosts[*,maint]", "" },
+        { "vmbix_cluster_hosts_total", "cluster.hosts[*,total]", "" }
+      }) {
+      String labels(Map<String, Object> props) {
+        return "cluster=\"" + escape(props.get("name")) + "\"";
+      }
+
+      long[] values(Map<String, Object> props) {
+        ClusterComputeResourceSummary cs = (ClusterComputeResourceSummary) props.get("summary");
+        if (cs == null) {
+          long[] missing = new long[11];
+          Arrays.fill(missing, MISSING);
+          return missing;
+        }
+        return new long[] {
+          cs.effectiveCpu,
+          cs.totalCpu,
+          cs.totalCpu - cs.effectiveCpu,
+          cs.numCpuCores,
+          cs.numCpuThreads,
+          cs.effectiveMemory * 1024 * 1024,
+          cs.totalMemory,
+          cs.totalMemory - (cs.effectiveMemory * 1024 * 1024),
+          cs.numEffectiveHosts,
+          cs.numHosts - cs.numEffectiveHosts,
+          cs.numHosts
+        };
+      }
+    },
+    new Kind("ResourcePool",
+      new String[] { "name", "runtime" },
+      new String[][] {
+        { "vmbix_pool_cpu_usage_mhz", "pool.cpu[*,usage]", "" },
+        { "vmbix_pool_memory_usage_bytes", "pool.mem[*,usage]", "" }
+      }) {
+      String labels(Map<String, Object> props) {
+        return "pool=\"" + escape(props.get("name")) + "\"";
+      }
+
+      long[] values(Map<String, Object> props) {
+        ResourcePoolRuntimeInfo rt = (ResourcePoolRuntimeInfo) props.get("runtime");
+        if (rt == null) {
+          return new long[] { MISSING, MISSING };
+        }
+        return new long[] {
+          rt.getCpu() == null ? MISSING : rt.getCpu().overallUsage,
+          rt.getMemory() == null ? MISSING : rt.getMemory().overallUsage
+        };
+      }
+    }
+  };
+
+  static long status(Object status) {
+    if (status == null) {
+      return 4;
+    }
+    switch (status.toString()) {
+      case "grey":
+        return 0;
+      case "green":
+        return 1;
+      case "yellow":
+        return 2;
+      case "red":
+        return 3;
+      default:
+        return 4;
+    }
+  }
+
+  static long powerState(Object state) {
+    if (state == null) {
+      return 3;
+    }
+    switch (state.toString()) {
+      case "poweredOff":
+        return 0;
+      case "poweredOn":
+        return 1;
+      case "suspended":
+        return 2;
+      default:
+        return 3;
+    }
+  }
+
+  /**
+   * Escapes a label value of the text format
+   */
+  static String escape(Object value) {
+    if (value == null) {
+      return "";
+    }
+    String string = value.toString();
+    StringBuilder escaped = new StringBuilder(string.length());
+    for (int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      if (c == '\\' || c == '"') {
+        escaped.append('\\').append(c);
+      } else if (c == '\n') {
+        escaped.append("\\n");
+      } else {
+        escaped.append(c);
+      }
+    }
+    return escaped.toString();
+  }
+}
@@ -0,0 +1,145 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Retrieves some properties of all the objects of a type with a single
+  # property collector request, instead of one request per object and per
+  # property. The results are read page by page.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.mo.ContainerView;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+
+class PropertyRetriever {
+
+  // The maximum number of objects returned by each call
+  static final int PAGE_SIZE = 1000;
+
+  interface Handler {
+    void handle(ManagedObjectReference mor, Map<String, Object> properties) throws IOException;
+  }
+
+  private final ServiceInstance serviceInstance;
+
+  PropertyRetriever(ServiceInstance serviceInstance) {
+    this.serviceInstance = serviceInstance;
+  }
+
+  /**
+   * Returns a numeric property as a long, or missing if it is not set
+   */
+  static long value(Object number, long missing) {
+    return number instanceof Number ? ((Number) number).longValue() : missing;
+  }
+
+  /**
+   * Returns a filter selecting the properties of all the objects of a
+   * container view
+   */
+  static PropertyFilterSpec filterSpec(ContainerView view, PropertySpec[] properties) {
+    TraversalSpec traversal = new TraversalSpec();
+    traversal.setName("view");
+    traversal.setType("ContainerView");
+    traversal.setPath("view");
+    traversal.setSkip(false);
+
+    ObjectSpec objects = new ObjectSpec();
+    objects.setObj(view.getMOR());
+    objects.setSkip(true);
+    objects.setSelectSet(new SelectionSpec[] { traversal });
+
+    PropertyFilterSpec filter = new PropertyFilterSpec();
+    filter.setObjectSet(new ObjectSpec[] { objects });
+    filter.setPropSet(properties);
+    return filter;
+  }
+
+  /**
+   * Calls the handler for each object of a type in the inventory, with the
+   * requested properties. A property which is not set is not in the map.
+   */
+  void retrieve(String type, String[] paths, Handler handler) throws IOException {
+    ContainerView view = serviceInstance.getViewManager().createContainerView(
+      serviceInstance.getRootFolder(), new String[] { type }, true);
+    try {
+      collect(filterSpec(view, new PropertySpec[] { propertySpec(type, paths) }), handler);
+    } finally {
+      view.destroyView();
+    }
+  }
+
+  /**
+   * Calls the handler for each object referenced by a property of another
+   * object, like the VMs of a host, with the requested properties
+   */
+  void retrieve(ManagedObjectReference parent, String path, String type, String[] paths, Handler handler) throws IOException {
+    TraversalSpec traversal = new TraversalSpec();
+    traversal.setName(path);
+    traversal.setType(parent.getType());
+    traversal.setPath(path);
+    traversal.setSkip(false);
+
+    ObjectSpec objects = new ObjectSpec();
+    objects.setObj(parent);
+    objects.setSkip(true);
+    objects.setSelectSet(new SelectionSpec[] { traversal });
+
+    PropertyFilterSpec filter = new PropertyFilterSpec();
+    filter.setObjectSet(new ObjectSpec[] { objects });
+    filter.setPropSet(new PropertySpec[] { propertySpec(type, paths) });
+    collect(filter, handler);
+  }
+
+  private static PropertySpec propertySpec(String type, String[] paths) {
+    PropertySpec properties = new PropertySpec();
+    properties.setType(type);
+    properties.setAll(false);
+    properties.setPathSet(paths);
+    return properties;
+  }
+
+  private void collect(PropertyFilterSpec filter, Handler handler) throws IOException {
+    RetrieveOptions options = new RetrieveOptions();
+    options.setMaxObjects(PAGE_SIZE);
+
+    PropertyCollector collector = serviceInstance.getPropertyCollector();
+    RetrieveResult page = collector.retrievePropertiesEx(new PropertyFilterSpec[] { filter }, options);
+    while (page != null) {
+      ObjectContent[] contents = page.getObjects();
+      for (int i = 0; contents != null && i < contents.length; i++) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        DynamicProperty[] props = contents[i].getPropSet();
+        for (int j = 0; props != null && j < props.length; j++) {
+          values.put(props[j].getName(), props[j].getVal());
+        }
+        handler.handle(contents[i].getObj(), values);
+      }
+      if (page.getToken() == null) {
+        break;
+      }
+      page = collector.continueRetrievePropertiesEx(page.getToken());
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Cache refreshed ahead of expiry. An entry older than its TTL is still
+  # returned while a single background task reloads it, so the pollers do
+  # not all wait for vCenter when a popular entry gets old. An entry which
+  # cannot be reloaded is dropped. The reload latency and failures are
+  # recorded for each cache.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+class RefreshingCache<V> extends CacheLoader<String, V> {
+
+  interface Loader<V> {
+    /**
+     * Returns the current value of a key, or null if it does not exist
+     */
+    V load(String key) throws Exception;
+  }
+
+  // The reloads of all the caches share a small pool
+  static final ExecutorService REFRESHER = Executors.newFixedThreadPool(2, new WorkerPool.Factory("vmbix-refresh-"));
+
+  // The reload statistics by cache name
+  static final Map<String, HandlerStats> STATS = new ConcurrentHashMap<String, HandlerStats>();
+
+  final LoadingCache<String, V> cache;
+  private final Loader<V> loader;
+  private final HandlerStats stats;
+
+  /**
+   * The entries are reloaded when they are read ttl after being written,
+   * and expire if they are not read within twice the ttl
+   */
+  RefreshingCache(String name, long size, long ttl, TimeUnit unit, Loader<V> loader) {
+    this.loader = loader;
+    this.stats = new HandlerStats(name);
+    STATS.put(name, stats);
+    this.cache = CacheBuilder.newBuilder()
+      .maximumSize(size)
+      .refreshAfterWrite(ttl, unit)
+      .expireAfterWrite(ttl * 2, unit)
+      .recordStats()
+      .build(CacheLoader.asyncReloading(this, REFRESHER));
+  }
+
+  @Override
+  public V load(String key) throws Exception {
+    long start = System.nanoTime();
+    boolean error = true;
+    try {
+      V value = loader.load(key);
+      if (value == null) {
+        // Gone from vCenter : do not keep serving the old value
+        cache.invalidate(key);
+        throw new IOException(String.format("%s %s does not exist anymore", stats.name, key));
+      }
+      error = false;
+      return value;
+    } finally {
+      stats.record(System.nanoTime() - start, error);
+    }
+  }
+}
@@ -0,0 +1,157 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # An immutable vCenter session. Each primary login creates a new one with
+  # the next epoch, which replaces the previous one atomically for all the
+  # workers. The additional sessions of the pool keep the current epoch.
+  # A request uses the session current when it starts until it ends, so the
+  # requests running during a reconnection finish on their own epoch, and
+  # the replaced session is logged out once they are done.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import com.vmware.vim25.mo.InventoryNavigator;
+import com.vmware.vim25.mo.PerformanceManager;
+import com.vmware.vim25.mo.ServiceInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+final class Session {
+
+  static final Logger LOG = LoggerFactory.getLogger(Session.class);
+
+  final ServiceInstance serviceInstance;
+  final InventoryNavigator inventoryNavigator;
+  final PerformanceManager performanceManager;
+  // Identifies the vCenter, the object references are only valid on it
+  final String instanceUuid;
+  final long epoch;
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicBoolean loggedOut = new AtomicBoolean();
+  private volatile boolean retired;
+
+  Session(ServiceInstance serviceInstance, long epoch) {
+    this(serviceInstance, new InventoryNavigator(serviceInstance.getRootFolder()),
+      serviceInstance.getPerformanceManager(), serviceInstance.getAboutInfo().getInstanceUuid(), epoch);
+  }
+
+  Session(ServiceInstance serviceInstance, InventoryNavigator inventoryNavigator,
+    PerformanceManager performanceManager, String instanceUuid, long epoch) {
+    this.serviceInstance = serviceInstance;
+    this.inventoryNavigator = inventoryNavigator;
+    this.performanceManager = performanceManager;
+    this.instanceUuid = instanceUuid;
+    this.epoch = epoch;
+  }
+
+  /**
+   * Counts a request on the session held by current, and returns it. A
+   * session replaced between reading it and counting the request is
+   * released, and the new one is read again.
+   */
+  static Session acquire(Supplier<Session> current) {
+    while (true) {
+      Session session = current.get();
+      if (session.acquireLive()) {
+        if (current.get() == session) {
+          return session;
+        }
+        session.release();
+      }
+    }
+  }
+
+  /**
+   * Counts a request running on this session
+   */
+  void acquire() {
+    inFlight.incrementAndGet();
+  }
+
+  /**
+   * Counts a request running on this session, unless it was retired. The
+   * request is counted before the check : a retire which did not count it
+   * has already marked the session, and one which did leaves it logged in.
+   */
+  boolean acquireLive() {
+    inFlight.incrementAndGet();
+    if (retired || loggedOut.get()) {
+      release();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Counts a request running on this session, unless it already runs
+   * limit requests or it was retired
+   */
+  boolean tryAcquire(int limit) {
+    int count;
+    do {
+      count = inFlight.get();
+      if (count >= limit) {
+        return false;
+      }
+    } while (!inFlight.compareAndSet(count, count + 1));
+    if (retired || loggedOut.get()) {
+      release();
+      return false;
+    }
+    return true;
+  }
+
+  void release() {
+    if (inFlight.decrementAndGet() == 0 && retired) {
+      LOG.debug("No more requests on session epoch " + epoch);
+      logout();
+    }
+  }
+
+  /**
+   * Marks the session as replaced. The requests already running keep it,
+   * and it is logged out when the last one ends, or at once if it has
+   * expired.
+   */
+  void retire(boolean expired) {
+    retired = true;
+    LOG.info("Session epoch " + epoch + " replaced with " + inFlight.get() + " requests still running");
+    if (expired || inFlight.get() == 0) {
+      logout();
+    }
+  }
+
+  /**
+   * Logs out the session, once
+   */
+  void logout() {
+    if (!loggedOut.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      serviceInstance.getServerConnection().logout();
+    } catch (Exception ex) {
+      LOG.debug(String.format("Could not log out session epoch %d : %s", epoch, ex.toString()));
+    }
+  }
+
+  int getInFlightCount() {
+    return inFlight.get();
+  }
+
+  boolean isLoggedOut() {
+    return loggedOut.get();
+  }
+}
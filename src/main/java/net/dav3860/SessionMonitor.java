@@ -0,0 +1,120 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # vCenter session monitor. The session is checked in the background by
+  # reading the current session of the session manager, and a dead session
+  # is replaced with a new login, retried with an increasing delay. The
+  # requests always use the current session and never check it themselves.
+  # The additional sessions of the pool are checked at the same time.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.vmware.vim25.UserSession;
+import com.vmware.vim25.mo.ServiceInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class SessionMonitor implements Runnable {
+
+  static final Logger LOG = LoggerFactory.getLogger(SessionMonitor.class);
+
+  // The delays between two login attempts, in milliseconds
+  static final int MIN_BACKOFF = 1000;
+  static final int MAX_BACKOFF = 60000;
+
+  private final int interval;
+  private final ScheduledExecutorService scheduler;
+  private final AtomicLong reconnects = new AtomicLong();
+  // Only used on the scheduler thread
+  private int backoff = MIN_BACKOFF;
+  private boolean retrying;
+
+  /**
+   * The session is checked every interval seconds
+   */
+  SessionMonitor(int interval) {
+    this.interval = interval;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(new WorkerPool.Factory("vmbix-session-"));
+  }
+
+  void start() {
+    scheduler.scheduleWithFixedDelay(this, interval, interval, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Returns the number of times the session was replaced
+   */
+  long getReconnectCount() {
+    return reconnects.get();
+  }
+
+  @Override
+  public void run() {
+    try {
+      if (!retrying && !isAlive(VmBix.session.get().serviceInstance)) {
+        LOG.warn("The vCenter session is not valid anymore, attempting reconnect");
+        reconnect();
+      }
+      if (VmBix.sessionPool != null) {
+        VmBix.sessionPool.check();
+      }
+    } catch (Exception ex) {
+      LOG.error(String.format("An error occurred while checking the vCenter session : %s", ex.toString()));
+    }
+  }
+
+  /**
+   * Replaces the session. A failed attempt is retried later on the
+   * scheduler instead of waiting on it, so that the session pool is still
+   * checked in between. The delay doubles after each failure.
+   */
+  private void reconnect() {
+    if (VmBix.updateConnection(true)) {
+      retrying = false;
+      backoff = MIN_BACKOFF;
+      reconnects.incrementAndGet();
+      LOG.info("Reconnected to vCenter");
+      return;
+    }
+    LOG.error("Reconnection failed, retrying in " + backoff + " ms");
+    retrying = true;
+    scheduler.schedule(this::retry, backoff, TimeUnit.MILLISECONDS);
+    backoff = Math.min(backoff * 2, MAX_BACKOFF);
+  }
+
+  private void retry() {
+    try {
+      reconnect();
+    } catch (Exception ex) {
+      // The next check starts again
+      retrying = false;
+      LOG.error(String.format("An error occurred while reconnecting to vCenter : %s", ex.toString()));
+    }
+  }
+
+  /**
+   * Reading the current session is a single property read, and it is not
+   * set when the session has expired
+   */
+  static boolean isAlive(ServiceInstance serviceInstance) {
+    try {
+      UserSession session = serviceInstance.getSessionManager().getCurrentSession();
+      return session != null;
+    } catch (Exception ex) {
+      LOG.debug(String.format("Session check failed : %s", ex.toString()));
+      return false;
+    }
+  }
+}
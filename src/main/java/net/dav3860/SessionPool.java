@@ -0,0 +1,242 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Pool of vCenter sessions. Besides the primary session, which is also
+  # used by the caches and the background tasks, the pool logs in a few more
+  # sessions so that the requests do not all share one session and one HTTP
+  # connection. Each request leases the least busy session, and waits when
+  # all of them run their limit of requests.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class SessionPool {
+
+  static final Logger LOG = LoggerFactory.getLogger(SessionPool.class);
+
+  // The sessions besides the primary one, null until logged in
+  private final AtomicReferenceArray<Session> extras;
+  private final int limit;
+  private final int timeout;
+  // One permit per request slot of all the sessions, null without a limit
+  private final Semaphore permits;
+  private final AtomicLong leases = new AtomicLong();
+  private final AtomicLong waits = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+
+  /**
+   * A pool of size sessions including the primary one, each running at
+   * most limit requests at a time. A limit of 0 disables it. A request
+   * waits at most timeout ms for a free session.
+   */
+  SessionPool(int size, int limit, int timeout) {
+    this.extras = new AtomicReferenceArray<Session>(Math.max(size - 1, 0));
+    this.limit = limit;
+    this.timeout = timeout;
+    this.permits = limit > 0 ? new Semaphore(Math.max(size, 1) * limit, true) : null;
+  }
+
+  /**
+   * Logs in the additional sessions. A session which cannot be logged in
+   * is retried by the next check.
+   */
+  void start() {
+    for (int i = 0; i < extras.length(); i++) {
+      login(i);
+    }
+    LOG.info("Session pool started with " + getSessions().size() + " sessions");
+  }
+
+  /**
+   * Replaces the additional sessions which are missing or expired
+   */
+  void check() {
+    for (int i = 0; i < extras.length(); i++) {
+      Session extra = extras.get(i);
+      if (extra == null || !SessionMonitor.isAlive(extra.serviceInstance)) {
+        login(i);
+      }
+    }
+  }
+
+  /**
+   * Logs in an additional session in the place of a missing or expired
+   * one. Unlike the primary login, it does not start a new epoch and does
+   * not read the performance counters.
+   */
+  private void login(int index) {
+    Session next;
+    try {
+      next = new Session(VmBix.connect(), VmBix.epochs.get());
+    } catch (Exception ex) {
+      LOG.error("Connection error: " + ex.toString());
+      return;
+    }
+    Session previous = extras.getAndSet(index, next);
+    if (previous != null) {
+      previous.retire(true);
+    }
+  }
+
+  /**
+   * Returns the primary session followed by the additional ones
+   */
+  List<Session> getSessions() {
+    List<Session> sessions = new ArrayList<Session>();
+    sessions.add(VmBix.session.get());
+    for (int i = 0; i < extras.length(); i++) {
+      Session extra = extras.get(i);
+      if (extra != null) {
+        sessions.add(extra);
+      }
+    }
+    return sessions;
+  }
+
+  /**
+   * Returns the least busy session, counting a request on it. Waits while
+   * all the sessions run their limit of requests, and returns null if none
+   * was freed within the timeout.
+   */
+  Session lease() {
+    if (permits != null && !permits.tryAcquire()) {
+      waits.incrementAndGet();
+      try {
+        if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+          timeouts.incrementAndGet();
+          return null;
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
+    leases.incrementAndGet();
+    int max = limit > 0 ? limit : Integer.MAX_VALUE;
+    while (true) {
+      List<Session> sessions = getSessions();
+      sessions.sort((a, b) -> Integer.compare(a.getInFlightCount(), b.getInFlightCount()));
+      Session leased = null;
+      for (Session session : sessions) {
+        if (session.tryAcquire(max)) {
+          leased = session;
+          break;
+        }
+      }
+      if (leased == null) {
+        break;
+      }
+      // Counted first, so a session replaced since it was read is
+      // released and the sessions are read again
+      if (holds(leased)) {
+        return leased;
+      }
+      leased.release();
+    }
+    // The sessions which are not logged in left fewer slots than permits :
+    // go over the limit rather than wait for nothing
+    return Session.acquire(VmBix.session::get);
+  }
+
+  /**
+   * Whether a session is still the primary one or an additional one
+   */
+  private boolean holds(Session session) {
+    if (VmBix.session.get() == session) {
+      return true;
+    }
+    for (int i = 0; i < extras.length(); i++) {
+      if (extras.get(i) == session) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  int getTimeout() {
+    return timeout;
+  }
+
+  /**
+   * Counts a key of a bulk request on the session of the request, within
+   * the request slots of the pool. Returns false if no slot was freed
+   * within timeout ms.
+   */
+  boolean join(Session session, long timeout) {
+    try {
+      if (permits != null && !permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+        waits.incrementAndGet();
+        return false;
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    session.acquire();
+    return true;
+  }
+
+  void release(Session session) {
+    session.release();
+    if (permits != null) {
+      permits.release();
+    }
+  }
+
+  /**
+   * Logs out the additional sessions
+   */
+  void logout() {
+    for (int i = 0; i < extras.length(); i++) {
+      Session extra = extras.getAndSet(i, null);
+      if (extra != null) {
+        extra.logout();
+      }
+    }
+  }
+
+  /**
+   * Returns the number of sessions, the running requests of each session,
+   * the share of the request slots in use, the leases, the leases which
+   * waited for a free slot and those which gave up waiting
+   */
+  JsonObject getStats() {
+    List<Session> sessions = getSessions();
+    JsonArray running = new JsonArray();
+    int inFlight = 0;
+    for (Session session : sessions) {
+      running.add(session.getInFlightCount());
+      inFlight += session.getInFlightCount();
+    }
+    JsonObject stats = new JsonObject();
+    stats.addProperty("sessions", sessions.size());
+    stats.addProperty("limit", limit);
+    stats.addProperty("inflight", inFlight);
+    stats.add("running", running);
+    if (limit > 0) {
+      stats.addProperty("utilization", (double) inFlight / (sessions.size() * limit));
+    }
+    stats.addProperty("leases", leases.get());
+    stats.addProperty("waits", waits.get());
+    stats.addProperty("timeouts", timeouts.get());
+    return stats;
+  }
+}
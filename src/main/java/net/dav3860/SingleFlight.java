@@ -0,0 +1,107 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Request coalescing. When the same key is requested again while it is
+  # still being computed, the new caller waits for the running computation
+  # and gets its result instead of querying vCenter a second time. It can
+  # also remember the results, for the lookups shared by the keys of a bulk
+  # request.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+class SingleFlight<K, V> {
+
+  interface Call<V> {
+    V call() throws IOException;
+  }
+
+  private final ConcurrentHashMap<K, CompletableFuture<V>> calls = new ConcurrentHashMap<K, CompletableFuture<V>>();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final boolean remember;
+
+  SingleFlight() {
+    this(false);
+  }
+
+  /**
+   * When remember is set, a successful result is kept and returned to the
+   * later calls with the same key
+   */
+  SingleFlight(boolean remember) {
+    this.remember = remember;
+  }
+
+  /**
+   * Runs the call, or waits for the call already running for the same key
+   */
+  V execute(K key, Call<V> call) throws IOException {
+    CompletableFuture<V> future = new CompletableFuture<V>();
+    CompletableFuture<V> running = calls.putIfAbsent(key, future);
+    if (running != null) {
+      coalesced.incrementAndGet();
+      return await(running);
+    }
+    try {
+      V value = call.call();
+      future.complete(value);
+      if (!remember) {
+        calls.remove(key, future);
+      }
+      return value;
+    } catch (IOException | RuntimeException | Error e) {
+      future.completeExceptionally(e);
+      calls.remove(key, future);
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the number of calls which were answered by another call
+   */
+  long getCoalescedCount() {
+    return coalesced.get();
+  }
+
+  /**
+   * Returns the number of calls running
+   */
+  int getInFlightCount() {
+    return calls.size();
+  }
+
+  private static <V> V await(CompletableFuture<V> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting for a coalesced request");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+}
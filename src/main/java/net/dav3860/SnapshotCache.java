@@ -0,0 +1,84 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Short-lived cache of the property groups of each object, like the
+  # summary or the runtime info of a VM, keyed by object reference. The
+  # items of a template read the same groups of the same object within a
+  # few seconds, so only the first one calls vCenter. Concurrent reads of
+  # the same group wait for a single call.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.vmware.vim25.mo.ManagedEntity;
+
+class SnapshotCache {
+
+  private final Map<String, Cache<String, Object>> groups = new LinkedHashMap<String, Cache<String, Object>>();
+
+  /**
+   * Caches a property group for ttl seconds. A ttl of 0 disables it.
+   */
+  SnapshotCache add(String group, int ttl, int size) {
+    if (ttl > 0) {
+      groups.put(group, CacheBuilder.newBuilder()
+        .maximumSize(size).expireAfterWrite(ttl, TimeUnit.SECONDS).recordStats().build());
+    }
+    return this;
+  }
+
+  /**
+   * Returns a property group of an object, read with fetch if it is not
+   * cached. A group which is not set is not cached.
+   */
+  @SuppressWarnings("unchecked")
+  <V> V get(String group, ManagedEntity entity, Supplier<V> fetch) {
+    Cache<String, Object> cache = groups.get(group);
+    if (cache == null) {
+      return fetch.get();
+    }
+    try {
+      return (V) cache.get(entity.getMOR().getVal(), () -> fetch.get());
+    } catch (InvalidCacheLoadException e) {
+      // fetch returned null
+      return null;
+    } catch (UncheckedExecutionException e) {
+      // Same exception as without the cache
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    } catch (ExecutionException e) {
+      throw new UncheckedExecutionException(e.getCause());
+    }
+  }
+
+  /**
+   * Returns the cache of a property group, or null
+   */
+  Cache<String, Object> getCache(String group) {
+    return groups.get(group);
+  }
+
+  void invalidateAll() {
+    for (Cache<String, Object> cache : groups.values()) {
+      cache.invalidateAll();
+    }
+  }
+}
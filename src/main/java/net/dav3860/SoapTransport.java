@@ -0,0 +1,407 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # HTTPS transport of the vSphere SOAP calls. yavijava opens a URL
+  # connection for each call : once installed, these connections are served
+  # by a shared HTTP client, which keeps the connections to vCenter open,
+  # reuses the TLS sessions and asks for gzip compressed responses. The
+  # calls, latency and bytes sent and received are recorded.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import com.google.gson.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class SoapTransport extends URLStreamHandler {
+
+  static final Logger LOG = LoggerFactory.getLogger(SoapTransport.class);
+
+  // Managed by the HTTP client, which refuses them
+  static final List<String> RESTRICTED = Arrays.asList("connection", "content-length", "expect", "host", "upgrade");
+
+  static final HandlerStats STATS = new HandlerStats("soap");
+  static final AtomicLong SENT = new AtomicLong();
+  static final AtomicLong RECEIVED = new AtomicLong();
+  static final AtomicLong DECODED = new AtomicLong();
+
+  private final HttpClient client;
+
+  /**
+   * The certificate and the host name of vCenter are not checked, like the
+   * yavijava connections when they ignore the certificate. This only
+   * applies to the client of this transport.
+   */
+  SoapTransport(int connectTimeout) throws Exception {
+    SSLContext ssl = SSLContext.getInstance("TLS");
+    ssl.init(null, new TrustManager[] { new TrustAll() }, new SecureRandom());
+    SSLParameters parameters = ssl.getDefaultSSLParameters();
+    parameters.setEndpointIdentificationAlgorithm(null);
+    HttpClient.Builder builder = HttpClient.newBuilder()
+      .version(HttpClient.Version.HTTP_1_1)
+      .sslContext(ssl)
+      .sslParameters(parameters)
+      .executor(Executors.newCachedThreadPool(new WorkerPool.Factory("vmbix-http-")));
+    if (connectTimeout > 0) {
+      builder.connectTimeout(Duration.ofMillis(connectTimeout));
+    }
+    this.client = builder.build();
+  }
+
+  /**
+   * Serves the https URLs created from now on with this transport. The
+   * handler factory can only be set once in a JVM.
+   */
+  static void install(int connectTimeout) throws Exception {
+    SoapTransport transport = new SoapTransport(connectTimeout);
+    URL.setURLStreamHandlerFactory(protocol -> "https".equals(protocol) ? transport : null);
+    LOG.info("Using the pooled HTTP transport for the SOAP calls");
+  }
+
+  @Override
+  protected URLConnection openConnection(URL url) throws IOException {
+    return new Call(url, client);
+  }
+
+  /**
+   * Returns the calls, errors, error rate and average latency in ms of the
+   * SOAP calls, and the bytes sent, received and received once decompressed
+   */
+  static JsonObject getStats() {
+    JsonObject stats = STATS.toJson();
+    stats.addProperty("sent", SENT.get());
+    stats.addProperty("received", RECEIVED.get());
+    stats.addProperty("decoded", DECODED.get());
+    return stats;
+  }
+
+  /**
+   * A single request, sent when its response is first read
+   */
+  static class Call extends HttpsURLConnection {
+
+    private final HttpClient client;
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private HttpResponse<InputStream> response;
+    private InputStream stream;
+
+    Call(URL url, HttpClient client) {
+      super(url);
+      this.client = client;
+    }
+
+    @Override
+    public void connect() {
+      // Connected when sent, the request properties can be set until then
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+      if (response != null) {
+        throw new IOException("The request is already sent");
+      }
+      setDoOutput(true);
+      return body;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+      send();
+      if (responseCode >= 400) {
+        throw new IOException(String.format("Server returned HTTP response code: %d for URL: %s", responseCode, url));
+      }
+      return stream;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+      return response != null && responseCode >= 400 ? stream : null;
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+      send();
+      return responseCode;
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+      if (!sent()) {
+        return null;
+      }
+      return response.headers().firstValue(name).orElse(null);
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+      if (!sent()) {
+        return Collections.emptyMap();
+      }
+      return response.headers().map();
+    }
+
+    @Override
+    public String getHeaderFieldKey(int n) {
+      List<String[]> fields = fields();
+      return n < fields.size() ? fields.get(n)[0] : null;
+    }
+
+    @Override
+    public String getHeaderField(int n) {
+      List<String[]> fields = fields();
+      return n < fields.size() ? fields.get(n)[1] : null;
+    }
+
+    @Override
+    public void disconnect() {
+      // The connection stays open in the client for the next calls
+    }
+
+    @Override
+    public boolean usingProxy() {
+      return false;
+    }
+
+    @Override
+    public String getCipherSuite() {
+      SSLSession ssl = sslSession();
+      return ssl == null ? null : ssl.getCipherSuite();
+    }
+
+    @Override
+    public Certificate[] getLocalCertificates() {
+      SSLSession ssl = sslSession();
+      return ssl == null ? null : ssl.getLocalCertificates();
+    }
+
+    @Override
+    public Certificate[] getServerCertificates() throws SSLPeerUnverifiedException {
+      SSLSession ssl = sslSession();
+      if (ssl == null) {
+        throw new SSLPeerUnverifiedException("The request is not sent");
+      }
+      return ssl.getPeerCertificates();
+    }
+
+    private SSLSession sslSession() {
+      return sent() ? response.sslSession().orElse(null) : null;
+    }
+
+    private boolean sent() {
+      try {
+        send();
+        return true;
+      } catch (IOException ex) {
+        return false;
+      }
+    }
+
+    /**
+     * The header fields in the order of HttpURLConnection : the status
+     * line without a key, then a field per header value
+     */
+    private List<String[]> fields() {
+      List<String[]> fields = new ArrayList<String[]>();
+      if (sent()) {
+        fields.add(new String[] { null, "HTTP/1.1 " + responseCode });
+        for (Map.Entry<String, List<String>> header : response.headers().map().entrySet()) {
+          for (String value : header.getValue()) {
+            fields.add(new String[] { header.getKey(), value });
+          }
+        }
+      }
+      return fields;
+    }
+
+    private void send() throws IOException {
+      if (response != null) {
+        return;
+      }
+      URI uri;
+      try {
+        uri = url.toURI();
+      } catch (URISyntaxException ex) {
+        throw new IOException(ex);
+      }
+      byte[] content = body.toByteArray();
+      HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+        .method(method, content.length > 0 || getDoOutput()
+          ? HttpRequest.BodyPublishers.ofByteArray(content)
+          : HttpRequest.BodyPublishers.noBody())
+        .header("Accept-Encoding", "gzip");
+      if (getReadTimeout() > 0) {
+        request.timeout(Duration.ofMillis(getReadTimeout()));
+      }
+      Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>(getRequestProperties());
+      for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+        if (header.getKey() == null || RESTRICTED.contains(header.getKey().toLowerCase())
+          || "accept-encoding".equalsIgnoreCase(header.getKey())) {
+          continue;
+        }
+        for (String value : header.getValue()) {
+          request.header(header.getKey(), value);
+        }
+      }
+      connected = true;
+
+      long start = System.nanoTime();
+      try {
+        response = client.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        STATS.record(System.nanoTime() - start, true);
+        throw new InterruptedIOException(ex.toString());
+      } catch (IOException ex) {
+        STATS.record(System.nanoTime() - start, true);
+        throw ex;
+      }
+      SENT.addAndGet(content.length);
+      responseCode = response.statusCode();
+      // A SOAP fault is an HTTP 500 but a valid answer
+      STATS.record(System.nanoTime() - start, responseCode >= 400 && responseCode != 500);
+
+      InputStream received = new Counting(response.body(), RECEIVED);
+      InputStream raw = received;
+      if ("gzip".equalsIgnoreCase(response.headers().firstValue("Content-Encoding").orElse(""))) {
+        raw = new GZIPInputStream(raw);
+      }
+      stream = new Drained(new Counting(raw, DECODED), received);
+    }
+  }
+
+  /**
+   * Reads the rest of the response body when the stream is closed. The
+   * client only keeps the connection open for the next calls once the
+   * body is read to the end, and the gzip decoder stops at the end of the
+   * compressed data.
+   */
+  static class Drained extends FilterInputStream {
+
+    private final InputStream body;
+
+    Drained(InputStream in, InputStream body) {
+      super(in);
+      this.body = body;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        body.transferTo(OutputStream.nullOutputStream());
+      } finally {
+        super.close();
+      }
+    }
+  }
+
+  /**
+   * Adds the bytes read from a stream to a counter
+   */
+  static class Counting extends FilterInputStream {
+
+    private final AtomicLong counter;
+
+    Counting(InputStream in, AtomicLong counter) {
+      super(in);
+      this.counter = counter;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        counter.incrementAndGet();
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int count = super.read(b, off, len);
+      if (count > 0) {
+        counter.addAndGet(count);
+      }
+      return count;
+    }
+  }
+
+  /**
+   * Trusts any certificate. As an extended trust manager, it also replaces
+   * the host name check which the HTTP client asks the TLS engine for.
+   */
+  static class TrustAll extends X509ExtendedTrustManager {
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType) {
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType) {
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) {
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+      return new X509Certificate[0];
+    }
+  }
+}
@@ -0,0 +1,68 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Runs each request on its own virtual thread. A request spends nearly all
+  # its time blocked on the vCenter SOAP calls, so virtual threads allow a
+  # large number of outstanding items without as many platform threads.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+class VirtualWorkers implements Dispatcher {
+
+  private final ExecutorService executor;
+  private final Semaphore permits;
+  private final int maxThreads;
+  private final String rejectionPolicy;
+  private final AtomicLong rejected = new AtomicLong();
+
+  VirtualWorkers(int maxThreads, String rejectionPolicy) {
+    this.executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("vmbix-vworker-", 1).factory());
+    this.permits = new Semaphore(maxThreads);
+    this.maxThreads = maxThreads;
+    this.rejectionPolicy = rejectionPolicy;
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    if (!permits.tryAcquire()) {
+      rejected.incrementAndGet();
+      WorkerPool.reject(task, rejectionPolicy);
+      return;
+    }
+    executor.execute(() -> {
+      try {
+        task.run();
+      } finally {
+        permits.release();
+      }
+    });
+  }
+
+  @Override
+  public int getThreadCount() {
+    return maxThreads - permits.availablePermits();
+  }
+
+  @Override
+  public int getQueueSize() {
+    return 0;
+  }
+
+  @Override
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+}
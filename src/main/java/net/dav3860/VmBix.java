@@ -39,7 +39,16 @@ import java.rmi.*;
 import java.io.*;
 import java.util.*;
 import java.util.regex.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.net.URL;
 import com.vmware.vim25.*;
 import com.vmware.vim25.mo.*;
@@ -48,6 +57,7 @@ import jargs.gnu.CmdLineParser;
 import java.lang.management.*;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.Cache;
 import org.slf4j.Logger;
@@ -59,6 +69,31 @@ public class VmBix {
   public static final String INTERVAL         = "300";
   public static final String USEUUID          = "false";
   public static final String MAXCONNECTIONS   = "150";
+  public static final String CORETHREADS      = "10";
+  public static final String MAXTHREADS       = "50";
+  public static final String THREADKEEPALIVE  = "60";
+  public static final String REJECTIONPOLICY  = "notsupported";
+  public static final String VIRTUALTHREADS   = "false";
+  public static final String MAXVIRTUALTHREADS = "5000";
+  public static final String IDLETIMEOUT      = "0";
+  public static final String COMPRESSTHRESHOLD = "0";
+  public static final String BULKTHREADS      = "8";
+  public static final String BULKTIMEOUT      = "30000";
+  public static final String METRICSPORT      = "0";
+  public static final String INDEXINTERVAL    = "300";
+  public static final String INDEXMINAGE      = "60";
+  public static final String MIRROR           = "false";
+  public static final String POOLEDHTTP       = "false";
+  public static final String SESSIONCHECK     = "30";
+  public static final String SESSIONS         = "1";
+  public static final String SESSIONLIMIT     = "0";
+  public static final String SESSIONWAIT      = "10000";
+  public static final String TRAPPERPORT      = "10051";
+  public static final String TRAPPERINTERVAL  = "60";
+  public static final String TRAPPERBATCHSIZE = "1000";
+  public static final String TRAPPERTHREADS   = "4";
+  public static final String TRAPPERTIMEOUT   = "30000";
+  public static final String TRAPPERHOST      = ActiveCollector.ID;
   public static final String CONNECTTIMEOUT   = "30000";
   public static final String READTIMEOUT      = "30000";
   public static final String ESCAPECHARS      = "false";
@@ -76,21 +111,38 @@ public class VmBix {
   public static final String HRICACHESIZE     = "100";
   public static final String CLCACHETTL       = "15";
   public static final String CLCACHESIZE      = "100";
+  public static final String DCCACHETTL       = "15";
+  public static final String DCCACHESIZE      = "100";
+  public static final String POOLCACHETTL     = "15";
+  public static final String POOLCACHESIZE    = "100";
+  public static final String NEGCACHETTL      = "60";
+  public static final String NEGCACHESIZE     = "1000";
+  public static final String SUMMARYTTL       = "30";
+  public static final String RUNTIMETTL       = "30";
+  public static final String GUESTTTL         = "60";
+  public static final String CONFIGTTL        = "120";
+  public static final String SNAPSHOTCACHESIZE = "5000";
   
   
-  static ArrayList<Socket> sockets;
+  static Dispatcher workers;
+  static EntityIndex entityIndex;
+  static InventoryMirror inventoryMirror;
+  static SessionMonitor sessionMonitor;
+  static SessionPool sessionPool;
+  static ActiveCollector activeCollector;
+  static ExecutorService bulkWorkers;
   static long requests;
-  static ServiceInstance serviceInstance;
-  static InventoryNavigator inventoryNavigator;
-  static PerformanceManager performanceManager;
+  static final SingleFlight<String, ValidationResult> inFlight = new SingleFlight<String, ValidationResult>();
+  // The current vCenter session, replaced as a whole on reconnection
+  static final AtomicReference<Session> session = new AtomicReference<Session>();
+  static final AtomicLong epochs = new AtomicLong();
   
-  static Cache<String, ManagedEntity> vmCache;
-  static Cache<String, ManagedEntity> esxiCache;
-  static Cache<String, ManagedEntity> dsCache;
-  static Cache<String, ManagedEntity> clCache;
+  static EntityCache entityCache;
   static Cache<String, List> counterCache;
   static Cache<String, PerfMetricId[]> hostPerfCache;
   static Cache<String, HostRuntimeInfo> hriCache;
+  static Cache<String, Boolean> negCache;
+  static SnapshotCache snapshotCache;
   
   static String  sdkUrl;
   static String  uname;
@@ -101,6 +153,33 @@ public class VmBix {
   static Integer interval         = Integer.parseInt(INTERVAL);
   static Boolean useUuid          = Boolean.parseBoolean(USEUUID);
   static Integer maxConnections   = Integer.parseInt(MAXCONNECTIONS);
+  static Integer coreThreads      = Integer.parseInt(CORETHREADS);
+  static Integer maxThreads       = Integer.parseInt(MAXTHREADS);
+  static Integer threadKeepAlive  = Integer.parseInt(THREADKEEPALIVE);
+  static String  rejectionPolicy  = REJECTIONPOLICY;
+  static Boolean virtualThreads   = Boolean.parseBoolean(VIRTUALTHREADS);
+  static Integer maxVirtualThreads = Integer.parseInt(MAXVIRTUALTHREADS);
+  static Integer idleTimeout      = Integer.parseInt(IDLETIMEOUT);
+  static Integer compressThreshold = Integer.parseInt(COMPRESSTHRESHOLD);
+  static Integer bulkThreads      = Integer.parseInt(BULKTHREADS);
+  static Integer bulkTimeout      = Integer.parseInt(BULKTIMEOUT);
+  static Integer metricsPort      = Integer.parseInt(METRICSPORT);
+  static Integer indexInterval    = Integer.parseInt(INDEXINTERVAL);
+  static Integer indexMinAge      = Integer.parseInt(INDEXMINAGE);
+  static Boolean mirror           = Boolean.parseBoolean(MIRROR);
+  static Boolean pooledHttp       = Boolean.parseBoolean(POOLEDHTTP);
+  static Integer sessionCheck     = Integer.parseInt(SESSIONCHECK);
+  static Integer sessions         = Integer.parseInt(SESSIONS);
+  static Integer sessionLimit     = Integer.parseInt(SESSIONLIMIT);
+  static Integer sessionWait      = Integer.parseInt(SESSIONWAIT);
+  static String  trapperServer;
+  static Integer trapperPort      = Integer.parseInt(TRAPPERPORT);
+  static Integer trapperInterval  = Integer.parseInt(TRAPPERINTERVAL);
+  static Integer trapperBatchSize = Integer.parseInt(TRAPPERBATCHSIZE);
+  static Integer trapperThreads   = Integer.parseInt(TRAPPERTHREADS);
+  static Integer trapperTimeout   = Integer.parseInt(TRAPPERTIMEOUT);
+  static String  trapperHost      = TRAPPERHOST;
+  static Map<String, String[]> trapperItems = new LinkedHashMap<String, String[]>();
   static Integer connectTimeout   = Integer.parseInt(CONNECTTIMEOUT);
   static Integer readTimeout      = Integer.parseInt(READTIMEOUT);
   static Boolean escapeChars      = Boolean.parseBoolean(ESCAPECHARS);
@@ -118,6 +197,17 @@ public class VmBix {
   static Integer hriCacheSize     = Integer.parseInt(HRICACHESIZE);
   static Integer clCacheTtl       = Integer.parseInt(CLCACHETTL);
   static Integer clCacheSize      = Integer.parseInt(CLCACHESIZE);
+  static Integer dcCacheTtl       = Integer.parseInt(DCCACHETTL);
+  static Integer dcCacheSize      = Integer.parseInt(DCCACHESIZE);
+  static Integer poolCacheTtl     = Integer.parseInt(POOLCACHETTL);
+  static Integer poolCacheSize    = Integer.parseInt(POOLCACHESIZE);
+  static Integer negCacheTtl      = Integer.parseInt(NEGCACHETTL);
+  static Integer negCacheSize     = Integer.parseInt(NEGCACHESIZE);
+  static Integer summaryTtl       = Integer.parseInt(SUMMARYTTL);
+  static Integer runtimeTtl       = Integer.parseInt(RUNTIMETTL);
+  static Integer guestTtl         = Integer.parseInt(GUESTTTL);
+  static Integer configTtl        = Integer.parseInt(CONFIGTTL);
+  static Integer snapshotCacheSize = Integer.parseInt(SNAPSHOTCACHESIZE);
   
   static final Logger LOG = LoggerFactory.getLogger(VmBix.class);
     
@@ -153,7 +243,6 @@ public class VmBix {
   
   public static void main(String[] args) {
     try {
-      sockets = new ArrayList<Socket>();
       String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
       
       CmdLineParser parser = new CmdLineParser();
@@ -209,11 +298,45 @@ public class VmBix {
           // Common parameters
           interval         = Integer.parseInt(prop.getProperty("interval", INTERVAL));
           maxConnections   = Integer.parseInt(prop.getProperty("maxconnections", MAXCONNECTIONS));
+          coreThreads      = Integer.parseInt(prop.getProperty("corethreads", CORETHREADS));
+          maxThreads       = Integer.parseInt(prop.getProperty("maxthreads", MAXTHREADS));
+          threadKeepAlive  = Integer.parseInt(prop.getProperty("threadkeepalive", THREADKEEPALIVE));
+          rejectionPolicy  = prop.getProperty("rejectionpolicy", REJECTIONPOLICY);
+          virtualThreads   = Boolean.parseBoolean(prop.getProperty("virtualthreads", VIRTUALTHREADS));
+          maxVirtualThreads = Integer.parseInt(prop.getProperty("maxvirtualthreads", MAXVIRTUALTHREADS));
+          idleTimeout      = Integer.parseInt(prop.getProperty("idletimeout", IDLETIMEOUT));
+          compressThreshold = Integer.parseInt(prop.getProperty("compressthreshold", COMPRESSTHRESHOLD));
+          bulkThreads      = Integer.parseInt(prop.getProperty("bulkthreads", BULKTHREADS));
+          bulkTimeout      = Integer.parseInt(prop.getProperty("bulktimeout", BULKTIMEOUT));
+          metricsPort      = Integer.parseInt(prop.getProperty("metricsport", METRICSPORT));
+          indexInterval    = Integer.parseInt(prop.getProperty("indexinterval", INDEXINTERVAL));
+          indexMinAge      = Integer.parseInt(prop.getProperty("indexminage", INDEXMINAGE));
+          mirror           = Boolean.parseBoolean(prop.getProperty("mirror", MIRROR));
+          pooledHttp       = Boolean.parseBoolean(prop.getProperty("pooledhttp", POOLEDHTTP));
+          sessionCheck     = Integer.parseInt(prop.getProperty("sessioncheck", SESSIONCHECK));
+          sessions         = Integer.parseInt(prop.getProperty("sessions", SESSIONS));
+          sessionLimit     = Integer.parseInt(prop.getProperty("sessionlimit", SESSIONLIMIT));
+          sessionWait      = Integer.parseInt(prop.getProperty("sessionwait", SESSIONWAIT));
           connectTimeout   = Integer.parseInt(prop.getProperty("connecttimeout", CONNECTTIMEOUT));
           readTimeout      = Integer.parseInt(prop.getProperty("readtimeout", READTIMEOUT));
           useUuid          = Boolean.parseBoolean(prop.getProperty("useuuid", USEUUID));
           escapeChars      = Boolean.parseBoolean(prop.getProperty("escapechars", ESCAPECHARS));
           
+          // Active mode parameters
+          trapperServer    = prop.getProperty("trapperserver");
+          trapperPort      = Integer.parseInt(prop.getProperty("trapperport", TRAPPERPORT));
+          trapperInterval  = Integer.parseInt(prop.getProperty("trapperinterval", TRAPPERINTERVAL));
+          trapperBatchSize = Integer.parseInt(prop.getProperty("trapperbatchsize", TRAPPERBATCHSIZE));
+          trapperThreads   = Integer.parseInt(prop.getProperty("trapperthreads", TRAPPERTHREADS));
+          trapperTimeout   = Integer.parseInt(prop.getProperty("trappertimeout", TRAPPERTIMEOUT));
+          trapperHost      = prop.getProperty("trapperhost", TRAPPERHOST).trim();
+          for (String type : ActiveCollector.TYPES.keySet()) {
+            String keys = prop.getProperty("trapperitems." + type, "").trim();
+            if (!keys.isEmpty()) {
+              trapperItems.put(type, keys.split("\\s+"));
+            }
+          }
+          
           // Caching parameters
           vmCacheTtl       = Integer.parseInt(prop.getProperty("vmcachettl", VMCACHETTL));
           esxiCacheTtl     = Integer.parseInt(prop.getProperty("esxicachettl", ESXICACHETTL));
@@ -222,6 +345,9 @@ public class VmBix {
           counterCacheTtl  = Integer.parseInt(prop.getProperty("countercachettl", COUNTERCACHETTL));
           hriCacheTtl      = Integer.parseInt(prop.getProperty("hricachettl", HRICACHETTL));
           clCacheTtl       = Integer.parseInt(prop.getProperty("clcachettl", CLCACHETTL));
+          dcCacheTtl       = Integer.parseInt(prop.getProperty("dccachettl", DCCACHETTL));
+          poolCacheTtl     = Integer.parseInt(prop.getProperty("poolcachettl", POOLCACHETTL));
+          negCacheTtl      = Integer.parseInt(prop.getProperty("negcachettl", NEGCACHETTL));
           
           vmCacheSize      = Integer.parseInt(prop.getProperty("vmcachesize", VMCACHESIZE));
           esxiCacheSize    = Integer.parseInt(prop.getProperty("esxicachesize", ESXICACHESIZE));
@@ -230,6 +356,15 @@ public class VmBix {
           counterCacheSize = Integer.parseInt(prop.getProperty("countercachesize", COUNTERCACHESIZE));
           hriCacheSize     = Integer.parseInt(prop.getProperty("hricachesize", HRICACHESIZE));
           clCacheSize      = Integer.parseInt(prop.getProperty("clcachesize", CLCACHESIZE));
+          dcCacheSize      = Integer.parseInt(prop.getProperty("dccachesize", DCCACHESIZE));
+          poolCacheSize    = Integer.parseInt(prop.getProperty("poolcachesize", POOLCACHESIZE));
+          negCacheSize     = Integer.parseInt(prop.getProperty("negcachesize", NEGCACHESIZE));
+          
+          summaryTtl       = Integer.parseInt(prop.getProperty("summaryttl", SUMMARYTTL));
+          runtimeTtl       = Integer.parseInt(prop.getProperty("runtimettl", RUNTIMETTL));
+          guestTtl         = Integer.parseInt(prop.getProperty("guestttl", GUESTTTL));
+          configTtl        = Integer.parseInt(prop.getProperty("configttl", CONFIGTTL));
+          snapshotCacheSize = Integer.parseInt(prop.getProperty("snapshotcachesize", SNAPSHOTCACHESIZE));
           
           } catch (IOException e) {
           LOG.info("There was a problem with the configuration parameters.");
@@ -244,6 +379,12 @@ public class VmBix {
         System.exit(2);
       }
       
+      // The session monitor is the only one to log in again
+      if (sessionCheck <= 0) {
+        usage("sessioncheck must be greater than 0");
+        System.exit(1);
+      }
+      
       if (pidFile != null && pid != null) {
         createPid(pidFile, pid);
       }
@@ -251,13 +392,52 @@ public class VmBix {
       Shutdown sh = new Shutdown();
       Runtime.getRuntime().addShutdownHook(sh);
       
-      vmCache       = CacheBuilder.newBuilder().maximumSize(vmCacheSize).expireAfterWrite(vmCacheTtl, TimeUnit.MINUTES).recordStats().build();
-      esxiCache     = CacheBuilder.newBuilder().maximumSize(esxiCacheSize).expireAfterWrite(esxiCacheTtl, TimeUnit.MINUTES).recordStats().build();
-      dsCache       = CacheBuilder.newBuilder().maximumSize(dsCacheSize).expireAfterWrite(dsCacheTtl, TimeUnit.MINUTES).recordStats().build();
-      hostPerfCache = CacheBuilder.newBuilder().maximumSize(perfIdCacheSize).expireAfterWrite(perfIdCacheTtl, TimeUnit.MINUTES).recordStats().build();
-      counterCache  = CacheBuilder.newBuilder().maximumSize(counterCacheSize).expireAfterWrite(counterCacheTtl, TimeUnit.MINUTES).recordStats().build();
-      hriCache      = CacheBuilder.newBuilder().maximumSize(hriCacheSize).expireAfterWrite(hriCacheTtl, TimeUnit.MINUTES).recordStats().build();
-      clCache       = CacheBuilder.newBuilder().maximumSize(clCacheSize).expireAfterWrite(clCacheTtl, TimeUnit.MINUTES).recordStats().build();
+      // The caches are refreshed in the background with the current session
+      entityCache   = new EntityCache((type, id, uuid) -> {
+          ManagedEntity me = newConnection(null).findManagedEntity(id, type, uuid);
+          return me == null ? null : me.getMOR();
+        })
+        .add("vm", "VirtualMachine", vmCacheTtl, vmCacheSize)
+        .add("esxi", "HostSystem", esxiCacheTtl, esxiCacheSize)
+        .add("ds", "Datastore", dsCacheTtl, dsCacheSize)
+        .add("cluster", "ClusterComputeResource", clCacheTtl, clCacheSize)
+        .add("dc", "Datacenter", dcCacheTtl, dcCacheSize)
+        .add("pool", "ResourcePool", poolCacheTtl, poolCacheSize);
+      hostPerfCache = new RefreshingCache<PerfMetricId[]>("perf", perfIdCacheSize, perfIdCacheTtl, TimeUnit.MINUTES, key -> {
+          // The key is interval:host
+          int colon = key.indexOf(':');
+          Connection connection = newConnection(null);
+          HostSystem host = (HostSystem) connection.getManagedEntityByName(key.substring(colon + 1), "HostSystem");
+          return host == null ? null
+            : connection.performanceManager.queryAvailablePerfMetric(host, null, null, Integer.parseInt(key.substring(0, colon)));
+        }).cache;
+      counterCache  = new RefreshingCache<List>("counter", counterCacheSize, counterCacheTtl, TimeUnit.MINUTES,
+        name -> newConnection(null).findCounter(name)).cache;
+      hriCache      = new RefreshingCache<HostRuntimeInfo>("hri", hriCacheSize, hriCacheTtl, TimeUnit.MINUTES, name -> {
+          HostSystem host = (HostSystem) newConnection(null).getManagedEntity(name, "HostSystem");
+          return host == null ? null : host.getRuntime();
+        }).cache;
+      snapshotCache = new SnapshotCache()
+        .add("summary", summaryTtl, snapshotCacheSize)
+        .add("runtime", runtimeTtl, snapshotCacheSize)
+        .add("guest", guestTtl, snapshotCacheSize)
+        .add("config", configTtl, snapshotCacheSize)
+        .add("vms", summaryTtl, snapshotCacheSize);
+      negCache      = CacheBuilder.newBuilder().maximumSize(negCacheSize).expireAfterWrite(negCacheTtl, TimeUnit.SECONDS).recordStats().build();
+      
+      if (virtualThreads) {
+        LOG.info("running requests on virtual threads");
+        workers = new VirtualWorkers(maxVirtualThreads, rejectionPolicy);
+        bulkWorkers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("vmbix-vbulk-", 1).factory());
+      } else {
+        // maxconnections bounds the requests waiting for a worker thread
+        WorkerPool pool = new WorkerPool(coreThreads, Math.max(coreThreads, maxThreads), threadKeepAlive, maxConnections, rejectionPolicy);
+        pool.prestartAllCoreThreads();
+        workers = pool;
+        // The keys of a bulk request run on their own threads, so that a
+        // bulk request never waits for the workers it is holding
+        bulkWorkers = Executors.newFixedThreadPool(bulkThreads, new WorkerPool.Factory("vmbix-bulk-"));
+      }
       
       while (true) {
         try {
@@ -317,8 +497,20 @@ public class VmBix {
     + "vmbix.stats[threads]                                        \n"
     + "vmbix.stats[queue]                                          \n"
     + "vmbix.stats[requests]                                       \n"
-    + "vmbix.stats[cachesize,(vm|esxi|ds|perf|counter|hri|cluster)]\n"
-    + "vmbix.stats[hitrate,(vm|esxi|ds|perf|counter|hri|cluster)]  \n"
+    + "vmbix.stats[coalesced]                                      \n"
+    + "vmbix.stats[handlers]                                       \n"
+    + "vmbix.stats[mirror]                                         \n"
+    + "vmbix.stats[reconnects]                                     \n"
+    + "vmbix.stats[epoch]                                          \n"
+    + "vmbix.stats[pool]                                           \n"
+    + "vmbix.stats[transport]                                      \n"
+    + "vmbix.stats[trapper]                                        \n"
+    + "vmbix.stats.handler[(key|handler),(calls|errors|latency)]   \n"
+    + "vmbix.stats[cachesize,(vm|esxi|ds|cluster|dc|pool|perf|counter|hri|neg|summary|runtime|guest|config|vms)]\n"
+    + "vmbix.stats[hitrate,(vm|esxi|ds|cluster|dc|pool|perf|counter|hri|neg|summary|runtime|guest|config|vms)]\n"
+    + "vmbix.stats[refresh,(vm|esxi|ds|cluster|dc|pool|perf|counter|hri)]\n"
+    + "vmbix.stats[neghits]                                        \n"
+    + "vmbix.bulk[\"key\",...] or a JSON array of keys              \n"
     + "about                                                       \n"
     + "cluster.discovery                                           \n"
     + "cluster.cpu[name,free]                                      \n"
@@ -440,48 +632,83 @@ public class VmBix {
     );
   }
   
-  public static synchronized void putConnection(Socket socket) throws IOException {
-    if (sockets.size() < maxConnections) {
-      sockets.add(socket);
-      if (sockets.size() > (Thread.activeCount() - 2)) {
-        Request request = new Request(serviceInstance, null, inventoryNavigator, performanceManager);
-        Connection thread = new Connection(request);
-        thread.start();
-      }
-      } else {
-      LOG.warn("Maximum concurrent connections reached, closing connection");
-      socket.close();
-    }
+  /**
+   * Hands a decoded request to the worker pool. The request leases a
+   * vCenter session of the pool when a worker starts it.
+   */
+  public static void putConnection(Request request) {
+    workers.execute(new Connection(request, null));
   }
   
-  public static synchronized Request pullConnection() {
-    if (sockets.isEmpty()) {
-      return null;
+  /**
+   * Returns a connection bound to the current vCenter session, used to
+   * evaluate items outside of a Zabbix request
+   */
+  static Connection newConnection(String message) {
+    return new Connection(new Request(null, message), session.get());
+  }
+  
+  /**
+   * Logs in to vCenter and replaces the current session. The requests are
+   * never blocked : they use either the previous session or the new one.
+   * The previous session is logged out when its requests are done, or at
+   * once if it has expired.
+   */
+  public static Boolean updateConnection(boolean expired) {
+    Session next = login();
+    if (next == null) {
+      return false;
+    }
+    Session previous = session.getAndSet(next);
+    if (previous != null) {
+      // The caches hold references and values which are valid in any
+      // session, unless this is another vCenter behind the same URL
+      if (!Objects.equals(previous.instanceUuid, next.instanceUuid)) {
+        LOG.warn("The vCenter instance changed, clearing the caches");
+        invalidateCaches();
       } else {
-      
-      Request request = new Request(serviceInstance, sockets.remove(0), null, null);
-      return request;
+        // The objects not found while the session was failing may exist
+        negCache.invalidateAll();
+      }
+      if (inventoryMirror != null) {
+        inventoryMirror.sessionChanged();
+      }
+      previous.retire(expired);
     }
+    return true;
   }
   
-  public static synchronized Boolean updateConnection() throws IOException {
+  /**
+   * Logs in a new primary session with the next epoch, returns null on
+   * error
+   */
+  static Session login() {
     try {
-      serviceInstance = new ServiceInstance(new URL(sdkUrl), uname, passwd, true, connectTimeout, readTimeout);
-      if (serviceInstance == null) {
-        LOG.error("serviceInstance in null! Connection failed.");
-        return false;
-      }
-      Folder rootFolder = serviceInstance.getRootFolder();
-      inventoryNavigator = new InventoryNavigator(serviceInstance.getRootFolder());
-      performanceManager = serviceInstance.getPerformanceManager();
+      Session next = new Session(connect(), epochs.incrementAndGet());
       // retrieve all the available performance counters
-      PerfCounterInfo[] pcis = performanceManager.getPerfCounter();
-      return true;
+      PerfCounterInfo[] pcis = next.performanceManager.getPerfCounter();
+      return next;
     }
     catch (Exception ex) {
-      ex.printStackTrace();
+      LOG.error("Connection error: " + ex.toString());
     }
-    return false;
+    return null;
+  }
+  
+  /**
+   * Logs in to vCenter
+   */
+  static ServiceInstance connect() throws Exception {
+    return new ServiceInstance(new URL(sdkUrl), uname, passwd, true, connectTimeout, readTimeout);
+  }
+  
+  static void invalidateCaches() {
+    entityCache.invalidateAll();
+    hostPerfCache.invalidateAll();
+    counterCache.invalidateAll();
+    hriCache.invalidateAll();
+    negCache.invalidateAll();
+    snapshotCache.invalidateAll();
   }
   
   public static synchronized void shutdown() {
@@ -492,7 +719,10 @@ public class VmBix {
       LOG.error("Error deleting pid: " + e.toString());
     }
     try {
-      serviceInstance.getServerConnection().logout();
+      if (sessionPool != null) {
+        sessionPool.logout();
+      }
+      session.get().serviceInstance.getServerConnection().logout();
       LOG.info("disconnected");
       } catch (Exception e) {
       //Catch exception if any
@@ -501,15 +731,6 @@ public class VmBix {
     LOG.info("Shutted down");
   }
   
-  public static synchronized Request updateConnectionSafe() {
-    try {
-      updateConnection();
-      } catch (IOException e) {
-      LOG.error("Connection update error: " + e.toString());
-    }
-    return new Request(serviceInstance, null, inventoryNavigator, performanceManager);
-  }
-  
   static void sleep(int delay) {
     try {
       Thread.sleep(delay);
@@ -519,734 +740,578 @@ public class VmBix {
   }
   
   static void server() throws IOException {
-    ServerSocket listen;
-    if (updateConnection() == false) {
+    ZabbixServer listen;
+    if (pooledHttp) {
+      // Before the SDK URL is created by the first login
+      try {
+        SoapTransport.install(connectTimeout);
+      } catch (Exception ex) {
+        LOG.error("Cannot use the pooled HTTP transport: " + ex.toString());
+      }
+    }
+    if (updateConnection(false) == false) {
       LOG.error("Cannot connect to the VMWare SDK URL");
       System.exit(3);
     }
+    sessionPool = new SessionPool(sessions, sessionLimit, sessionWait);
+    sessionPool.start();
+    sessionMonitor = new SessionMonitor(sessionCheck);
+    sessionMonitor.start();
+    if (indexInterval > 0) {
+      entityIndex = new EntityIndex(indexInterval, indexMinAge);
+      entityIndex.start();
+    }
+    if (mirror) {
+      inventoryMirror = new InventoryMirror();
+      inventoryMirror.start();
+    }
     if (ipaddr != null) {
       LOG.info("starting server on " + ipaddr + "/" + port.toString());
       InetAddress addr = InetAddress.getByName(ipaddr);
-      listen = new ServerSocket(port, 50, addr);//(port, backlog, bindaddr)
+      listen = new ZabbixServer(new InetSocketAddress(addr, port), 50, idleTimeout);//(bindaddr:port, backlog, idle timeout)
       } else {
       LOG.info("starting server on port " + port.toString());
-      listen = new ServerSocket(port);//(port)
+      listen = new ZabbixServer(new InetSocketAddress(port), 50, idleTimeout);//(port, backlog, idle timeout)
     }
     LOG.info("server started");
-    while (true) {
-      Socket connected = listen.accept();
-      requests++;
-      putConnection(connected);
-    }
+    if (metricsPort > 0) {
+      InetSocketAddress metricsAddress = ipaddr != null
+        ? new InetSocketAddress(InetAddress.getByName(ipaddr), metricsPort)
+        : new InetSocketAddress(metricsPort);
+      new MetricsServer(metricsAddress).start();
+    }
+    if (trapperServer != null && !trapperServer.isEmpty() && !trapperItems.isEmpty()) {
+      ZabbixSender sender = new ZabbixSender(trapperServer, trapperPort, trapperTimeout);
+      activeCollector = new ActiveCollector(sender, () -> newConnection(null), trapperItems, trapperHost,
+        trapperBatchSize, trapperThreads);
+      activeCollector.start(trapperInterval);
+    }
+    // Accepts the connections and decodes the requests, which are then
+    // queued with putConnection() for the worker threads
+    listen.serve();
   }
   
   static class Request {
     
-    public Socket socket;
-    public ServiceInstance serviceInstance;
-    public InventoryNavigator inventoryNavigator;
-    public PerformanceManager performanceManager;
+    public ZabbixServer.Client client;
+    public String message;
     
-    Request(ServiceInstance si, Socket socket, InventoryNavigator iv, PerformanceManager pm) {
-      this.socket = socket;
-      this.serviceInstance = si;
-      this.inventoryNavigator = iv;
-      this.performanceManager = pm;
+    Request(ZabbixServer.Client client, String message) {
+      this.client = client;
+      this.message = message;
     }
   }
   
-  static class Connection extends Thread {
+  static class Connection implements Runnable, ItemContext, ActiveCollector.Source {
+    
+    static final ByteBuffer NOTSUPPORTED = ByteBuffer.wrap(new byte[] {
+      'Z', 'B', 'X', '_', 'N', 'O',
+      'T', 'S', 'U', 'P', 'P', 'O',
+      'R', 'T', 'E', 'D', '\0'
+    }).asReadOnlyBuffer();
     
-    Socket connected;
+    ZabbixServer.Client connected;
+    String message;
+    Session session;
     ServiceInstance serviceInstance;
     InventoryNavigator inventoryNavigator;
     PerformanceManager performanceManager;
+    // The objects found by the keys of a bulk request, or null
+    SingleFlight<String, ManagedEntity> lookups;
     
-    Connection(Request request) {
-      this.serviceInstance = request.serviceInstance;
-      this.inventoryNavigator = request.inventoryNavigator;
-      this.performanceManager = request.performanceManager;
+    /**
+      * The session may be null, the connection then leases a session of
+      * the pool when it runs
+    */
+    Connection(Request request, Session session) {
+      this.connected = request.client;
+      this.message = request.message;
+      if (session != null) {
+        bind(session);
+      }
     }
     
-    static private String checkPattern(Pattern pattern, String string) {
-      Matcher matcher = pattern.matcher(string);
-      if (matcher.find()) {
-        return matcher.group(1);
-      }
-      return null;
+    private void bind(Session session) {
+      this.session = session;
+      this.serviceInstance = session.serviceInstance;
+      this.inventoryNavigator = session.inventoryNavigator;
+      this.performanceManager = session.performanceManager;
     }
     
-    static private String[] checkMultiplePattern(Pattern pattern, String string) {
-      Matcher matcher = pattern.matcher(string);
-      if (matcher.find()) {
-        ArrayList<String> list = new ArrayList<String>();
-        for (int m = 1; m < matcher.groupCount() + 1; m++) {
-          list.add(matcher.group(m));
+    static final String BULK = "vmbix.bulk[";
+    
+    // The item keys and their handlers, built once
+    static final KeyRouter<Connection> ROUTER = loadHandlers(new KeyRouter<Connection>()
+      .add("ping",                              (c, p) -> c.getPing())
+      .add("about",                             (c, p) -> c.getAbout())
+      .add("vmbix.ping",                        (c, p) -> c.getPing())
+      .add("vmbix.version",                     (c, p) -> c.getVersion())
+      .add("vmbix.stats[threads]",              (c, p) -> c.getThreadCount())
+      .add("vmbix.stats[queue]",                (c, p) -> c.getConnectionQueue())
+      .add("vmbix.stats[requests]",             (c, p) -> c.getRequestCount())
+      .add("vmbix.stats[coalesced]",            (c, p) -> c.getCoalescedCount())
+      .add("vmbix.stats[handlers]",             (c, p) -> c.getHandlerStats())
+      .add("vmbix.stats[mirror]",               (c, p) -> c.getMirrorStats())
+      .add("vmbix.stats[reconnects]",           (c, p) -> c.getReconnectCount())
+      .add("vmbix.stats[epoch]",                (c, p) -> c.getSessionEpoch())
+      .add("vmbix.stats[pool]",                 (c, p) -> c.getPoolStats())
+      .add("vmbix.stats[transport]",            (c, p) -> c.getTransportStats())
+      .add("vmbix.stats[trapper]",              (c, p) -> c.getTrapperStats())
+      .add("vmbix.stats.handler[*,calls]",      (c, p) -> c.getHandlerStats(p[0], "calls"))
+      .add("vmbix.stats.handler[*,errors]",     (c, p) -> c.getHandlerStats(p[0], "errors"))
+      .add("vmbix.stats.handler[*,latency]",    (c, p) -> c.getHandlerStats(p[0], "latency"))
+      .add("vmbix.stats[cachesize,*]",          (c, p) -> c.getCacheSize(p[0]))
+      .add("vmbix.stats[hitrate,*]",            (c, p) -> c.getCacheHitRate(p[0]))
+      .add("vmbix.stats[refresh,*]",            (c, p) -> c.getCacheRefreshStats(p[0]))
+      .add("vmbix.stats[neghits]",              (c, p) -> c.getNegativeHits())
+      .add("event.latest",                      (c, p) -> c.getLatestEvent())
+      .add("cluster.discovery",                 (c, p) -> c.getClusters())
+      .add("cluster.cpu[*,free]",               (c, p) -> c.getClusterCpuFree(p[0]))
+      .add("cluster.cpu[*,total]",              (c, p) -> c.getClusterCpuTotal(p[0]))
+      .add("cluster.cpu[*,usage]",              (c, p) -> c.getClusterCpuUsage(p[0]))
+      .add("cluster.cpu.num[*,threads]",        (c, p) -> c.getClusterCpuThreads(p[0]))
+      .add("cluster.cpu.num[*,cores]",          (c, p) -> c.getClusterCpuCores(p[0]))
+      .add("cluster.mem[*,free]",               (c, p) -> c.getClusterMemFree(p[0]))
+      .add("cluster.mem[*,total]",              (c, p) -> c.getClusterMemTotal(p[0]))
+      .add("cluster.mem[*,usage]",              (c, p) -> c.getClusterMemUsage(p[0]))
+      .add("cluster.hosts[*,online]",           (c, p) -> c.getClusterHostsOnline(p[0]))
+      .add("cluster.hosts[*,maint]",            (c, p) -> c.getClusterHostsMaint(p[0]))
+      .add("cluster.hosts[*,total]",            (c, p) -> c.getClusterHostsTotal(p[0]))
+      .add("datacenter.discovery",              (c, p) -> c.getDatacenters())
+      .add("datacenter.status[*,overall]",      (c, p) -> c.getDatacenterStatus(p[0], "overall"))
+      .add("datacenter.status[*,config]",       (c, p) -> c.getDatacenterStatus(p[0], "config"))
+      .add("pool.discovery",                    (c, p) -> c.getPools())
+      .add("pool.cpu[*,usage]",                 (c, p) -> c.getPoolCpuUsage(p[0]))
+      .add("pool.mem[*,usage]",                 (c, p) -> c.getPoolMemUsage(p[0]))
+      .add("esx.discovery",                     (c, p) -> c.getHosts())
+      .add("esx.connection[*]",                 (c, p) -> c.getHostConnection(p[0]))
+      .add("esx.uptime[*]",                     (c, p) -> c.getHostUptime(p[0]))
+      .add("esx.status[*]",                     (c, p) -> c.getHostStatus(p[0]))
+      .add("esx.name[*]",                       (c, p) -> c.getHostName(p[0]))
+      .add("esx.maintenance[*]",                (c, p) -> c.getHostMaintenance(p[0]))
+      .add("esx.cpu.load[*,used]",              (c, p) -> c.getHostCpuUsed(p[0]))
+      .add("esx.cpu.load[*,total]",             (c, p) -> c.getHostCpuTotal(p[0]))
+      .add("esx.cpu.load[*,cores]",             (c, p) -> c.getHostCpuCores(p[0]))
+      .add("esx.vms.count[*]",                  (c, p) -> c.getHostVMs(p[0]))
+      .add("esx.path[*,disabled]",              (c, p) -> c.getHostDisabledPaths(p[0]))
+      .add("esx.path[*,active]",                (c, p) -> c.getHostActivePaths(p[0]))
+      .add("esx.path[*,standby]",               (c, p) -> c.getHostStandbyPaths(p[0]))
+      .add("esx.path[*,dead]",                  (c, p) -> c.getHostDeadPaths(p[0]))
+      .add("esx.memory[*,used]",                (c, p) -> c.getHostMemUsed(p[0]))
+      .add("esx.memory[*,total]",               (c, p) -> c.getHostMemTotal(p[0]))
+      .add("esx.vms.memory[*,private]",         (c, p) -> c.getHostVmsMemory(p[0], "private"))
+      .add("esx.vms.memory[*,shared]",          (c, p) -> c.getHostVmsMemory(p[0], "shared"))
+      .add("esx.vms.memory[*,swapped]",         (c, p) -> c.getHostVmsMemory(p[0], "swapped"))
+      .add("esx.vms.memory[*,compressed]",      (c, p) -> c.getHostVmsMemory(p[0], "compressed"))
+      .add("esx.vms.memory[*,overheadConsumed]", (c, p) -> c.getHostVmsMemory(p[0], "overheadConsumed"))
+      .add("esx.vms.memory[*,consumed]",        (c, p) -> c.getHostVmsMemory(p[0], "consumed"))
+      .add("esx.vms.memory[*,ballooned]",       (c, p) -> c.getHostVmsMemory(p[0], "ballooned"))
+      .add("esx.vms.memory[*,active]",          (c, p) -> c.getHostVmsMemory(p[0], "active"))
+      .add("esx.counter.list[*]",               (c, p) -> c.getHostAvailablePerfCounters(p[0]))
+      .add("esx.counter[*]",                    (c, p) -> c.getHostPerfCounterValue(KeyRouter.split(p[0], 4)))
+      .add("esx.counter.discovery[*]",          (c, p) -> c.getHostPerfCounterDiscovery(KeyRouter.split(p[0], 3)))
+      .add("vm.discovery",                      (c, p) -> c.getVMs())
+      .add("vm.discovery.full",                 (c, p) -> c.getVMsFullDiscovery())
+      .add("vm.name[*]",                        (c, p) -> c.getVmName(p[0]))
+      .add("vm.status[*]",                      (c, p) -> c.getVmStatus(p[0]))
+      .add("vm.cpu.load[*,used]",               (c, p) -> c.getVmCpuUsed(p[0]))
+      .add("vm.cpu.load[*,total]",              (c, p) -> c.getVmCpuTotal(p[0]))
+      .add("vm.cpu.load[*,cores]",              (c, p) -> c.getVmCpuCores(p[0]))
+      .add("vm.memory[*,private]",              (c, p) -> c.getVmMemPrivate(p[0]))
+      .add("vm.memory[*,shared]",               (c, p) -> c.getVmMemShared(p[0]))
+      .add("vm.memory[*,swapped]",              (c, p) -> c.getVmMemSwapped(p[0]))
+      .add("vm.memory[*,compressed]",           (c, p) -> c.getVmMemCompressed(p[0]))
+      .add("vm.memory[*,overheadConsumed]",     (c, p) -> c.getVmMemOverheadConsumed(p[0]))
+      .add("vm.memory[*,consumed]",             (c, p) -> c.getVmMemConsumed(p[0]))
+      .add("vm.memory[*,ballooned]",            (c, p) -> c.getVmMemBallooned(p[0]))
+      .add("vm.memory[*,active]",               (c, p) -> c.getVmMemActive(p[0]))
+      .add("vm.memory[*,total]",                (c, p) -> c.getVmMemSize(p[0]))
+      .add("vm.host[*]",                        (c, p) -> c.getVmHost(p[0]))
+      .add("vm.powerstate[*]",                  (c, p) -> c.getVmPowerState(p[0]))
+      .add("vm.folder[*]",                      (c, p) -> c.getVmFolder(p[0]))
+      .add("vm.uptime[*]",                      (c, p) -> c.getVmUptime(p[0]))
+      .add("vm.annotation[*]",                  (c, p) -> c.getVmAnnotation(p[0]))
+      .add("vm.snapshot[*]",                    (c, p) -> c.getVmSnapshot(p[0]))
+      .add("vm.storage.committed[*]",           (c, p) -> c.getVmStorageCommitted(p[0]))
+      .add("vm.storage.uncommitted[*]",         (c, p) -> c.getVmStorageUncommitted(p[0]))
+      .add("vm.storage.unshared[*]",            (c, p) -> c.getVmStorageUnshared(p[0]))
+      .add("vm.guest.os.short[*]",              (c, p) -> c.getVmGuestShortName(p[0]))
+      .add("vm.guest.os[*]",                    (c, p) -> c.getVmGuestFullName(p[0]))
+      .add("vm.guest.name[*]",                  (c, p) -> c.getVmGuestHostName(p[0]))
+      .add("vm.guest.ip[*]",                    (c, p) -> c.getVmGuestIpAddress(p[0]))
+      .add("vm.guest.disk.all[*]",              (c, p) -> c.getVmGuestDisks(p[0]))
+      .add("vm.guest.disk.discovery[*]",        (c, p) -> c.getVmGuestDisks(p[0]))
+      .add("vm.guest.disk.capacity[*,*]",       (c, p) -> c.getVmGuestDiskCapacity(p[0], p[1]))
+      .add("vm.guest.disk.free[*,*]",           (c, p) -> c.getVmGuestDiskFreeSpace(p[0], p[1]))
+      .add("vm.guest.tools.running[*]",         (c, p) -> c.getVmGuestToolsRunningStatus(p[0]))
+      .add("vm.guest.tools.version[*]",         (c, p) -> c.getVmGuestToolsVersionStatus(p[0]))
+      .add("vm.guest.tools.mounted[*]",         (c, p) -> c.getVmToolsInstallerMounted(p[0]))
+      .add("vm.consolidation[*,needed]",        (c, p) -> c.getVmConsolidationNeeded(p[0]))
+      .add("vm.counter.list[*]",                (c, p) -> c.getVmAvailablePerfCounters(p[0]))
+      .add("vm.counter[*]",                     (c, p) -> c.getVmPerfCounterValue(KeyRouter.split(p[0], 4)))
+      .add("vm.counter.discovery[*]",           (c, p) -> c.getVmPerfCounterDiscovery(KeyRouter.split(p[0], 3)))
+      .add("datastore.discovery",               (c, p) -> c.getDatastores())
+      .add("datastore.local[*]",                (c, p) -> c.getDatastoreLocal(p[0]))
+      .add("datastore.size[*,free]",            (c, p) -> c.getDatastoreSizeFree(p[0]))
+      .add("datastore.size[*,total]",           (c, p) -> c.getDatastoreSizeTotal(p[0]))
+      .add("datastore.size[*,provisioned]",     (c, p) -> c.getDatastoreSizeProvisioned(p[0]))
+      .add("datastore.size[*,uncommitted]",     (c, p) -> c.getDatastoreSizeUncommitted(p[0])));
+    
+    /**
+      * Adds the routes of the item handlers found on the classpath
+    */
+    private static KeyRouter<Connection> loadHandlers(KeyRouter<Connection> router) {
+      Iterator<ItemHandler> handlers = ServiceLoader.load(ItemHandler.class).iterator();
+      while (true) {
+        ItemHandler handler;
+        try {
+          if (!handlers.hasNext()) {
+            break;
+          }
+          handler = handlers.next();
+        } catch (ServiceConfigurationError e) {
+          LOG.error("Cannot load an item handler : " + e.getMessage());
+          continue;
+        }
+        HandlerStats stats = new HandlerStats(handler.getName());
+        for (String key : handler.getKeys()) {
+          try {
+            router.add(key, (c, p) -> handler.execute(c, p), stats);
+            LOG.info("Loaded item " + key + " from " + handler.getName());
+          } catch (IllegalArgumentException e) {
+            LOG.error("Cannot load item " + key + " from " + handler.getName() + " : " + e.getMessage());
+          }
         }
-        String[] groups = list.toArray(new String[list.size()]);
-        return groups;
       }
-      return null;
+      return router;
+    }
+    
+    @Override
+    public ServiceInstance getServiceInstance() {
+      return serviceInstance;
     }
     
-    private ValidationResult checkAllPatterns(String string) throws IOException {
+    @Override
+    public InventoryNavigator getInventoryNavigator() {
+      return inventoryNavigator;
+    }
+    
+    @Override
+    public PerformanceManager getPerformanceManager() {
+      return performanceManager;
+    }
+    
+    /**
+      * Evaluates a single item key
+    */
+    ValidationResult evaluate(String string) throws IOException {
       LOG.debug("Parsing this request : " + string);
-      
-      Pattern pPoolDiscovery             = Pattern.compile("^(?:\\s*ZBXD.)?.*pool\\.(discovery)");
-      Pattern pPoolMemUsage              = Pattern.compile("^(?:\\s*ZBXD.)?.*pool\\.mem\\[(.+),usage\\]");
-      Pattern pPoolCpuUsage              = Pattern.compile("^(?:\\s*ZBXD.)?.*pool\\.cpu\\[(.+),usage\\]");
-      Pattern pPing                      = Pattern.compile("^(?:\\s*ZBXD.)?.*(ping)");
-      Pattern pAbout                     = Pattern.compile("^(?:\\s*ZBXD.)?.*(about)");
-      Pattern pVersion                   = Pattern.compile("^(?:\\s*ZBXD.)?.*(vmbix\\.version)");
-      Pattern pThreadCount               = Pattern.compile("^(?:\\s*ZBXD.)?.*(vmbix\\.stats\\[threads\\])");
-      Pattern pConnectionQueue           = Pattern.compile("^(?:\\s*ZBXD.)?.*(vmbix\\.stats\\[queue\\])");
-      Pattern pRequestCount              = Pattern.compile("^(?:\\s*ZBXD.)?.*(vmbix\\.stats\\[requests\\])");
-      Pattern pCacheSize                 = Pattern.compile("^(?:\\s*ZBXD.)?.*vmbix\\.stats\\[cachesize,(.+)\\]");
-      Pattern pCacheHitRate              = Pattern.compile("^(?:\\s*ZBXD.)?.*vmbix\\.stats\\[hitrate,(.+)\\]");
-      Pattern pClusters                  = Pattern.compile("^(?:\\s*ZBXD.)?.*cluster\\.(discovery)");
-      Pattern pClusterCpuFree            = Pattern.compile("^(?:\\s*ZBXD.)?.*cluster\\.cpu\\[(.+),free\\]");
-      Pattern pClusterCpuTotal           = Pattern.compile("^(?:\\s*ZBXD.)?.*cluster\\.cpu\\[(.+),total\\]");
-      Pattern pClusterCpuUsage           = Pattern.compile("^(?:\\s*ZBXD.)?.*cluster\\.cpu\\[(.+),usage\\]");
-      Pattern pClusterCpuThreads         = Pattern.compile("^(?:\\s*ZBXD.)?.*cluster\\.cpu.num\\[(.+),threads\\]");
-      Pattern pClusterCpuCores           = Pattern.compile("^(?:\\s*ZBXD.)?.*cluster\\.cpu.num\\[(.+),cores\\]");
-      Pattern pClusterMemFree            = Pattern.compile("^(?:\\s*ZBXD.)?.*cluster\\.mem\\[(.+),free\\]");
-      Pattern pClusterMemTotal           = Pattern.compile("^(?:\\s*ZBXD.)?.*cluster\\.mem\\[(.+),total\\]");
-      Pattern pClusterMemUsage           = Pattern.compile("^(?:\\s*ZBXD.)?.*cluster\\.mem\\[(.+),usage\\]");
-      Pattern pClusterHostsOnline        = Pattern.compile("^(?:\\s*ZBXD.)?.*cluster\\.hosts\\[(.+),online\\]");
-      Pattern pClusterHostsMaint         = Pattern.compile("^(?:\\s*ZBXD.)?.*cluster\\.hosts\\[(.+),maint\\]");
-      Pattern pClusterHostsTotal         = Pattern.compile("^(?:\\s*ZBXD.)?.*cluster\\.hosts\\[(.+),total\\]");
-      Pattern pDatacenters               = Pattern.compile("^(?:\\s*ZBXD.)?.*datacenter\\.(discovery)");
-      Pattern pDatacenterStatus          = Pattern.compile("^(?:\\s*ZBXD.)?.*datacenter\\.status\\[(.+),(overall|config)\\]");
-      Pattern pLatestEvent               = Pattern.compile("^(?:\\s*ZBXD.)?.*(event\\.latest)");
-      Pattern pVMsFullDiscovery          = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.(discovery)\\.(full)");
-      Pattern pVMs                       = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.(discovery)");
-      Pattern pHosts                     = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.(discovery)");
-      Pattern pDatastores                = Pattern.compile("^(?:\\s*ZBXD.)?.*datastore\\.(discovery)");
-      Pattern pHostConnection            = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.connection\\[(.+)\\]");
-      Pattern pHostUptime                = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.uptime\\[(.+)\\]");
-      Pattern pHostStatus                = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.status\\[(.+)\\]");
-      Pattern pHostName                  = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.name\\[(.+)\\]");
-      Pattern pVmStatus                  = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.status\\[(.+)\\]");
-      Pattern pHostMaintenance           = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.maintenance\\[(.+)\\]");
-      Pattern pHostCpuUsed               = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.cpu\\.load\\[(.+),used\\]");
-      Pattern pHostDisabledPaths         = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.path\\[(.+),disabled\\]");
-      Pattern pHostActivePaths           = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.path\\[(.+),active\\]");
-      Pattern pHostStandbyPaths          = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.path\\[(.+),standby\\]");
-      Pattern pHostDeadPaths             = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.path\\[(.+),dead\\]");
-      Pattern pHostCpuTotal              = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.cpu\\.load\\[(.+),total\\]");
-      Pattern pHostVMs                   = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.vms\\.count\\[(.+)\\]");
-      Pattern pHostCpuCores              = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.cpu\\.load\\[(.+),cores\\]");
-      Pattern pHostMemUsed               = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.memory\\[(.+),used\\]");
-      Pattern pHostMemTotal              = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.memory\\[(.+),total\\]");
-      Pattern pHostMemStatsPrivate       = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.vms.memory\\[(.+),private\\]");
-      Pattern pHostMemStatsShared        = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.vms.memory\\[(.+),shared\\]");
-      Pattern pHostMemStatsSwapped       = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.vms.memory\\[(.+),swapped\\]");
-      Pattern pHostMemStatsCompressed    = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.vms.memory\\[(.+),compressed\\]");
-      Pattern pHostMemStatsOverhCons     = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.vms.memory\\[(.+),overheadConsumed\\]");
-      Pattern pHostMemStatsConsumed      = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.vms.memory\\[(.+),consumed\\]");
-      Pattern pHostMemStatsBallooned     = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.vms.memory\\[(.+),ballooned\\]");
-      Pattern pHostMemStatsActive        = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.vms.memory\\[(.+),active\\]");
-      Pattern pHostAvailablePerfCounters = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.counter\\.list\\[(.+)\\]");
-      Pattern pHostPerfCounterValue      = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.counter\\[([^,]+),([^,]+)(?:,([^,]*))?(?:,([^,]*))?\\]");
-      Pattern pHostPerfCounterDiscovery  = Pattern.compile("^(?:\\s*ZBXD.)?.*esx\\.counter\\.discovery\\[([^,]+),([^,]+)(?:,([^,]*))?\\]");
-      Pattern pVmName                    = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.name\\[(.+)\\]");
-      Pattern pVmCpuUsed                 = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.cpu\\.load\\[(.+),used\\]");
-      Pattern pVmCpuTotal                = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.cpu\\.load\\[(.+),total\\]");
-      Pattern pVmCpuCores                = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.cpu\\.load\\[(.+),cores\\]");
-      Pattern pVmMemPrivate              = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.memory\\[(.+),private\\]");
-      Pattern pVmMemShared               = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.memory\\[(.+),shared\\]");
-      Pattern pVmMemSwapped              = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.memory\\[(.+),swapped\\]");
-      Pattern pVmMemCompressed           = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.memory\\[(.+),compressed\\]");
-      Pattern pVmMemOverheadConsumed     = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.memory\\[(.+),overheadConsumed\\]");
-      Pattern pVmMemConsumed             = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.memory\\[(.+),consumed\\]");
-      Pattern pVmMemBallooned            = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.memory\\[(.+),ballooned\\]");
-      Pattern pVmMemActive               = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.memory\\[(.+),active\\]");
-      Pattern pVmMemSize                 = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.memory\\[(.+),total\\]");
-      Pattern pVmHost                    = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.host\\[(.+)\\]");
-      Pattern pVmPowerState              = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.powerstate\\[(.+)\\]");
-      Pattern pVmFolder                  = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.folder\\[(.+)\\]");
-      Pattern pVmUptime                  = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.uptime\\[(.+)\\]");
-      Pattern pVmAnnotation              = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.annotation\\[(.+)\\]");
-      Pattern pVmSnapshot                = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.snapshot\\[(.+)\\]");
-      Pattern pVmStorageCommitted        = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.storage\\.committed\\[(.+)\\]");
-      Pattern pVmStorageUncommitted      = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.storage\\.uncommitted\\[(.+)\\]");
-      Pattern pVmStorageUnshared         = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.storage\\.unshared\\[(.+)\\]");
-      Pattern pVmGuestShortName          = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.guest\\.os\\.short\\[(.+)\\]");
-      Pattern pVmGuestFullName           = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.guest\\.os\\[(.+)\\]");
-      Pattern pVmGuestHostName           = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.guest\\.name\\[(.+)\\]");
-      Pattern pVmGuestDisks              = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.guest\\.disk\\.all\\[(.+)\\]");
-      Pattern pVmGuestDisksDiscovery     = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.guest\\.disk\\.discovery\\[(.+)\\]");
-      Pattern pVmGuestDiskCapacity       = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.guest\\.disk\\.capacity\\[(.+),(.+)\\]");
-      Pattern pVmGuestDiskFreeSpace      = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.guest\\.disk\\.free\\[(.+),(.+)\\]");
-      Pattern pVmAvailablePerfCounters   = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.counter\\.list\\[(.+)\\]");
-      Pattern pVmPerfCounterValue        = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.counter\\[([^,]+),([^,]+)(?:,([^,]*))?(?:,([^,]*))?\\]");
-      Pattern pVmPerfCounterDiscovery    = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.counter\\.discovery\\[([^,]+),([^,]+)(?:,([^,]*))?\\]");
-      Pattern pVmGuestIpAddress          = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.guest\\.ip\\[(.+)\\]");
-      Pattern pVmGuestToolsRunningStatus = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.guest\\.tools\\.running\\[(.+)\\]");
-      Pattern pVmGuestToolsVersionStatus = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.guest\\.tools\\.version\\[(.+)\\]");
-      Pattern pVmConsolidationNeeded     = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.consolidation\\[(.+),needed\\]");
-      Pattern pVmToolsInstallerMounted   = Pattern.compile("^(?:\\s*ZBXD.)?.*vm\\.guest\\.tools\\.mounted\\[(.+)\\]");
-      Pattern pDatastoreLocal            = Pattern.compile("^(?:\\s*ZBXD.)?.*datastore\\.local\\[(.+)\\]");
-      Pattern pDatastoreFree             = Pattern.compile("^(?:\\s*ZBXD.)?.*datastore\\.size\\[(.+),free\\]");
-      Pattern pDatastoreTotal            = Pattern.compile("^(?:\\s*ZBXD.)?.*datastore\\.size\\[(.+),total\\]");
-      Pattern pDatastoreProvisioned      = Pattern.compile("^(?:\\s*ZBXD.)?.*datastore\\.size\\[(.+),provisioned\\]");
-      Pattern pDatastoreUncommitted      = Pattern.compile("^(?:\\s*ZBXD.)?.*datastore\\.size\\[(.+),uncommitted\\]");
-      
-      String found;
-      String[] founds;
-      // ValidationResult result = new ValidationResult();
-      ValidationResult result = new ValidationResult(1, String.format("Unknown method: %s", string));
-      
-      found = checkPattern(pPoolCpuUsage, string);
-      if (found != null) {
-        result = getPoolCpuUsage(found);
-      }
-      found = checkPattern(pPoolMemUsage, string);
-      if (found != null) {
-        result = getPoolMemUsage(found);
-      }
-      found = checkPattern(pPoolDiscovery, string);
-      if (found != null){
-        result = getPools();
-      }
-      found = checkPattern(pPing, string);
-      if (found != null) {
-        result = getPing();
-      }
-      found = checkPattern(pAbout, string);
-      if (found != null) {
-        result = getAbout();
-      }
-      found = checkPattern(pVersion, string);
-      if (found != null) {
-        result = getVersion();
-      }
-      found = checkPattern(pThreadCount, string);
-      if (found != null) {
-        result = getThreadCount();
-      }
-      found = checkPattern(pConnectionQueue, string);
-      if (found != null) {
-        result = getConnectionQueue();
-      }
-      found = checkPattern(pRequestCount, string);
-      if (found != null) {
-        result = getRequestCount();
-      }
-      found = checkPattern(pCacheSize, string);
-      if (found != null) {
-        result = getCacheSize(found);
-      }
-      found = checkPattern(pCacheHitRate, string);
-      if (found != null) {
-        result = getCacheHitRate(found);
-      }
-      found = checkPattern(pClusters, string);
-      if (found != null) {
-        result = getClusters();
-      }
-      found = checkPattern(pClusterCpuFree, string);
-      if (found != null) {
-        result = getClusterCpuFree(found);
-      }
-      found = checkPattern(pClusterCpuTotal, string);
-      if (found != null) {
-        result = getClusterCpuTotal(found);
-      }
-      found = checkPattern(pClusterCpuUsage, string);
-      if (found != null) {
-        result = getClusterCpuUsage(found);
-      }
-      found = checkPattern(pClusterCpuThreads, string);
-      if (found != null) {
-        result = getClusterCpuThreads(found);
-      }
-      found = checkPattern(pClusterCpuCores, string);
-      if (found != null) {
-        result = getClusterCpuCores(found);
-      }
-      found = checkPattern(pClusterMemFree, string);
-      if (found != null) {
-        result = getClusterMemFree(found);
-      }
-      found = checkPattern(pClusterMemTotal, string);
-      if (found != null) {
-        result = getClusterMemTotal(found);
-      }
-      found = checkPattern(pClusterMemUsage, string);
-      if (found != null) {
-        result = getClusterMemUsage(found);
-      }
-      found = checkPattern(pClusterHostsOnline, string);
-      if (found != null) {
-        result = getClusterHostsOnline(found);
-      }
-      found = checkPattern(pClusterHostsMaint, string);
-      if (found != null) {
-        result = getClusterHostsMaint(found);
-      }
-      found = checkPattern(pClusterHostsTotal, string);
-      if (found != null) {
-        result = getClusterHostsTotal(found);
-      }
-      found = checkPattern(pDatacenters, string);
-      if (found != null) {
-        result = getDatacenters();
-      }
-      founds = checkMultiplePattern(pDatacenterStatus, string);
-      if (founds != null) {
-        result = getDatacenterStatus(founds[0], founds[1]);
-      }
-      found = checkPattern(pLatestEvent, string);
-      if (found != null) {
-        result = getLatestEvent();
-      }
-      found = checkPattern(pVMsFullDiscovery, string);
-      if (found != null) {
-        result = getVMsFullDiscovery();
-      }
-      found = checkPattern(pVMs, string);
-      if (found != null) {
-        result = getVMs();
-      }
-      found = checkPattern(pHosts, string);
-      if (found != null) {
-        result = getHosts();
-      }
-      found = checkPattern(pDatastores, string);
-      if (found != null) {
-        result = getDatastores();
-      }
-      found = checkPattern(pHostConnection, string);
-      if (found != null) {
-        result = getHostConnection(found);
-      }
-      found = checkPattern(pHostUptime, string);
-      if (found != null) {
-        result = getHostUptime(found);
-      }
-      found = checkPattern(pHostStatus, string);
-      if (found != null) {
-        result = getHostStatus(found);
-      }
-      found = checkPattern(pHostName, string);
-      if (found != null) {
-        result = getHostName(found);
-      }
-      found = checkPattern(pVmStatus, string);
-      if (found != null) {
-        result = getVmStatus(found);
-      }
-      found = checkPattern(pVmName, string);
-      if (found != null) {
-        result = getVmName(found);
-      }
-      found = checkPattern(pHostMaintenance, string);
-      if (found != null) {
-        result = getHostMaintenance(found);
-      }
-      found = checkPattern(pHostCpuUsed, string);
-      if (found != null) {
-        result = getHostCpuUsed(found);
-      }
-      found = checkPattern(pHostCpuTotal, string);
-      if (found != null) {
-        result = getHostCpuTotal(found);
-      }
-      found = checkPattern(pHostVMs, string);
-      if (found != null) {
-        result = getHostVMs(found);
-      }
-      found = checkPattern(pHostDisabledPaths, string);
-      if (found != null) {
-        result = getHostDisabledPaths(found);
-      }
-      found = checkPattern(pHostActivePaths, string);
-      if (found != null) {
-        result = getHostActivePaths(found);
-      }
-      found = checkPattern(pHostStandbyPaths, string);
-      if (found != null) {
-        result = getHostStandbyPaths(found);
-      }
-      found = checkPattern(pHostDeadPaths, string);
-      if (found != null) {
-        result = getHostDeadPaths(found);
-      }
-      found = checkPattern(pHostMemUsed, string);
-      if (found != null) {
-        result = getHostMemUsed(found);
-      }
-      found = checkPattern(pHostMemTotal, string);
-      if (found != null) {
-        result = getHostMemTotal(found);
-      }
-      found = checkPattern(pHostMemStatsPrivate, string);
-      if (found != null) {
-        result = getHostVmsStatsPrivate(found);
-      }
-      found = checkPattern(pHostMemStatsShared, string);
-      if (found != null) {
-        result = getHostVmsStatsShared(found);
-      }
-      found = checkPattern(pHostMemStatsSwapped, string);
-      if (found != null) {
-        result = getHostVmsStatsSwapped(found);
-      }
-      found = checkPattern(pHostMemStatsCompressed, string);
-      if (found != null) {
-        result = getHostVmsStatsCompressed(found);
-      }
-      found = checkPattern(pHostMemStatsOverhCons, string);
-      if (found != null) {
-        result = getHostVmsStatsOverhCons(found);
-      }
-      found = checkPattern(pHostMemStatsConsumed, string);
-      if (found != null) {
-        result = getHostVmsStatsConsumed(found);
-      }
-      found = checkPattern(pHostMemStatsBallooned, string);
-      if (found != null) {
-        result = getHostVmsStatsBallooned(found);
-      }
-      found = checkPattern(pHostMemStatsActive, string);
-      if (found != null) {
-        result = getHostVmsStatsActive(found);
-      }
-      found = checkPattern(pHostAvailablePerfCounters, string);
-      if (found != null) {
-        result = getHostAvailablePerfCounters(found);
-      }
-      founds = checkMultiplePattern(pHostPerfCounterValue, string);
-      if (founds != null) {
-        result = getHostPerfCounterValue(founds);
-      }
-      founds = checkMultiplePattern(pHostPerfCounterDiscovery, string);
-      if (founds != null) {
-        result = getHostPerfCounterDiscovery(founds);
-      }
-      found = checkPattern(pVmCpuUsed, string);
-      if (found != null) {
-        result = getVmCpuUsed(found);
-      }
-      found = checkPattern(pVmCpuTotal, string);
-      if (found != null) {
-        result = getVmCpuTotal(found);
-      }
-      found = checkPattern(pVmCpuCores, string);
-      if (found != null) {
-        result = getVmCpuCores(found);
-      }
-      found = checkPattern(pVmMemPrivate, string);
-      if (found != null) {
-        result = getVmMemPrivate(found);
-      }
-      found = checkPattern(pVmMemShared, string);
-      if (found != null) {
-        result = getVmMemShared(found);
-      }
-      found = checkPattern(pVmMemSwapped, string);
-      if (found != null) {
-        result = getVmMemSwapped(found);
-      }
-      found = checkPattern(pVmMemCompressed, string);
-      if (found != null) {
-        result = getVmMemCompressed(found);
-      }
-      found = checkPattern(pVmMemOverheadConsumed, string);
-      if (found != null) {
-        result = getVmMemOverheadConsumed(found);
-      }
-      found = checkPattern(pVmMemConsumed, string);
-      if (found != null) {
-        result = getVmMemConsumed(found);
-      }
-      found = checkPattern(pVmMemBallooned, string);
-      if (found != null) {
-        result = getVmMemBallooned(found);
-      }
-      found = checkPattern(pVmMemActive, string);
-      if (found != null) {
-        result = getVmMemActive(found);
-      }
-      found = checkPattern(pVmMemSize, string);
-      if (found != null) {
-        result = getVmMemSize(found);
-      }
-      found = checkPattern(pVmHost, string);
-      if (found != null) {
-        result = getVmHost(found);
-      }
-      found = checkPattern(pVmPowerState, string);
-      if (found != null) {
-        result = getVmPowerState(found);
-      }
-      found = checkPattern(pVmFolder, string);
-      if (found != null) {
-        result = getVmFolder(found);
+      ValidationResult result = null;
+      if (inventoryMirror != null) {
+        // The mirror answers what it holds without calling vCenter
+        result = inventoryMirror.evaluate(string);
       }
-      found = checkPattern(pVmUptime, string);
-      if (found != null) {
-        result = getVmUptime(found);
+      if (result == null) {
+        result = ROUTER.route(this, string);
       }
-      found = checkPattern(pVmAnnotation, string);
-      if (found != null) {
-        result = getVmAnnotation(found);
+      if (result == null) {
+        result = new ValidationResult(1, String.format("Unknown method: %s", string));
       }
-      found = checkPattern(pVmSnapshot, string);
-      if (found != null) {
-        result = getVmSnapshot(found);
-      }
-      found = checkPattern(pVmStorageCommitted, string);
-      if (found != null) {
-        result = getVmStorageCommitted(found);
-      }
-      found = checkPattern(pVmStorageUncommitted, string);
-      if (found != null) {
-        result = getVmStorageUncommitted(found);
-      }
-      found = checkPattern(pVmStorageUnshared, string);
-      if (found != null) {
-        result = getVmStorageUnshared(found);
-      }
-      found = checkPattern(pVmGuestShortName, string);
-      if (found != null) {
-        result = getVmGuestShortName(found);
-      }
-      found = checkPattern(pVmGuestFullName, string);
-      if (found != null) {
-        result = getVmGuestFullName(found);
-      }
-      found = checkPattern(pVmGuestHostName, string);
-      if (found != null) {
-        result = getVmGuestHostName(found);
-      }
-      found = checkPattern(pVmGuestIpAddress, string);
-      if (found != null) {
-        result = getVmGuestIpAddress(found);
-      }
-      found = checkPattern(pVmGuestDisks, string);
-      if (found != null) {
-        result = getVmGuestDisks(found);
-      }
-      found = checkPattern(pVmGuestDisksDiscovery, string);
-      if (found != null) {
-        result = getVmGuestDisks(found);
-      }
-      founds = checkMultiplePattern(pVmGuestDiskCapacity, string);
-      if (founds != null) {
-        result = getVmGuestDiskCapacity(founds[0], founds[1]);
-      }
-      founds = checkMultiplePattern(pVmGuestDiskFreeSpace, string);
-      if (founds != null) {
-        result = getVmGuestDiskFreeSpace(founds[0], founds[1]);
-      }
-      found = checkPattern(pVmAvailablePerfCounters, string);
-      if (found != null) {
-        result = getVmAvailablePerfCounters(found);
-      }
-      founds = checkMultiplePattern(pVmPerfCounterValue, string);
-      if (founds != null) {
-        result = getVmPerfCounterValue(founds);
-      }
-      founds = checkMultiplePattern(pVmPerfCounterDiscovery, string);
-      if (founds != null) {
-        result = getVmPerfCounterDiscovery(founds);
-      }
-      found = checkPattern(pVmGuestToolsRunningStatus, string);
-      if (found != null) {
-        result = getVmGuestToolsRunningStatus(found);
-      }
-      found = checkPattern(pVmGuestToolsVersionStatus, string);
-      if (found != null) {
-        result = getVmGuestToolsVersionStatus(found);
-      }
-      found = checkPattern(pVmToolsInstallerMounted, string);
-      if (found != null) {
-        result = getVmToolsInstallerMounted(found);
+      return result;
+    }
+    
+    /**
+      * Evaluates a request. A JSON array of keys or a vmbix.bulk[...] key
+      * is a bulk request, anything else is a single item key
+    */
+    ValidationResult process(String string) throws IOException {
+      String[] keys = getBulkKeys(string);
+      if (keys != null) {
+        return getBulk(keys);
       }
-      found = checkPattern(pVmConsolidationNeeded, string);
-      if (found != null) {
-        result = getVmConsolidationNeeded(found);
+      return check(string);
+    }
+    
+    /**
+      * Evaluates an item key. Identical keys requested at the same time
+      * share a single evaluation.
+    */
+    public ValidationResult check(String string) throws IOException {
+      return inFlight.execute(string.trim(), () -> evaluate(string));
+    }
+    
+    static String[] getBulkKeys(String string) {
+      String request = string.trim();
+      if (request.startsWith("[")) {
+        try {
+          JsonArray jArray = new JsonParser().parse(request).getAsJsonArray();
+          String[] keys = new String[jArray.size()];
+          for (int i = 0; i < keys.length; i++) {
+            keys[i] = jArray.get(i).getAsString();
+          }
+          return keys;
+        } catch (Exception ex) {
+          LOG.debug("Not a JSON array of keys : " + request);
+          return null;
+        }
       }
-      found = checkPattern(pHostCpuCores, string);
-      if (found != null) {
-        result = getHostCpuCores(found);
+      if (request.startsWith(BULK) && request.endsWith("]")) {
+        return splitKeyParameters(request.substring(BULK.length(), request.length() - 1));
       }
-      found = checkPattern(pDatastoreLocal, string);
-      if (found != null) {
-        result = getDatastoreLocal(found);
+      return null;
+    }
+    
+    /**
+      * Splits item key parameters like Zabbix does. A quoted parameter may
+      * contain commas and brackets, \" escapes a quote inside it.
+    */
+    static String[] splitKeyParameters(String params) {
+      List<String> list = new ArrayList<String>();
+      StringBuilder param = new StringBuilder();
+      boolean quoted = false;
+      for (int i = 0; i < params.length(); i++) {
+        char c = params.charAt(i);
+        if (quoted) {
+          if (c == '\\' && i + 1 < params.length() && params.charAt(i + 1) == '"') {
+            param.append('"');
+            i++;
+          } else if (c == '"') {
+            quoted = false;
+          } else {
+            param.append(c);
+          }
+        } else if (c == '"') {
+          quoted = true;
+        } else if (c == ',') {
+          list.add(param.toString().trim());
+          param.setLength(0);
+        } else {
+          param.append(c);
+        }
       }
-      found = checkPattern(pDatastoreFree, string);
-      if (found != null) {
-        result = getDatastoreSizeFree(found);
+      list.add(param.toString().trim());
+      list.removeIf(String::isEmpty);
+      return list.toArray(new String[list.size()]);
+    }
+    
+    /**
+      * Evaluates the keys of a bulk request concurrently and returns a JSON
+      * object mapping each key to its value or to its error, for use with
+      * Zabbix dependent items. A key still running after bulktimeout ms is
+      * canceled and answered with an error.
+    */
+    ValidationResult getBulk(String[] keys) throws IOException {
+      // All the keys share the session of the request and the objects
+      // they look up
+      lookups = new SingleFlight<String, ManagedEntity>(true);
+      long deadline = System.currentTimeMillis() + bulkTimeout;
+      List<Future<ValidationResult>> results = new ArrayList<Future<ValidationResult>>();
+      for (String key : keys) {
+        Connection connection = share(key);
+        results.add(bulkWorkers.submit(() -> connection.checkShared(key, deadline)));
       }
-      found = checkPattern(pDatastoreTotal, string);
-      if (found != null) {
-        result = getDatastoreSizeTotal(found);
+      JsonObject jOutput = new JsonObject();
+      for (int i = 0; i < keys.length; i++) {
+        JsonObject jObject = new JsonObject();
+        Future<ValidationResult> future = results.get(i);
+        try {
+          ValidationResult result = future.get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+          jObject.addProperty(result.status == 0 ? "value" : "error", result.message);
+        } catch (TimeoutException ex) {
+          future.cancel(true);
+          jObject.addProperty("error", String.format("Timed out after %d ms", bulkTimeout));
+        } catch (ExecutionException ex) {
+          jObject.addProperty("error", String.format("An error occurred : %s", ex.getCause().toString()));
+        } catch (Exception ex) {
+          jObject.addProperty("error", String.format("An error occurred : %s", ex.toString()));
+        }
+        jOutput.add(keys[i], jObject);
       }
-      found = checkPattern(pDatastoreProvisioned, string);
-      if (found != null) {
-        result = getDatastoreSizeProvisioned(found);
+      return new ValidationResult(0, jOutput.toString());
+    }
+    
+    /**
+      * Returns a connection evaluating a key of a bulk request, on the
+      * session of this request and sharing its lookups
+    */
+    Connection share(String key) {
+      Connection connection = new Connection(new Request(null, key), session);
+      connection.lookups = lookups;
+      return connection;
+    }
+    
+    /**
+      * Evaluates a key of a bulk request. It counts as a request running on
+      * the session, within the request slots of the session pool.
+    */
+    ValidationResult checkShared(String key, long deadline) throws IOException {
+      long timeout = Math.max(deadline - System.currentTimeMillis(), 0);
+      if (session != null) {
+        if (sessionPool == null) {
+          session.acquire();
+        } else if (!sessionPool.join(session, timeout)) {
+          return new ValidationResult(1, String.format("No free vCenter session for %s", key));
+        }
       }
-      found = checkPattern(pDatastoreUncommitted, string);
-      if (found != null) {
-        result = getDatastoreSizeUncommitted(found);
+      try {
+        return check(key);
+      } finally {
+        if (session != null) {
+          if (sessionPool == null) {
+            session.release();
+          } else {
+            sessionPool.release(session);
+          }
+        }
       }
-      
-      return result;
     }
     
-    private Boolean reconnectRequred(ManagedEntity me) throws IOException {
-      Boolean required = false;
-      if (me == null) {
-        ManagedEntity[] mes = inventoryNavigator.searchManagedEntities("HostSystem");
-        if (mes == null || mes.length == 0) {
-          LOG.warn("No hosts found, connection seems to be broken, attempting reconnect");
-          
-          // Clear all caches
-          vmCache.invalidateAll();      
-          esxiCache.invalidateAll();    
-          dsCache.invalidateAll();      
-          hostPerfCache.invalidateAll();
-          counterCache.invalidateAll(); 
-          hriCache.invalidateAll();     
-          clCache.invalidateAll();     
-          
-          // Reconnect to vCenter
-          Request request    = VmBix.updateConnectionSafe();
-          serviceInstance    = request.serviceInstance;
-          inventoryNavigator = request.inventoryNavigator;
-          performanceManager = request.performanceManager;
-          required = true;
-        }
+    @Override
+    public ManagedEntity getManagedEntity(String id, String meType) throws IOException {
+      if (lookups != null) {
+        return lookups.execute(meType + ":" + id, () -> lookupManagedEntity(id, meType));
       }
-      return required;
+      return lookupManagedEntity(id, meType);
     }
     
-    private ManagedEntity getManagedEntity(String id, String meType) throws IOException {
+    ManagedEntity lookupManagedEntity(String id, String meType) throws IOException {
+      // Objects which were not found recently are not searched again
+      String negKey = meType + ":" + id;
+      if (negCache.getIfPresent(negKey) != null) {
+        LOG.debug("NegativeCacheHIT: " + meType + " id: " + id);
+        return null;
+      }
       ManagedEntity me = null;
       if (useUuid) {
         me = getManagedEntityByUuid(id, meType);
-        if (reconnectRequred(me)) {
-          me = getManagedEntityByUuid(id, meType);
-        }
         } else {
         me = getManagedEntityByName(id, meType);
-        if (reconnectRequred(me)) {
-          me = getManagedEntityByName(id, meType);
-        }
+      }
+      if (me == null) {
+        negCache.put(negKey, Boolean.TRUE);
       }
       return me;
     }
     
-    private ManagedEntity getManagedEntityByName(String name, String meType) throws IOException {
-      //* extra cache for getManagedEntityByName
-      ManagedEntity me = null;
-      switch (meType) {
-        case "HostSystem":
-        me = esxiCache.getIfPresent(name);
-        break;
-        case "VirtualMachine":
-        me = vmCache.getIfPresent(name);
-        break;
-        case "Datastore":
-        me = dsCache.getIfPresent(name);
-        break;
-        case "ClusterComputeResource":
-        me = clCache.getIfPresent(name);
-        break;
+    /**
+      * Returns a cached object bound to the session of this request. The
+      * cache holds references only, so it stays valid after a reconnection.
+    */
+    private ManagedEntity getCachedEntity(String id, String meType, boolean uuid) {
+      ManagedObjectReference mor = entityCache.get(meType, id, uuid);
+      if (mor == null) {
+        return null;
       }
-      //add cache for Datacenters
+      LOG.debug("CacheHIT: " + meType + " id: " + id);
+      return MorUtil.createExactManagedEntity(serviceInstance.getServerConnection(), mor);
+    }
+    
+    private ManagedEntity getManagedEntityByName(String name, String meType) throws IOException {
+      return getCachedOrFind(name, meType, false);
+    }
+    
+    private ManagedEntity getManagedEntityByUuid(String uuid, String meType) throws IOException {
+      return getCachedOrFind(uuid, meType, true);
+    }
+    
+    private ManagedEntity getCachedOrFind(String id, String meType, boolean uuid) throws IOException {
+      ManagedEntity me = getCachedEntity(id, meType, uuid);
       if (me != null) {
-        LOG.debug("CacheHIT: " + meType + " name: " + name);
         return me;
       }
-      me = inventoryNavigator.searchManagedEntity(meType, name);
-      if (me != null) {
-        switch (meType) {
-          case "HostSystem":
-          esxiCache.put(name, me);
-          break;
-          case "VirtualMachine":
-          vmCache.put(name, me);
-          break;
-          case "Datastore":
-          dsCache.put(name, me);
-          break;
-          case "ClusterComputeResource":
-          clCache.put(name, me);
-          break;
-        }
-        LOG.debug("CacheMISS: " + meType + " name: " + name);
+      me = findManagedEntity(id, meType, uuid);
+      if (me != null && entityCache.handles(meType)) {
+        entityCache.put(meType, id, uuid, me.getMOR());
+        LOG.debug("CacheMISS: " + meType + " id: " + id);
       }
       return me;
     }
     
-    //ClusterComputeResource
-    private ManagedEntity getManagedEntityByUuid(String uuid, String meType) throws IOException {
-      ManagedEntity me = null;
+    /**
+      * Searches vCenter for an object by name or by UUID, without the cache
+    */
+    ManagedEntity findManagedEntity(String id, String meType, boolean uuid) throws IOException {
+      if (entityIndex != null && entityIndex.handles(meType)) {
+        return getIndexedEntity(id, meType, uuid);
+      }
+      return searchManagedEntity(id, meType, uuid);
+    }
+    
+    /**
+      * Searches the inventory for an object by name or by UUID
+    */
+    private ManagedEntity searchManagedEntity(String id, String meType, boolean uuid) throws IOException {
+      if (!uuid) {
+        return inventoryNavigator.searchManagedEntity(meType, id);
+      }
+      ManagedEntity[] mes = getManagedEntities(meType);
+      for (int i = 0; mes != null && i < mes.length; i++) {
+        ManagedEntity ent = mes[i];
+        if (ent == null) {
+          continue;
+        }
+        if (id.equals(getEntityUuid(ent, meType))) {
+          return ent;
+        }
+      }
+      return null;
+    }
+    
+    /**
+      * Finds an object with the index instead of searching the inventory.
+      * An object missing from an old index is looked up again once the
+      * index is refreshed.
+    */
+    private ManagedEntity getIndexedEntity(String id, String meType, boolean uuid) throws IOException {
+      ManagedObjectReference mor = entityIndex.lookup(meType, id, uuid);
+      if (mor == null) {
+        return null;
+      }
+      return MorUtil.createExactManagedEntity(serviceInstance.getServerConnection(), mor);
+    }
+    
+    private String getEntityUuid(ManagedEntity ent, String meType) {
+      String meUuid = null;
       switch (meType) {
         case "HostSystem":
-        me = esxiCache.getIfPresent(uuid);
+        HostSystem host = (HostSystem) ent;
+        HostListSummary hs = summaryOf(host);
+        HostHardwareSummary hd = hs.getHardware();
+        meUuid = hd.getUuid();
         break;
         case "VirtualMachine":
-        me = vmCache.getIfPresent(uuid);
+        VirtualMachine vm = (VirtualMachine) ent;
+        VirtualMachineConfigInfo vmcfg = configOf(vm);
+        meUuid = vmcfg == null ? null : vmcfg.getUuid();
         break;
         case "Datastore":
-        me = dsCache.getIfPresent(uuid);
+        Datastore ds = (Datastore) ent;
+        DatastoreInfo dinfo = ds.getInfo();
+        meUuid = dinfo.url.substring(19, dinfo.url.length() - 1);
         break;
       }
-      if (me != null) {
-        LOG.debug("CacheHIT: " + meType + " uuid: " + uuid);
-        return me;
+      return meUuid;
+    }
+    
+    /**
+      * Returns the names of all the objects of a type, or their UUIDs if
+      * useuuid is set and the type has one
+    */
+    public List<String> getEntityIds(String meType) throws IOException {
+      if (entityIndex != null && entityIndex.handles(meType)) {
+        return entityIndex.ids(meType, useUuid);
       }
+      List<String> ids = new ArrayList<String>();
       ManagedEntity[] mes = getManagedEntities(meType);
-      String meUuid = null;
-      for (int i = 0; mes != null && i < mes.length; i++) {
-        ManagedEntity ent = mes[i];
-        if (ent == null) {
-          continue;
-        }
-        switch (meType) {
-          case "HostSystem":
-          HostSystem host = (HostSystem) ent;
-          HostListSummary hs = host.getSummary();
-          HostHardwareSummary hd = hs.getHardware();
-          meUuid = hd.getUuid();
-          break;
-          case "VirtualMachine":
-          VirtualMachine vm = (VirtualMachine) ent;
-          VirtualMachineConfigInfo vmcfg = vm.getConfig();
-          meUuid = vmcfg.getUuid();
-          break;
-          case "Datastore":
-          Datastore ds = (Datastore) ent;
-          DatastoreInfo dinfo = ds.getInfo();
-          meUuid = dinfo.url.substring(19, dinfo.url.length() - 1);
-          break;
-        }
-        if (meUuid == null) {
-          continue;
-        }
-        if (uuid.equals(meUuid)) {
-          me = ent;
-          switch (meType) {
-            case "HostSystem":
-            esxiCache.put(meUuid, ent);
-            break;
-            case "VirtualMachine":
-            vmCache.put(meUuid, ent);
-            break;
-            case "Datastore":
-            dsCache.put(meUuid, ent);
-            break;
-          }
-          LOG.debug("CacheMISS: " + meType + " uuid: " + uuid);
-          break;
+      for (int i = 0; mes != null && i < mes.length; i++) {
+        ManagedEntity ent = mes[i];
+        if (ent == null) {
+          continue;
         }
+        String id = useUuid ? getEntityUuid(ent, meType) : null;
+        ids.add(id != null ? id : ent.getName());
       }
-      return me;
+      return ids;
     }
     
     private ManagedEntity[] getManagedEntities(String meType) throws IOException {
@@ -1260,22 +1325,91 @@ public class VmBix {
         LOG.debug("CacheHIT: PerfCounter name: " + name);
         return ctrProps;
       }
+      LOG.debug("CacheMISS: PerfCounter name: " + name);
+      ctrProps = findCounter(name);
+      if (ctrProps != null) {
+        counterCache.put(name, ctrProps);
+      }
+      return ctrProps;
+    }
+    
+    /**
+      * Reads all the performance counters, caches them and returns the
+      * properties of one of them
+    */
+    List<String> findCounter(String name) throws IOException {
       PerfCounterInfo[] pcis = performanceManager.getPerfCounter();
+      List<String> found = null;
       String perfCounter = "";
       for (int i = 0; i < pcis.length; i++) {
         perfCounter = pcis[i].getGroupInfo().getKey() + "." + pcis[i].getNameInfo().getKey() + "." + pcis[i].getRollupType().toString();
-        ctrProps = new ArrayList<String>();
+        List<String> ctrProps = new ArrayList<String>();
         ctrProps.add(String.valueOf(pcis[i].getKey()));
         ctrProps.add(pcis[i].getUnitInfo().getKey().toString());
         ctrProps.add(pcis[i].getStatsType().toString());
         ctrProps.add(pcis[i].getRollupType().toString());
-        counterCache.put(perfCounter, ctrProps);
         if (perfCounter.equals(name)) {
-          LOG.debug("CacheMISS: PerfCounter name: " + name);
-          return ctrProps;
+          found = ctrProps;
+        } else {
+          counterCache.put(perfCounter, ctrProps);
         }
       }
-      return counterCache.getIfPresent(name);
+      return found;
+    }
+    
+    /**
+      * Returns the property groups of an object from the snapshot cache
+    */
+    private VirtualMachineSummary summaryOf(VirtualMachine vm) {
+      return snapshotCache.get("summary", vm, vm::getSummary);
+    }
+    
+    private VirtualMachineRuntimeInfo runtimeOf(VirtualMachine vm) {
+      return snapshotCache.get("runtime", vm, vm::getRuntime);
+    }
+    
+    private GuestInfo guestOf(VirtualMachine vm) {
+      return snapshotCache.get("guest", vm, vm::getGuest);
+    }
+    
+    private VirtualMachineConfigInfo configOf(VirtualMachine vm) {
+      return snapshotCache.get("config", vm, () -> keptConfig(vm.getConfig()));
+    }
+    
+    private HostListSummary summaryOf(HostSystem host) {
+      return snapshotCache.get("summary", host, host::getSummary);
+    }
+    
+    private HostConfigInfo configOf(HostSystem host) {
+      return snapshotCache.get("config", host, () -> keptConfig(host.getConfig()));
+    }
+    
+    /**
+      * The configurations hold the devices, files and extra options of the
+      * objects : only the fields read by the items are kept in the cache
+    */
+    static VirtualMachineConfigInfo keptConfig(VirtualMachineConfigInfo config) {
+      if (config == null) {
+        return null;
+      }
+      VirtualMachineConfigInfo kept = new VirtualMachineConfigInfo();
+      kept.setUuid(config.getUuid());
+      kept.setAnnotation(config.getAnnotation());
+      if (config.getHardware() != null) {
+        VirtualHardware hardware = new VirtualHardware();
+        hardware.setNumCPU(config.getHardware().getNumCPU());
+        kept.setHardware(hardware);
+      }
+      return kept;
+    }
+    
+    static HostConfigInfo keptConfig(HostConfigInfo config) {
+      if (config == null) {
+        return null;
+      }
+      HostConfigInfo kept = new HostConfigInfo();
+      kept.setMultipathState(config.getMultipathState());
+      return kept;
     }
     
     /**
@@ -1295,15 +1429,15 @@ public class VmBix {
     
     private PerfMetricId[] getHostPerformanceManager(HostSystem host, int interval) throws RemoteException {
       PerfMetricId[] queryAvailablePerfMetric = null;
-      String name = host.getName();
-      queryAvailablePerfMetric = hostPerfCache.getIfPresent(name);
+      String key = interval + ":" + host.getName();
+      queryAvailablePerfMetric = hostPerfCache.getIfPresent(key);
       if (queryAvailablePerfMetric != null) {
-        LOG.debug("CacheHIT: PerfID name: " + name);
+        LOG.debug("CacheHIT: PerfID name: " + key);
         return queryAvailablePerfMetric;
       }
       queryAvailablePerfMetric = performanceManager.queryAvailablePerfMetric(host, null, null, interval);
-      hostPerfCache.put(name, queryAvailablePerfMetric);
-      LOG.debug("CacheMISS: PerfID name: " + name);
+      hostPerfCache.put(key, queryAvailablePerfMetric);
+      LOG.debug("CacheMISS: PerfID name: " + key);
       return queryAvailablePerfMetric;
     }
     
@@ -1344,16 +1478,16 @@ public class VmBix {
       * Returns the number of worker threads
     */
     private ValidationResult getThreadCount() throws IOException {
-      Integer activeThreads = (Thread.activeCount() - 1);
+      Integer activeThreads = workers.getThreadCount();
       ValidationResult result = new ValidationResult(0, activeThreads.toString());
       return result;
     }
     
     /**
-      * Returns the number of connections waiting for a worker thread
+      * Returns the number of requests waiting for a worker thread
     */
     private ValidationResult getConnectionQueue() throws IOException {
-      Integer size = sockets.size();
+      Integer size = workers.getQueueSize();
       ValidationResult result = new ValidationResult(0, Integer.toString(size));
       return result;
     }
@@ -1367,40 +1501,174 @@ public class VmBix {
     }
     
     /**
-      * Returns the size of a VmBix cache
+      * Returns the number of requests answered with the result of an
+      * identical request that was already running
     */
-    private ValidationResult getCacheSize(String cacheName) throws IOException {
+    private ValidationResult getCoalescedCount() throws IOException {
+      ValidationResult result = new ValidationResult(0, Long.toString(inFlight.getCoalescedCount()));
+      return result;
+    }
+    
+    /**
+      * Returns the number of times the vCenter session was replaced
+    */
+    private ValidationResult getReconnectCount() throws IOException {
+      long count = sessionMonitor == null ? 0 : sessionMonitor.getReconnectCount();
+      ValidationResult result = new ValidationResult(0, Long.toString(count));
+      return result;
+    }
+    
+    /**
+      * Returns the epoch of the primary session, which is incremented on
+      * each login of the primary session
+    */
+    private ValidationResult getSessionEpoch() throws IOException {
+      ValidationResult result = new ValidationResult(0, Long.toString(VmBix.session.get().epoch));
+      return result;
+    }
+    
+    /**
+      * Returns the sessions, running requests, utilization and leases of
+      * the session pool
+    */
+    private ValidationResult getPoolStats() throws IOException {
       ValidationResult result;
-      long size;
-      
+      if (sessionPool == null) {
+        result = new ValidationResult(2, "The session pool is not started");
+      } else {
+        result = new ValidationResult(0, sessionPool.getStats().toString());
+      }
+      return result;
+    }
+    
+    /**
+      * Returns the calls, errors, latency and bytes sent and received of the
+      * SOAP calls made with the pooled HTTP transport
+    */
+    private ValidationResult getTransportStats() throws IOException {
+      ValidationResult result;
+      if (!pooledHttp) {
+        result = new ValidationResult(2, "The pooled HTTP transport is disabled");
+      } else {
+        result = new ValidationResult(0, SoapTransport.getStats().toString());
+      }
+      return result;
+    }
+    
+    /**
+      * Returns the values pushed, not sent and refused by the Zabbix trapper
+      * in active mode
+    */
+    private ValidationResult getTrapperStats() throws IOException {
+      ValidationResult result;
+      if (activeCollector == null) {
+        result = new ValidationResult(2, "The active mode is disabled");
+      } else {
+        result = new ValidationResult(0, activeCollector.getStats().toString());
+      }
+      return result;
+    }
+    
+    /**
+      * Returns the state, object count, applied updates and answered items
+      * of the inventory mirror
+    */
+    private ValidationResult getMirrorStats() throws IOException {
+      ValidationResult result;
+      if (inventoryMirror == null) {
+        result = new ValidationResult(2, "The inventory mirror is disabled");
+      } else {
+        result = new ValidationResult(0, inventoryMirror.getStats().toString());
+      }
+      return result;
+    }
+    
+    /**
+      * Returns the calls, errors, error rate and average latency in ms of
+      * all the item handlers
+    */
+    private ValidationResult getHandlerStats() throws IOException {
+      JsonObject jOutput = new JsonObject();
+      for (HandlerStats stats : ROUTER.getStats()) {
+        jOutput.add(stats.name, stats.toJson());
+      }
+      return new ValidationResult(0, jOutput.toString());
+    }
+    
+    /**
+      * Returns the number of calls, the number of errors or the average
+      * latency in ms of an item handler
+    */
+    private ValidationResult getHandlerStats(String name, String stat) throws IOException {
+      HandlerStats stats = ROUTER.getStats(name);
+      if (stats == null) {
+        return new ValidationResult(2, String.format("No item handler named %s found", name));
+      }
+      switch (stat) {
+        case "calls":
+        return new ValidationResult(0, Long.toString(stats.getCalls()));
+        case "errors":
+        return new ValidationResult(0, Long.toString(stats.getErrors()));
+        default:
+        return new ValidationResult(0, String.format(Locale.ROOT, "%.3f", stats.getLatency()));
+      }
+    }
+    
+    /**
+      * Returns a VmBix cache by name, or null if it does not exist
+    */
+    private static Cache<String, ?> getCache(String cacheName) {
       switch (cacheName) {
-        case "vm":
-        size = vmCache.size();
-        break;
-        case "esxi":
-        size = esxiCache.size();
-        break;
-        case "ds":
-        size = dsCache.size();
-        break;
         case "perf":
-        size = hostPerfCache.size();
-        break;
+        return hostPerfCache;
         case "counter":
-        size = counterCache.size();
-        break;
+        return counterCache;
         case "hri":
-        size = hriCache.size();
-        break;
-        case "cluster":
-        size = clCache.size();
-        break;
+        return hriCache;
+        case "neg":
+        return negCache;
         default:
+        Cache<String, ?> cache = entityCache.getCache(cacheName);
+        return cache != null ? cache : snapshotCache.getCache(cacheName);
+      }
+    }
+    
+    /**
+      * Returns the size of a VmBix cache
+    */
+    private ValidationResult getCacheSize(String cacheName) throws IOException {
+      ValidationResult result;
+      Cache<String, ?> cache = getCache(cacheName);
+      if (cache == null) {
         result = new ValidationResult(2, String.format("Cache %s does not exist", cacheName));
         return result; 
       }
       
-      result = new ValidationResult(0, Long.toString(size)) ;
+      result = new ValidationResult(0, Long.toString(cache.size())) ;
+      return result;
+    }
+    
+    /**
+      * Returns the number, failures, error rate and average latency in ms
+      * of the background reloads of a VmBix cache
+    */
+    private ValidationResult getCacheRefreshStats(String cacheName) throws IOException {
+      ValidationResult result;
+      HandlerStats stats = RefreshingCache.STATS.get(cacheName);
+      if (stats == null) {
+        result = new ValidationResult(2, String.format("Cache %s does not exist", cacheName));
+        return result;
+      }
+      result = new ValidationResult(0, stats.toJson().toString());
+      return result;
+    }
+    
+    /**
+      * Returns the number of lookups of unknown objects answered by the
+      * negative cache
+    */
+    private ValidationResult getNegativeHits() throws IOException {
+      ValidationResult result = new ValidationResult(0, Long.toString(negCache.stats().hitCount()));
       return result;
     }
     
@@ -1409,36 +1677,13 @@ public class VmBix {
     */
     private ValidationResult getCacheHitRate(String cacheName) throws IOException {
       ValidationResult result;
-      double hitrate;
-      
-      switch (cacheName) {
-        case "vm":
-        hitrate = vmCache.stats().hitRate();
-        break;
-        case "esxi":
-        hitrate = esxiCache.stats().hitRate();
-        break;
-        case "ds":
-        hitrate = dsCache.stats().hitRate();
-        break;
-        case "perf":
-        hitrate = hostPerfCache.stats().hitRate();
-        break;
-        case "counter":
-        hitrate = counterCache.stats().hitRate();
-        break;
-        case "hri":
-        hitrate = hriCache.stats().hitRate();
-        break;
-        case "cluster":
-        hitrate = clCache.stats().hitRate();
-        break;
-        default:
+      Cache<String, ?> cache = getCache(cacheName);
+      if (cache == null) {
         result = new ValidationResult(2, String.format("Cache %s does not exist", cacheName));
         return result;       
       }
       
-      result = new ValidationResult(0, Double.toString(hitrate)) ;
+      result = new ValidationResult(0, Double.toString(cache.stats().hitRate())) ;
       return result;
     }
     
@@ -1446,7 +1691,7 @@ public class VmBix {
       * Returns the CPU power of a host in MHz
     */
     private int getHostMHZ(HostSystem host) throws IOException {
-      HostListSummary hls = host.getSummary();
+      HostListSummary hls = summaryOf(host);
       HostHardwareSummary hosthwi = hls.getHardware();
       Integer mhz = hosthwi.getCpuMhz();
       if (mhz == null) {
@@ -1510,7 +1755,7 @@ public class VmBix {
 	        return result;
         } 
         else {
-	        HostListSummary hsum = host.getSummary();
+	        HostListSummary hsum = summaryOf(host);
 	        String hs = hsum.getOverallStatus().toString();
 	        if (null != hs) {
 	          switch (hs) {
@@ -1580,7 +1825,7 @@ public class VmBix {
 	        return result;
           
         } else {
-	        HostConfigInfo hc = host.getConfig();
+	        HostConfigInfo hc = configOf(host);
 	        HostMultipathStateInfoPath[] mp = hc.getMultipathState().getPath();
 	        for (int m = 0; m < mp.length; m++) {
 	          if ("dead".equals(mp[m].getPathState())) {
@@ -1614,7 +1859,7 @@ public class VmBix {
           
         } else {
 	        //TODO: cache for all HostConfigInfo
-	        HostConfigInfo hc = host.getConfig();
+	        HostConfigInfo hc = configOf(host);
 	        HostMultipathStateInfoPath[] mp = hc.getMultipathState().getPath();
 	        for (int m = 0; m < mp.length; m++) {
 	          if ("active".equals(mp[m].getPathState())) {
@@ -1645,7 +1890,7 @@ public class VmBix {
 	        return result;
           
         } else {
-	        HostConfigInfo hc = host.getConfig();
+	        HostConfigInfo hc = configOf(host);
 	        HostMultipathStateInfoPath[] mp = hc.getMultipathState().getPath();
 	        for (int m = 0; m < mp.length; m++) {
 	          if ("standby".equals(mp[m].getPathState())) {
@@ -1676,7 +1921,7 @@ public class VmBix {
 	        return result;
           
           } else {
-	        HostConfigInfo hc = host.getConfig();
+	        HostConfigInfo hc = configOf(host);
 	        HostMultipathStateInfoPath[] mp = hc.getMultipathState().getPath();
 	        for (int m = 0; m < mp.length; m++) {
 	          if ("disabled".equals(mp[m].getPathState())) {
@@ -1732,7 +1977,7 @@ public class VmBix {
 	        return result;
           
           } else {
-	        VirtualMachineSummary vsum = vm.getSummary();
+	        VirtualMachineSummary vsum = summaryOf(vm);
 	        String vs = vsum.getOverallStatus().toString();
 	        if (null != vs) {
 	          switch (vs) {
@@ -1799,32 +2044,28 @@ public class VmBix {
     */
     private ValidationResult getVMs() throws IOException {
       ValidationResult result;
-      JsonObject jOutput = new JsonObject();   
+      JsonObject jOutput = new JsonObject();
       
-    	try {
-	      ManagedEntity[] vms = getManagedEntities("VirtualMachine");
-	      JsonArray jArray = new JsonArray();
-	      for (int j = 0; j < vms.length; j++) {
-	        VirtualMachine vm = (VirtualMachine) vms[j];
-	        VirtualMachineConfigInfo vmcfg = vm.getConfig();
-	        if (vm != null && vmcfg != null) {
-	          JsonObject jObject = new JsonObject();
-	          String vmName = vm.getName();
-	          String vmUuid = vmcfg.getUuid();
-	          jObject.addProperty("{#VIRTUALMACHINE}", vmName);
-	          jObject.addProperty("{#UUID}", vmUuid);
-	          jArray.add(jObject);
-          }
-        }
-	      jOutput.add("data", jArray);
-	      }
+      try {
+        JsonArray jArray = new JsonArray();
+        getRetriever().retrieve("VirtualMachine", new String[] { "name", "config.uuid" },
+          (ManagedObjectReference mor, Map<String, Object> props) -> {
+            if (props.get("name") != null && props.get("config.uuid") != null) {
+              JsonObject jObject = new JsonObject();
+              jObject.addProperty("{#VIRTUALMACHINE}", props.get("name").toString());
+              jObject.addProperty("{#UUID}", props.get("config.uuid").toString());
+              jArray.add(jObject);
+            }
+          });
+        jOutput.add("data", jArray);
+      }
       catch (Exception ex) {
         result = new ValidationResult(1, String.format("An error occurred : %s", ex.toString()));
         return result;  
       }
       
       result = new ValidationResult(0, jOutput.toString());
-	    return result;
+      return result;
     }
     
     /**
@@ -1833,44 +2074,21 @@ public class VmBix {
     */
     private ValidationResult getVMsFullDiscovery() throws IOException {
       ValidationResult result;
-	    JsonObject jOutput = new JsonObject();   
+      JsonObject jOutput = new JsonObject();
       
-    	try {
-	      ManagedEntity[] vms = getManagedEntities("VirtualMachine");
-	      JsonArray jArray = new JsonArray();
-	      for (int j = 0; j < vms.length; j++) {
-	        VirtualMachine vm = (VirtualMachine) vms[j];
-	        VirtualMachineConfigInfo vmcfg = vm.getConfig();
-	        if (vm != null && vmcfg != null) {
-	          Integer intStatus = 3;
-	          JsonObject jObject = new JsonObject();
-	          String vmName = vm.getName();
-	          String vmUuid = vmcfg.getUuid();
-	          jObject.addProperty("{#VIRTUALMACHINE}", vmName);
-	          jObject.addProperty("{#UUID}", vmUuid);
-	          VirtualMachineRuntimeInfo vmrti = vm.getRuntime();
-	          String pState = vmrti.getPowerState().toString();
-	          if (null != pState) {
-	            switch (pState) {
-	              case "poweredOff":
-                intStatus = 0;
-                break;
-	              case "poweredOn":
-                intStatus = 1;
-                break;
-	              case "suspended":
-                intStatus = 2;
-                break;
-	              default:
-                intStatus = 3;
-                break;
-              }
+      try {
+        JsonArray jArray = new JsonArray();
+        getRetriever().retrieve("VirtualMachine", new String[] { "name", "config.uuid", "runtime.powerState" },
+          (ManagedObjectReference mor, Map<String, Object> props) -> {
+            if (props.get("name") != null && props.get("config.uuid") != null) {
+              JsonObject jObject = new JsonObject();
+              jObject.addProperty("{#VIRTUALMACHINE}", props.get("name").toString());
+              jObject.addProperty("{#UUID}", props.get("config.uuid").toString());
+              jObject.addProperty("{#POWERSTATE}", MetricsServer.powerState(props.get("runtime.powerState")));
+              jArray.add(jObject);
             }
-	          jObject.addProperty("{#POWERSTATE}", intStatus);
-	          jArray.add(jObject);
-          }
-        }
-	      jOutput.add("data", jArray);
+          });
+        jOutput.add("data", jArray);
       }
       catch (Exception ex) {
         result = new ValidationResult(1, String.format("An error occurred : %s", ex.toString()));
@@ -1878,7 +2096,7 @@ public class VmBix {
       }
       
       result = new ValidationResult(0, jOutput.toString());
-	    return result;
+      return result;
     }
     
     /**
@@ -1889,24 +2107,24 @@ public class VmBix {
       ValidationResult result;
       JsonObject jOutput = new JsonObject();
       
-    	try {
-	      ManagedEntity[] hs = getManagedEntities("HostSystem");
-	      JsonArray jArray = new JsonArray();
-	      for (int j = 0; j < hs.length; j++) {
-	        HostSystem h = (HostSystem) hs[j];
-	        if (h != null) {
-	          HostListSummary hsum = h.getSummary();
-	          HostHardwareSummary hd = hsum.getHardware();
-	          if (hsum != null && hd != null) {
-	            JsonObject jObject = new JsonObject();
-	            jObject.addProperty("{#ESXHOST}", h.getName());
-	            jObject.addProperty("{#UUID}", hd.getUuid());
-	            jObject.addProperty("{#CLUSTER}", h.getParent().getName());
-	            jArray.add(jObject);
+      try {
+        PropertyRetriever retriever = getRetriever();
+        // The parent of a host is its cluster or its standalone compute resource
+        Map<String, String> parents = getNames(retriever, "ComputeResource");
+        JsonArray jArray = new JsonArray();
+        retriever.retrieve("HostSystem", new String[] { "name", "summary.hardware", "parent" },
+          (ManagedObjectReference mor, Map<String, Object> props) -> {
+            HostHardwareSummary hd = (HostHardwareSummary) props.get("summary.hardware");
+            ManagedObjectReference parent = (ManagedObjectReference) props.get("parent");
+            if (hd != null) {
+              JsonObject jObject = new JsonObject();
+              jObject.addProperty("{#ESXHOST}", String.valueOf(props.get("name")));
+              jObject.addProperty("{#UUID}", hd.getUuid());
+              jObject.addProperty("{#CLUSTER}", parent == null ? null : parents.get(parent.getVal()));
+              jArray.add(jObject);
             }
-          }
-        }
-	      jOutput.add("data", jArray);
+          });
+        jOutput.add("data", jArray);
       }
       catch (Exception ex) {
         result = new ValidationResult(1, String.format("An error occurred : %s", ex.toString()));
@@ -1914,7 +2132,7 @@ public class VmBix {
       }
       
       result = new ValidationResult(0, jOutput.toString());
-	    return result;
+      return result;
     }
     
     /**
@@ -1922,30 +2140,7 @@ public class VmBix {
       * Zabbix low-level discovery
     */
     private ValidationResult getClusters() throws IOException {
-      ValidationResult result;
-	    JsonObject jOutput = new JsonObject();    
-      
-    	try {
-	      ManagedEntity[] cl = getManagedEntities("ClusterComputeResource");
-	      JsonArray jArray = new JsonArray();
-	      for (int j = 0; j < cl.length; j++) {
-	        ClusterComputeResource c = (ClusterComputeResource) cl[j];
-	        String name = c.getName();
-          
-	        ComputeResourceSummary s = c.getSummary();
-	        JsonObject jObject = new JsonObject();
-	        jObject.addProperty("{#CLUSTER}", name);
-	        jArray.add(jObject);
-        }
-	      jOutput.add("data", jArray);
-      }
-      catch (Exception ex) {
-        result = new ValidationResult(1, String.format("An error occurred : %s", ex.toString()));
-        return result;  
-      }
-      
-      result = new ValidationResult(0, jOutput.toString());
-	    return result;
+      return getNameDiscovery("ClusterComputeResource", "{#CLUSTER}");
     }
     
     /**
@@ -1953,31 +2148,7 @@ public class VmBix {
       * Zabbix low-level discovery
     */
     private ValidationResult getDatacenters() throws IOException {
-      ValidationResult result;
-      JsonObject jOutput = new JsonObject();
-      
-    	try {
-	      ManagedEntity[] dc = getManagedEntities("Datacenter");
-	      JsonArray jArray = new JsonArray();
-	      for (int j = 0; j < dc.length; j++) {
-	        Datacenter d = (Datacenter) dc[j];
-	        if (d != null) {
-	          ManagedEntityStatus status = d.getOverallStatus();
-            
-	          JsonObject jObject = new JsonObject();
-	          jObject.addProperty("{#DATACENTER}", d.getName());
-	          jArray.add(jObject);
-          }
-        }
-	      jOutput.add("data", jArray);
-      }
-      catch (Exception ex) {
-        result = new ValidationResult(1, String.format("An error occurred : %s", ex.toString()));
-        return result;  
-      }
-      
-      result = new ValidationResult(0, jOutput.toString());
-	    return result;
+      return getNameDiscovery("Datacenter", "{#DATACENTER}");
     }
     
     private ValidationResult getDatacenterStatus(String dcName, String type) throws IOException {
@@ -2019,62 +2190,101 @@ public class VmBix {
         result = new ValidationResult(1, String.format("An error occurred : %s", ex.toString()));
         return result;  
       }
-      result = new ValidationResult(0, intStatus.toString());
+      result = new ValidationResult(0, intStatus.toString());
+      return result;
+    }
+    
+    /**
+      * Returns a JSON-formatted array with the datastores list for use with
+      * Zabbix low-level discovery
+    */
+    private ValidationResult getDatastores() throws IOException {
+      ValidationResult result;
+      JsonObject jOutput = new JsonObject();
+      try {
+        PropertyRetriever retriever = getRetriever();
+        // The parent of a datastore is a folder
+        Map<String, String> parents = getNames(retriever, "Folder");
+        JsonArray jArray = new JsonArray();
+        retriever.retrieve("Datastore", new String[] { "name", "info", "summary.multipleHostAccess", "parent" },
+          (ManagedObjectReference mor, Map<String, Object> props) -> {
+            Object info = props.get("info");
+            String uuid;
+            String naa;
+            if (info instanceof NasDatastoreInfo) {
+              NasDatastoreInfo dsInfo = (NasDatastoreInfo) info;
+              uuid = dsInfo.url.substring(19, dsInfo.url.length() - 1);
+              naa = dsInfo.getNas().getName();
+            } else if (info instanceof VmfsDatastoreInfo) {
+              VmfsDatastoreInfo dsInfo = (VmfsDatastoreInfo) info;
+              uuid = dsInfo.getVmfs().getUuid();
+              naa = dsInfo.getVmfs().extent[0].getDiskName();
+            } else {
+              // Only the NAS and VMFS datastores are discovered
+              return;
+            }
+            ManagedObjectReference parent = (ManagedObjectReference) props.get("parent");
+            JsonObject jObject = new JsonObject();
+            jObject.addProperty("{#DATASTORE}", String.valueOf(props.get("name")));
+            jObject.addProperty("{#UUID}", uuid);
+            jObject.addProperty("{#CLUSTER}", parent == null ? null : parents.get(parent.getVal()));
+            jObject.addProperty("{#LOCAL}", !Boolean.TRUE.equals(props.get("summary.multipleHostAccess")));
+            jObject.addProperty("{#NAA}", naa);
+            jArray.add(jObject);
+          });
+        jOutput.add("data", jArray);
+      }
+      catch (Exception ex) {
+        result = new ValidationResult(1, String.format("An error occurred : %s", ex.toString()));
+        return result; 
+      }
+      
+      result = new ValidationResult(0, jOutput.toString());
+      return result;
+    }
+    
+    /**
+      * Returns a JSON-formatted array with the names of all the objects of
+      * a type for use with Zabbix low-level discovery
+    */
+    private ValidationResult getNameDiscovery(String meType, String macro) throws IOException {
+      ValidationResult result;
+      JsonObject jOutput = new JsonObject();
+      try {
+        JsonArray jArray = new JsonArray();
+        for (String name : getNames(getRetriever(), meType).values()) {
+          JsonObject jObject = new JsonObject();
+          jObject.addProperty(macro, name);
+          jArray.add(jObject);
+        }
+        jOutput.add("data", jArray);
+        result = new ValidationResult(0, jOutput.toString());
+      }
+      catch (Exception ex) {
+        result = new ValidationResult(1, String.format("An error occurred : %s", ex.toString()));
+      }
       return result;
     }
     
     /**
-      * Returns a JSON-formatted array with the datastores list for use with
-      * Zabbix low-level discovery
+      * Retrieves the properties of many objects with a few property
+      * collector calls, instead of one call per object and property
     */
-    private ValidationResult getDatastores() throws IOException {
-      ValidationResult result;
-      JsonObject jOutput = new JsonObject();
-    	try {
-	      ManagedEntity[] ds = getManagedEntities("Datastore");
-	      JsonArray jArray = new JsonArray();
-	      for (int j = 0; j < ds.length; j++) {
-	        Datastore d = (Datastore) ds[j];
-	        if (d != null) {
-	          if (d.getInfo() instanceof NasDatastoreInfo)
-	          {
-	            NasDatastoreInfo dsInfo = (NasDatastoreInfo) d.getInfo();
-	            if ( dsInfo != null ) {
-	              HostNasVolume naaName = dsInfo.getNas();
-	              JsonObject jObject = new JsonObject();
-	              jObject.addProperty("{#DATASTORE}", d.getName());
-	              jObject.addProperty("{#UUID}", dsInfo.url.substring(19, dsInfo.url.length() - 1) );
-	              jObject.addProperty("{#CLUSTER}", d.getParent().getName());
-	              jObject.addProperty("{#LOCAL}", !d.getSummary().multipleHostAccess);
-	              jObject.addProperty("{#NAA}", naaName.getName());
-	              jArray.add(jObject);
-              }
-            }
-	          else
-	          {
-	            VmfsDatastoreInfo dsInfo = (VmfsDatastoreInfo) d.getInfo();
-	            if ( dsInfo != null ) {
-	              HostScsiDiskPartition[] naaName = dsInfo.getVmfs().extent;
-	              JsonObject jObject = new JsonObject();
-	              jObject.addProperty("{#DATASTORE}", d.getName());
-	              jObject.addProperty("{#UUID}", dsInfo.getVmfs().getUuid());
-	              jObject.addProperty("{#CLUSTER}", d.getParent().getName());
-	              jObject.addProperty("{#LOCAL}", !d.getSummary().multipleHostAccess);
-	              jObject.addProperty("{#NAA}", naaName[0].getDiskName());
-	              jArray.add(jObject);
-              }
-            }
-          }
+    private PropertyRetriever getRetriever() {
+      return new PropertyRetriever(serviceInstance);
+    }
+    
+    /**
+      * Returns the names of all the objects of a type by reference
+    */
+    private Map<String, String> getNames(PropertyRetriever retriever, String meType) throws IOException {
+      Map<String, String> names = new LinkedHashMap<String, String>();
+      retriever.retrieve(meType, new String[] { "name" }, (ManagedObjectReference mor, Map<String, Object> props) -> {
+        if (props.get("name") != null) {
+          names.put(mor.getVal(), props.get("name").toString());
         }
-	      jOutput.add("data", jArray);
-      }
-      catch (Exception ex) {
-        result = new ValidationResult(1, String.format("An error occurred : %s", ex.toString()));
-        return result; 
-      }
-      
-      result = new ValidationResult(0, jOutput.toString());
-	    return result;
+      });
+      return names;
     }
     
     /**
@@ -2090,7 +2300,7 @@ public class VmBix {
 	        return result;
           
           } else {
-	        HostListSummary hostSummary = host.getSummary();
+	        HostListSummary hostSummary = summaryOf(host);
 	        HostListSummaryQuickStats hostQuickStats = hostSummary.getQuickStats();
           
 	        if (hostQuickStats != null) {
@@ -2123,7 +2333,7 @@ public class VmBix {
 	        return result;
           
           } else {
-	        HostListSummary hostSummary = host.getSummary();
+	        HostListSummary hostSummary = summaryOf(host);
 	        HostListSummaryQuickStats hostQuickStats = hostSummary.getQuickStats();
           
 	        usedMhz = hostQuickStats.getOverallCpuUsage();
@@ -2179,7 +2389,7 @@ public class VmBix {
 	        return result;
           
           } else {
-	        HostListSummary hls = host.getSummary();
+	        HostListSummary hls = summaryOf(host);
 	        HostHardwareSummary hosthwi = hls.getHardware();
 	        cores = hosthwi.getNumCpuCores();
 	        //if (cores == null) {
@@ -2209,7 +2419,7 @@ public class VmBix {
 	        return result;
           
           } else {
-	        HostListSummary hostSummary = host.getSummary();
+	        HostListSummary hostSummary = summaryOf(host);
 	        HostListSummaryQuickStats hostQuickStats = hostSummary.getQuickStats();
           
 	        usedMB = hostQuickStats.getOverallMemoryUsage();
@@ -2240,7 +2450,7 @@ public class VmBix {
 	        return result;
           
           } else {
-	        HostListSummary hls = host.getSummary();
+	        HostListSummary hls = summaryOf(host);
 	        HostHardwareSummary hosthwi = hls.getHardware();
           
 	        totalMemBytes = hosthwi.getMemorySize();
@@ -2271,8 +2481,8 @@ public class VmBix {
           } else {
 	        VirtualMachine[] vms = host.getVms();
 	        for (VirtualMachine vm : vms) {
-	          VirtualMachineSummary vmSummary = vm.getSummary();
-	          if ("poweredOn".equals(vm.getRuntime().getPowerState().name())) {
+	          VirtualMachineSummary vmSummary = summaryOf(vm);
+	          if ("poweredOn".equals(runtimeOf(vm).getPowerState().name())) {
 	            nbVM++;
             }
           }
@@ -2286,264 +2496,27 @@ public class VmBix {
     }
     
     /**
-      * Returns the virtual machines private memory usage of a host
-    */
-    private ValidationResult getHostVmsStatsPrivate(String hostName) throws IOException {
-      ValidationResult result;
-      Integer amount;
-			try {
-	      HostSystem host = (HostSystem) getManagedEntity(hostName, "HostSystem");
-	      int sum = 0;
-	      int activeVms = 0;
-	      if (host == null) {
-	        result = new ValidationResult(2, String.format("No host named %s found", hostName));
-	        return result;
-
-          } else {
-	        VirtualMachine[] vms = (host.getVms());
-	        for (VirtualMachine vm : vms) {
-	          VirtualMachineSummary vmSummary = vm.getSummary();
-	          if ("poweredOn".equals(vm.getRuntime().getPowerState().name())) {
-	            sum += vmSummary.getQuickStats().getPrivateMemory() * 100 / vmSummary.getConfig().getMemorySizeMB();
-	            activeVms++;
-            }
-          }
-	        amount = activeVms == 0 ? 0 : sum / activeVms;
-        }
-        result = new ValidationResult(0, amount.toString());
-      }
-      catch (Exception ex) {
-        result = new ValidationResult(1, String.format("An error occurred : %s", ex.toString()));
-      }
-      return result;
-    }
-    
-    /**
-      * Returns the virtual machines shared memory usage of a host
-    */
-    private ValidationResult getHostVmsStatsShared(String hostName)throws IOException {
-      ValidationResult result;
-    	Integer amount;
-    	try {
-	      HostSystem host = (HostSystem) getManagedEntity(hostName, "HostSystem");
-	      int sum = 0;
-	      int activeVms = 0;
-	      if (host == null) {
-	        result = new ValidationResult(2, String.format("No host named %s found", hostName));
-	        return result;
-
-          } else {
-	        VirtualMachine[] vms = (host.getVms());
-	        for (VirtualMachine vm : vms) {
-	          VirtualMachineSummary vmSummary = vm.getSummary();
-	          if ("poweredOn".equals(vm.getRuntime().getPowerState().name())) {
-	            sum += vmSummary.getQuickStats().getSharedMemory() * 100 / vmSummary.getConfig().getMemorySizeMB();
-	            activeVms++;
-            }
-          }
-	        amount = activeVms == 0 ? 0 : sum / activeVms;
-        }
-        result = new ValidationResult(0, amount.toString());
-      }
-      catch (Exception ex) {
-        result = new ValidationResult(1, String.format("An error occurred : %s", ex.toString()));
-      }
-      return result;
-    }
-    
-    /**
-      * Returns the virtual machines swapped memory usage of a host
-    */
-    private ValidationResult getHostVmsStatsSwapped(String hostName)throws IOException {
-      ValidationResult result;
-      Integer amount;
-			try {
-	      HostSystem host = (HostSystem) getManagedEntity(hostName, "HostSystem");
-	      int sum = 0;
-	      int activeVms = 0;
-	      if (host == null) {
-	        result = new ValidationResult(2, String.format("No host named %s found", hostName));
-	        return result;
-
-          } else {
-	        VirtualMachine[] vms = (host.getVms());
-	        int sharedMb;
-	        for (VirtualMachine vm : vms) {
-	          VirtualMachineSummary vmSummary = vm.getSummary();
-	          if ("poweredOn".equals(vm.getRuntime().getPowerState().name())) {
-	            sharedMb = (int) (vmSummary.getQuickStats().getSwappedMemory() / 1024);
-	            sum += sharedMb * 100 / vmSummary.getConfig().getMemorySizeMB();
-	            activeVms++;
-            }
-          }
-	        amount = activeVms == 0 ? 0 : sum / activeVms;
-        }
-        result = new ValidationResult(0, amount.toString());
-      }
-      catch (Exception ex) {
-        result = new ValidationResult(1, String.format("An error occurred : %s", ex.toString()));
-      }
-      return result;
-    }
-    
-    /**
-      * Returns the virtual machines compressed memory usage of a host
-    */
-    private ValidationResult getHostVmsStatsCompressed(String hostName)throws IOException {
-      ValidationResult result;
-      Integer amount;
-    	try {
-	      HostSystem host = (HostSystem) getManagedEntity(hostName, "HostSystem");
-	      int sum = 0;
-	      int activeVms = 0;
-	      if (host == null) {
-	        result = new ValidationResult(2, String.format("No host named %s found", hostName));
-	        return result;
-
-          } else {
-	        VirtualMachine[] vms = (host.getVms());
-	        for (VirtualMachine vm : vms) {
-	          VirtualMachineSummary vmSummary = vm.getSummary();
-	          if ("poweredOn".equals(vm.getRuntime().getPowerState().name())) {
-	            sum += (vmSummary.getQuickStats().getCompressedMemory() / 1024) * 100 / vmSummary.getConfig().getMemorySizeMB();
-	            activeVms++;
-            }
-          }
-	        amount = activeVms == 0 ? 0 : sum / activeVms;
-        }
-        result = new ValidationResult(0, amount.toString());
-      }
-      catch (Exception ex) {
-        result = new ValidationResult(1, String.format("An error occurred : %s", ex.toString()));
-      }
-      return result;
-    }
-    
-    /**
-      * Returns the virtual machines overhead memory usage of a host
-    */
-    private ValidationResult getHostVmsStatsOverhCons(String hostName)throws IOException {
-      ValidationResult result;
-      Integer amount;
-    	try {
-	      HostSystem host = (HostSystem) getManagedEntity(hostName, "HostSystem");
-	      int sum = 0;
-	      int activeVms = 0;
-	      if (host == null) {
-	        result = new ValidationResult(2, String.format("No host named %s found", hostName));
-	        return result;
-
-          } else {
-	        VirtualMachine[] vms = (host.getVms());
-	        for (VirtualMachine vm : vms) {
-	          VirtualMachineSummary vmSummary = vm.getSummary();
-	          if ("poweredOn".equals(vm.getRuntime().getPowerState().name())) {
-	            sum += vmSummary.getQuickStats().getConsumedOverheadMemory() * 100 / vmSummary.getConfig().getMemorySizeMB();
-	            activeVms++;
-            }
-          }
-	        amount = activeVms == 0 ? 0 : sum / activeVms;
-        }
-        result = new ValidationResult(0, amount.toString());
-      }
-      catch (Exception ex) {
-        result = new ValidationResult(1, String.format("An error occurred : %s", ex.toString()));
-      }
-      return result;
-    }
-    
-    /**
-      * Returns the virtual machines memory usage of a host
-    */
-    private ValidationResult getHostVmsStatsConsumed(String hostName)throws IOException {
-      ValidationResult result;
-	    Integer amount;    
-    	try {
-	      HostSystem host = (HostSystem) getManagedEntity(hostName, "HostSystem");
-	      int sum = 0;
-	      int activeVms = 0;
-	      if (host == null) {
-	        result = new ValidationResult(2, String.format("No host named %s found", hostName));
-	        return result;
-
-          } else {
-	        VirtualMachine[] vms = (host.getVms());
-	        for (VirtualMachine vm : vms) {
-	          VirtualMachineSummary vmSummary = vm.getSummary();
-	          if ("poweredOn".equals(vm.getRuntime().getPowerState().name())) {
-	            sum += vmSummary.getQuickStats().getHostMemoryUsage() * 100 / vmSummary.getConfig().getMemorySizeMB();
-	            activeVms++;
-            }
-          }
-	        amount = activeVms == 0 ? 0 : sum / activeVms;
-        }
-        result = new ValidationResult(0, amount.toString());
-      }
-      catch (Exception ex) {
-        result = new ValidationResult(1, String.format("An error occurred : %s", ex.toString()));
-      }
-      return result;
-    }
-    
-    /**
-      * Returns the virtual machines ballooned memory usage of a host
-    */
-    private ValidationResult getHostVmsStatsBallooned(String hostName)throws IOException {
-      ValidationResult result;
-	    Integer amount;    
-    	try {
-	      HostSystem host = (HostSystem) getManagedEntity(hostName, "HostSystem");
-	      int sum = 0;
-	      int activeVms = 0;
-	      if (host == null) {
-	        result = new ValidationResult(2, String.format("No host named %s found", hostName));
-	        return result;
-
-          } else {
-	        VirtualMachine[] vms = (host.getVms());
-	        for (VirtualMachine vm : vms) {
-	          VirtualMachineSummary vmSummary = vm.getSummary();
-	          if ("poweredOn".equals(vm.getRuntime().getPowerState().name())) {
-	            sum += vmSummary.getQuickStats().getBalloonedMemory() * 100 / vmSummary.getConfig().getMemorySizeMB();
-	            activeVms++;
-            }
-          }
-	        amount = activeVms == 0 ? 0 : sum / activeVms;
-        }
-        result = new ValidationResult(0, amount.toString());
-      }
-      catch (Exception ex) {
-        result = new ValidationResult(1, String.format("An error occurred : %s", ex.toString()));
-      }
-      return result;
-    }
-    
-    /**
-      * Returns the virtual machines active memory usage of a host
+      * Returns the average memory usage of the powered on virtual machines
+      * of a host, in percent of their configured memory. All the statistics
+      * of a host come from one traversal of its VMs, cached like the summaries.
     */
-    private ValidationResult getHostVmsStatsActive(String hostName)throws IOException {
+    private ValidationResult getHostVmsMemory(String hostName, String stat) throws IOException {
       ValidationResult result;
-      Integer amount;    
-    	try {
-	      HostSystem host = (HostSystem) getManagedEntity(hostName, "HostSystem");
-	      int sum = 0;
-	      int activeVms = 0;
-	      if (host == null) {
-	        result = new ValidationResult(2, String.format("No host named %s found", hostName));
-	        return result;
-
-          } else {
-	        VirtualMachine[] vms = (host.getVms());
-	        for (VirtualMachine vm : vms) {
-	          VirtualMachineSummary vmSummary = vm.getSummary();
-	          if ("poweredOn".equals(vm.getRuntime().getPowerState().name())) {
-	            sum += vmSummary.getQuickStats().getGuestMemoryUsage() * 100 / vmSummary.getConfig().getMemorySizeMB();
-	            activeVms++;
+      try {
+        HostSystem host = (HostSystem) getManagedEntity(hostName, "HostSystem");
+        if (host == null) {
+          result = new ValidationResult(2, String.format("No host named %s found", hostName));
+        } else {
+          HostVmsMemory memory = snapshotCache.get("vms", host, () -> {
+            try {
+              return HostVmsMemory.collect(getRetriever(), host.getMOR());
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
             }
-          }
-	        amount = activeVms == 0 ? 0 : sum / activeVms;
+          });
+          Integer amount = memory.getAverage(stat);
+          result = new ValidationResult(0, amount.toString());
         }
-        result = new ValidationResult(0, amount.toString());
       }
       catch (Exception ex) {
         result = new ValidationResult(1, String.format("An error occurred : %s", ex.toString()));
@@ -2564,7 +2537,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        VirtualMachineSummary vmSummary = vm.getSummary();
+	        VirtualMachineSummary vmSummary = summaryOf(vm);
 	        VirtualMachineQuickStats vmQuickStats = vmSummary.getQuickStats();
 	        usedMhz = vmQuickStats.getOverallCpuUsage();
 	        if (usedMhz == null) {
@@ -2592,7 +2565,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        VirtualMachineRuntimeInfo vmrti = vm.getRuntime();
+	        VirtualMachineRuntimeInfo vmrti = runtimeOf(vm);
 	        ManagedObjectReference hostMor = vmrti.getHost();
           if (hostMor != null) {
             ManagedEntity me = MorUtil.createExactManagedEntity(serviceInstance.getServerConnection(), hostMor);
@@ -2622,7 +2595,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        VirtualMachineConfigInfo vmcfg = vm.getConfig();
+	        VirtualMachineConfigInfo vmcfg = configOf(vm);
 	        VirtualHardware vmhd = vmcfg.getHardware();
 	        if (vmhd != null) {
 	          cores = vmhd.getNumCPU();
@@ -2652,7 +2625,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        VirtualMachineConfigInfo vmcfg = vm.getConfig();
+	        VirtualMachineConfigInfo vmcfg = configOf(vm);
 	        an = vmcfg.getAnnotation();
         }
         result = new ValidationResult(0, an);
@@ -2702,7 +2675,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        VirtualMachineRuntimeInfo vmrti = vm.getRuntime();
+	        VirtualMachineRuntimeInfo vmrti = runtimeOf(vm);
 	        String pState = vmrti.getPowerState().toString();
 	        if (null != pState) {
 	          switch (pState) {
@@ -2753,7 +2726,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        VirtualMachineRuntimeInfo vmrti = vm.getRuntime();
+	        VirtualMachineRuntimeInfo vmrti = runtimeOf(vm);
 	        String pState = vmrti.getPowerState().toString();
 	        if (pState.equals("poweredOn")) {
 	          // Check if counter exists
@@ -2820,7 +2793,7 @@ public class VmBix {
 
         } 
         else {
-	        VirtualMachineRuntimeInfo vmrti = vm.getRuntime();
+	        VirtualMachineRuntimeInfo vmrti = runtimeOf(vm);
 	        String pState = vmrti.getPowerState().toString();
 	        if (pState.equals("poweredOn")) {
 	          // Check if counter exists
@@ -3136,7 +3109,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        VirtualMachineRuntimeInfo vmrti = vm.getRuntime();
+	        VirtualMachineRuntimeInfo vmrti = runtimeOf(vm);
 	        String pState = vmrti.getPowerState().toString();
 	        if (pState.equals("poweredOn")) {
 	          PerfMetricId[] metricIdList = performanceManager.queryAvailablePerfMetric(vm, null, null, 20);
@@ -3191,52 +3164,45 @@ public class VmBix {
     }
 
     /**
-     * Returns a byte[] array of the Zabbix header and data.
+     * Returns the Zabbix header and data as buffers to be written with a
+     * single gathering write. The message is encoded once and the buffers
+     * are never copied into a whole packet. Successful responses larger
+     * than compressthreshold bytes are zlib-compressed (flag 0x02), the
+     * reserved header bytes then hold the uncompressed length.
     */
-    private byte[] makeZabbixPacket(ValidationResult result) {
-      byte[] data = result.message.getBytes();
-      byte[] err = new byte[] {};
+    static ByteBuffer[] makeZabbixPacket(ValidationResult result) {
+      ByteBuffer data = ByteBuffer.wrap(result.message == null ? new byte[0] : result.message.getBytes(ZabbixServer.UTF8));
+      ByteBuffer err = ByteBuffer.allocate(0);
+      byte flags = ZabbixServer.FLAG_PROTOCOL;
+      int uncompressed = 0;
       
       if (result.status == 1 || result.status == 2) {
-        err = new byte[] { 
-          'Z', 'B', 'X', '_', 'N', 'O',
-          'T', 'S', 'U', 'P', 'P', 'O',
-          'R', 'T', 'E', 'D', '\0' 
-        };
+        err = NOTSUPPORTED.duplicate();
+      } else if (compressThreshold > 0 && data.remaining() >= compressThreshold) {
+        ByteBuffer compressed = ZabbixServer.deflate(data);
+        if (compressed != null) {
+          uncompressed = data.remaining();
+          data = compressed;
+          flags |= ZabbixServer.FLAG_COMPRESSED;
+        }
       }
       
-      byte[] payload = new byte[err.length + data.length];
-      System.arraycopy(err, 0, payload, 0, err.length);
-      System.arraycopy(data, 0, payload, err.length, data.length);
-      
-      byte[] header = new byte[] {
-        'Z', 'B', 'X', 'D', '\1',
-            (byte)(payload.length & 0xFF),
-            (byte)((payload.length >> 8) & 0xFF),
-            (byte)((payload.length >> 16) & 0xFF),
-            (byte)((payload.length >> 24) & 0xFF),
-            '\0', '\0', '\0', '\0'
-      };
-      
-      byte[] packet = new byte[header.length + payload.length];
-      System.arraycopy(header, 0, packet, 0, header.length);
-      System.arraycopy(payload, 0, packet, header.length, payload.length);
-
-      try {
-        String s = new String(packet, "UTF-8");
-      }
-      catch (Exception ex) {}
+      int length = err.remaining() + data.remaining();
+      ByteBuffer header = ByteBuffer.allocate(ZabbixServer.HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+      header.put(new byte[] { 'Z', 'B', 'X', 'D', flags });
+      header.putInt(length);
+      header.putInt(uncompressed);
+      header.flip();
       
-      return packet;
+      return new ByteBuffer[] { header, err, data };
     }
     
     /**
      * Sends the formatted Zabbix packet to the Zabbix server
      */
-    private void sendZabbixPacket(byte[] packet, OutputStream out)throws IOException {
+    private void sendZabbixPacket(ByteBuffer[] packet, ZabbixServer.Client client)throws IOException {
       try {
-        out.write(packet);
-        out.flush();
+        client.reply(packet);
       }
       catch (Exception ex) {
         LOG.error(String.format("An error occurred : %s", ex.toString()));
@@ -3300,7 +3266,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        VirtualMachineSummary vmSummary = vm.getSummary();
+	        VirtualMachineSummary vmSummary = summaryOf(vm);
 	        VirtualMachineQuickStats vmQuickStats = vmSummary.getQuickStats();
           
 	        if (vmQuickStats != null) {
@@ -3331,7 +3297,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        VirtualMachineSummary vmSummary = vm.getSummary();
+	        VirtualMachineSummary vmSummary = summaryOf(vm);
 	        VirtualMachineQuickStats vmQuickStats = vmSummary.getQuickStats();
           
 	        amount = vmQuickStats.getPrivateMemory();
@@ -3360,7 +3326,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        VirtualMachineSummary vmSummary = vm.getSummary();
+	        VirtualMachineSummary vmSummary = summaryOf(vm);
 	        VirtualMachineQuickStats vmQuickStats = vmSummary.getQuickStats();
           
 	        amount = vmQuickStats.getSharedMemory();
@@ -3389,7 +3355,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        VirtualMachineSummary vmSummary = vm.getSummary();
+	        VirtualMachineSummary vmSummary = summaryOf(vm);
 	        VirtualMachineQuickStats vmQuickStats = vmSummary.getQuickStats();
           
 	        amount = vmQuickStats.getSwappedMemory();
@@ -3418,7 +3384,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        VirtualMachineSummary vmSummary = vm.getSummary();
+	        VirtualMachineSummary vmSummary = summaryOf(vm);
 	        VirtualMachineQuickStats vmQuickStats = vmSummary.getQuickStats();
           
 	        amount = vmQuickStats.getCompressedMemory();
@@ -3447,7 +3413,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        VirtualMachineSummary vmSummary = vm.getSummary();
+	        VirtualMachineSummary vmSummary = summaryOf(vm);
 	        VirtualMachineQuickStats vmQuickStats = vmSummary.getQuickStats();
           
 	        amount = vmQuickStats.getConsumedOverheadMemory();
@@ -3476,7 +3442,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        VirtualMachineSummary vmSummary = vm.getSummary();
+	        VirtualMachineSummary vmSummary = summaryOf(vm);
 	        VirtualMachineQuickStats vmQuickStats = vmSummary.getQuickStats();
           
 	        amount = vmQuickStats.getHostMemoryUsage();
@@ -3505,7 +3471,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        VirtualMachineSummary vmSummary = vm.getSummary();
+	        VirtualMachineSummary vmSummary = summaryOf(vm);
 	        VirtualMachineQuickStats vmQuickStats = vmSummary.getQuickStats();
           
 	        amount = vmQuickStats.getBalloonedMemory();
@@ -3534,7 +3500,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        VirtualMachineSummary vmSummary = vm.getSummary();
+	        VirtualMachineSummary vmSummary = summaryOf(vm);
 	        VirtualMachineQuickStats vmQuickStats = vmSummary.getQuickStats();
           
 	        amount = vmQuickStats.getGuestMemoryUsage();
@@ -3565,7 +3531,7 @@ public class VmBix {
 
         } 
         else {
-	        VirtualMachineRuntimeInfo vmRuntime = vm.getRuntime();
+	        VirtualMachineRuntimeInfo vmRuntime = runtimeOf(vm);
 	        is = vmRuntime.getConsolidationNeeded();
 	        if (is == null) {
 	          is = false;
@@ -3595,7 +3561,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        VirtualMachineRuntimeInfo vmRuntime = vm.getRuntime();
+	        VirtualMachineRuntimeInfo vmRuntime = runtimeOf(vm);
 	        is = vmRuntime.isToolsInstallerMounted();
 	        if (is == null) {
 	          is = false;
@@ -3623,7 +3589,7 @@ public class VmBix {
 	        return result;
 
         } else {
-	        VirtualMachineRuntimeInfo vmRuntimeInfo = vm.getRuntime();
+	        VirtualMachineRuntimeInfo vmRuntimeInfo = runtimeOf(vm);
 	        ManagedObjectReference hmor = vmRuntimeInfo.getHost();
 	        HostSystem host = new HostSystem(vm.getServerConnection(), hmor);
 	        vmHost = host.getName();
@@ -3649,7 +3615,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        VirtualMachineSummary vmSummary = vm.getSummary();
+	        VirtualMachineSummary vmSummary = summaryOf(vm);
 	        VirtualMachineGuestSummary vmGuest = vmSummary.getGuest();
 	        if (vmGuest == null) {
             result = new ValidationResult(1, String.format("Cannot query guest OS for VM %s", vmName));
@@ -3679,7 +3645,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        GuestInfo gInfo = vm.getGuest();
+	        GuestInfo gInfo = guestOf(vm);
 	        if (gInfo == null) {
             result = new ValidationResult(1, String.format("Cannot query guest OS for VM %s", vmName));
 	          return result;
@@ -3708,7 +3674,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        VirtualMachineSummary vmSummary = vm.getSummary();
+	        VirtualMachineSummary vmSummary = summaryOf(vm);
 	        VirtualMachineGuestSummary vmGuest = vmSummary.getGuest();
 	        if (vmGuest == null) {
             result = new ValidationResult(1, String.format("Cannot query guest OS for VM %s", vmName));
@@ -3740,7 +3706,7 @@ public class VmBix {
 	        return result;
         } 
         else {
-          GuestInfo gInfo = vm.getGuest();
+          GuestInfo gInfo = guestOf(vm);
           if (gInfo == null) {
             result = new ValidationResult(2, String.format("Cannot query guest OS for VM %s", vmName));
             return result;
@@ -3788,7 +3754,7 @@ public class VmBix {
 	        return result;
           
         } else {
-	        GuestInfo gInfo = vm.getGuest();
+	        GuestInfo gInfo = guestOf(vm);
 	        if (gInfo == null) {
             result = new ValidationResult(1, String.format("Cannot query guest OS for VM %s", vmName));
 	          return result;
@@ -3832,7 +3798,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        GuestInfo gInfo = vm.getGuest();
+	        GuestInfo gInfo = guestOf(vm);
 	        if (gInfo == null) {
             result = new ValidationResult(1, String.format("Cannot query guest OS for VM %s", vmName));
 	          return result;
@@ -3875,7 +3841,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        VirtualMachineSummary vmSummary = vm.getSummary();
+	        VirtualMachineSummary vmSummary = summaryOf(vm);
 	        VirtualMachineGuestSummary vmGuest = vmSummary.getGuest();
 	        if (vmGuest == null) {
             result = new ValidationResult(1, String.format("Cannot query guest OS for VM %s", vmName));
@@ -3905,7 +3871,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        VirtualMachineSummary vmSummary = vm.getSummary();
+	        VirtualMachineSummary vmSummary = summaryOf(vm);
 	        VirtualMachineStorageSummary vmStorage = vmSummary.getStorage();
 	        size = vmStorage.getCommitted();
         }
@@ -3930,7 +3896,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        VirtualMachineSummary vmSummary = vm.getSummary();
+	        VirtualMachineSummary vmSummary = summaryOf(vm);
 	        VirtualMachineStorageSummary vmStorage = vmSummary.getStorage();
 	        size = vmStorage.getUncommitted();
         }
@@ -3955,7 +3921,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        VirtualMachineSummary vmSummary = vm.getSummary();
+	        VirtualMachineSummary vmSummary = summaryOf(vm);
 	        VirtualMachineStorageSummary vmStorage = vmSummary.getStorage();
 	        size = vmStorage.getUnshared();
         }
@@ -3982,7 +3948,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        VirtualMachineSummary vmSummary = vm.getSummary();
+	        VirtualMachineSummary vmSummary = summaryOf(vm);
 	        VirtualMachineGuestSummary vmGuest = vmSummary.getGuest();
 	        if (vmGuest == null) {
 	          LOG.info("Cannot query guest OS for VM '" + vmName);
@@ -4047,7 +4013,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        VirtualMachineSummary vmSummary = vm.getSummary();
+	        VirtualMachineSummary vmSummary = summaryOf(vm);
 	        VirtualMachineGuestSummary vmGuest = vmSummary.getGuest();
 	        if (vmGuest == null) {
 	          LOG.info("Cannot query guest OS for VM '" + vmName);
@@ -4092,7 +4058,7 @@ public class VmBix {
 	        return result;
 
           } else {
-	        VirtualMachineSummary vmSummary = vm.getSummary();
+	        VirtualMachineSummary vmSummary = summaryOf(vm);
 	        VirtualMachineConfigSummary vmConfigSum = vmSummary.getConfig();
           
 	        amount = vmConfigSum.getMemorySizeMB();
@@ -4373,27 +4339,7 @@ public class VmBix {
     }
     
     private ValidationResult getPools()throws IOException {
-      ValidationResult result;
-      JsonObject jOutput = new JsonObject();
-      try {
-        ManagedEntity[] cl = getManagedEntities("ResourcePool");
-        JsonArray jArray = new JsonArray();
-        for (int j = 0; j < cl.length; j++) {
-          ResourcePool c = (ResourcePool) cl[j];
-          String name = c.getName();
-          
-          ResourcePoolSummary s = c.getSummary();
-          JsonObject jObject = new JsonObject();
-          jObject.addProperty("{#POOL}", name);
-          jArray.add(jObject);
-        }
-        jOutput.add("data", jArray);
-        result = new ValidationResult(0, jOutput.toString());
-      }
-      catch (Exception ex) {
-        result = new ValidationResult(1, String.format("An error occurred : %s", ex.toString()));
-      }
-      return result;
+      return getNameDiscovery("ResourcePool", "{#POOL}");
     }
     
     private ValidationResult getPoolMemUsage(String name)throws IOException {
@@ -4551,106 +4497,72 @@ public class VmBix {
       return result;
     }
     
+    /**
+      * Answers an error without running the request
+    */
+    private void refuse(ValidationResult result) {
+      LOG.error(result.message);
+      try {
+        sendZabbixPacket(makeZabbixPacket(result), connected);
+      } catch (Exception e) {
+        LOG.info("thread error: "
+        + e.toString() + ". closing socket"
+        );
+        connected.close();
+      }
+    }
+    
     public void run() {
-      LOG.debug("Thread created, collecting data in " + (Thread.activeCount() - 1) + " threads");
       ValidationResult result;
-      int reincornate = 1;
-      final int lifeTime = 2000;
-      int alive = 0;
-      
-      while (reincornate == 1) {
-        Request request = VmBix.pullConnection();
-        if (request == null) {
-          VmBix.sleep(10);
-          alive += 10;
-        } else {
-          connected = request.socket;
-          serviceInstance = request.serviceInstance;
-          alive = 0;
-          try {
-            OutputStream outputStream = connected.getOutputStream();
-            DataInputStream in = new DataInputStream( connected.getInputStream());
-
-            /* Start reading in the request here.  Grabbing just the first four
-             * bytes should let us know if it is zabbix 4+ (first four bytes
-             * will be "ZBXD".
-             */
-            byte[] protoCheck = new byte[4];
-            in.read(protoCheck, 0, protoCheck.length);
-            String headerStr = new String(protoCheck, "UTF-8");
-            String msgBodyStr = "";
-            
-            /* Check for a Zabbix 4+ header */
-            if (Objects.equals(headerStr, new String("ZBXD"))) {
-              /* Zabbix 4+ */
-
-              byte[] zbxFlags = new byte[1];
-              in.read(zbxFlags);
-
-              byte[] msgLenBin = new byte[4];
-              in.read(msgLenBin);
-              int msgLen = java.nio.ByteBuffer.wrap(msgLenBin).order(java.nio.ByteOrder.LITTLE_ENDIAN).getInt();
-
-              byte[] reservedBin = new byte[4];
-              in.read(reservedBin);
-
-              byte[] msgBodyBin = new byte[msgLen];
-              in.read(msgBodyBin);
-              msgBodyStr = new String(msgBodyBin);
-            }
-            else { // Zabbix pre-4.0
-              BufferedReader next = new BufferedReader(new InputStreamReader(connected.getInputStream()));
-              String nextBodyStr = next.readLine();
-              msgBodyStr = headerStr + nextBodyStr;
-            }
+      boolean leased = session == null;
+      if (!leased) {
+        session.acquire();
+      } else if (sessionPool != null) {
+        Session free = sessionPool.lease();
+        if (free == null) {
+          refuse(new ValidationResult(1, String.format("No free vCenter session after %d ms", sessionPool.getTimeout())));
+          return;
+        }
+        bind(free);
+      } else {
+        bind(Session.acquire(VmBix.session::get));
+      }
+      try {
+        String msgBodyStr = message;
+        if (msgBodyStr != null) {
+          long timerStart = System.currentTimeMillis();
 
-            int continues = 1;
-            while (continues == 1) {            
-              if (msgBodyStr != null) {
-                long timerStart = System.currentTimeMillis();
+          result = process(msgBodyStr);
+          
+          LOG.debug(String.format("Returned error status : %d", result.status));
+          LOG.debug(String.format("Returned message : %s", result.message));
 
-                result = checkAllPatterns(msgBodyStr);
-                
-                LOG.debug(String.format("Returned error status : %d", result.status));
-                LOG.debug(String.format("Returned message : %s", result.message));
-      
-                if (result.status == 1) {
-                  LOG.error(result.message);
-                }
-                if (result.status == 2) {
-                  LOG.warn(result.message);
-                }                
+          if (result.status == 1) {
+            LOG.error(result.message);
+          }
+          if (result.status == 2) {
+            LOG.warn(result.message);
+          }                
 
-                /* Get the byte array for the packet */
-                byte[] packet = makeZabbixPacket(result);
+          /* Get the buffers for the packet */
+          ByteBuffer[] packet = makeZabbixPacket(result);
 
-                /* Send the packet */
-                sendZabbixPacket(packet, outputStream);
+          /* Send the packet */
+          sendZabbixPacket(packet, connected);
 
-                long timerEnd = System.currentTimeMillis();
-                LOG.debug("Request took " + (timerEnd - timerStart) + " ms");
-              }
-              continues = 0;
-              
-            }
-            in.close();
-            connected.close();
-            } catch (IOException e) {
-            LOG.info("thread I/O error: "
-            + e.toString() + ". closing socket"
-            );
-            try {
-              connected.close();
-              } catch (IOException ee) {
-              LOG.info("thread I/O error, can't close socket: "
-              + ee.toString()
-              );
-            }
-          }
+          long timerEnd = System.currentTimeMillis();
+          LOG.debug("Request took " + (timerEnd - timerStart) + " ms");
         }
-        if (alive > lifeTime) {
-          LOG.debug("Thread closed, collecting data in " + (Thread.activeCount() - 2) + " threads");
-          reincornate = 0;
+        } catch (Exception e) {
+        LOG.info("thread error: "
+        + e.toString() + ". closing socket"
+        );
+        connected.close();
+      } finally {
+        if (leased && sessionPool != null) {
+          sessionPool.release(session);
+        } else {
+          session.release();
         }
       }
     }
@@ -0,0 +1,184 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Worker thread pool. The decoded requests are handed to the pool as soon
+  # as they are read, and the threads are kept alive between bursts.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class WorkerPool extends ThreadPoolExecutor implements Dispatcher {
+
+  static final Logger LOG = LoggerFactory.getLogger(WorkerPool.class);
+
+  private final AtomicLong rejected = new AtomicLong();
+  // The requests handed to the pool and not finished yet, and the worker
+  // threads, counted here rather than with getActiveCount and getPoolSize,
+  // which take the main lock of the pool
+  private final AtomicInteger pending = new AtomicInteger();
+  private final AtomicInteger threads;
+
+  WorkerPool(int coreThreads, int maxThreads, int keepAlive, int queueSize, String rejectionPolicy) {
+    this(coreThreads, maxThreads, keepAlive, queueSize, rejectionPolicy, new AtomicInteger());
+  }
+
+  private WorkerPool(int coreThreads, int maxThreads, int keepAlive, int queueSize, String rejectionPolicy,
+    AtomicInteger threads) {
+    super(coreThreads, maxThreads, keepAlive, TimeUnit.SECONDS, new WorkQueue(queueSize),
+      new Factory("vmbix-worker-", threads));
+    this.threads = threads;
+    ((WorkQueue) getQueue()).pool = this;
+    setRejectedExecutionHandler(new Rejection(rejectionPolicy));
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    pending.incrementAndGet();
+    super.execute(task);
+  }
+
+  @Override
+  protected void afterExecute(Runnable task, Throwable error) {
+    super.afterExecute(task, error);
+    pending.decrementAndGet();
+  }
+
+  @Override
+  public int getThreadCount() {
+    return threads.get();
+  }
+
+  @Override
+  public int getQueueSize() {
+    return getQueue().size();
+  }
+
+  @Override
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  /**
+   * Answers a request that could not be dispatched, according to the
+   * rejection policy :
+   * - notsupported : the request is answered with a ZBX_NOTSUPPORTED error
+   * - close : the connection is closed without any answer
+   */
+  static void reject(Runnable task, String policy) {
+    if (!(task instanceof VmBix.Connection)) {
+      return;
+    }
+    ZabbixServer.Client client = ((VmBix.Connection) task).connected;
+    LOG.warn("All workers are busy, rejecting request from " + client.remote());
+    if ("close".equals(policy)) {
+      client.close();
+    } else {
+      VmBix.ValidationResult result = new VmBix.ValidationResult(1, "VmBix is overloaded, request rejected");
+      client.reply(VmBix.Connection.makeZabbixPacket(result));
+    }
+  }
+
+  /**
+   * A ThreadPoolExecutor only starts threads above the core size once its
+   * queue is full. This queue refuses new tasks while the pool can still
+   * grow, so that a request is always handed to a thread immediately when
+   * one can be started, and is only queued when maxthreads are busy.
+   */
+  static class WorkQueue extends LinkedBlockingQueue<Runnable> {
+    private static final long serialVersionUID = 1L;
+
+    transient WorkerPool pool;
+
+    WorkQueue(int capacity) {
+      super(capacity);
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+      if (pool != null) {
+        int threads = pool.threads.get();
+        if (threads < pool.getMaximumPoolSize() && pool.pending.get() > threads) {
+          return false;
+        }
+      }
+      return super.offer(task);
+    }
+
+    boolean force(Runnable task) {
+      return super.offer(task);
+    }
+  }
+
+  /**
+   * Called when the pool could not start a thread. The task is queued if
+   * there is still room, otherwise the rejection policy is applied.
+   */
+  class Rejection implements RejectedExecutionHandler {
+    final String policy;
+
+    Rejection(String policy) {
+      this.policy = policy;
+    }
+
+    @Override
+    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+      if (!executor.isShutdown() && ((WorkQueue) executor.getQueue()).force(task)) {
+        return;
+      }
+      pending.decrementAndGet();
+      rejected.incrementAndGet();
+      reject(task, policy);
+    }
+  }
+
+  static class Factory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+    private final String prefix;
+    // The threads created and not ended yet, or null
+    private final AtomicInteger alive;
+
+    Factory(String prefix) {
+      this(prefix, null);
+    }
+
+    Factory(String prefix, AtomicInteger alive) {
+      this.prefix = prefix;
+      this.alive = alive;
+    }
+
+    @Override
+    public Thread newThread(Runnable task) {
+      Runnable body = task;
+      if (alive != null) {
+        alive.incrementAndGet();
+        body = () -> {
+          try {
+            task.run();
+          } finally {
+            alive.decrementAndGet();
+          }
+        };
+      }
+      Thread thread = new Thread(body, prefix + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
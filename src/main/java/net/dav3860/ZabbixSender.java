@@ -0,0 +1,111 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Sends values to a Zabbix server or proxy trapper with the "sender data"
+  # request, like zabbix_sender does.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class ZabbixSender {
+
+  static final Logger LOG = LoggerFactory.getLogger(ZabbixSender.class);
+
+  private final String server;
+  private final int port;
+  private final int timeout;
+
+  ZabbixSender(String server, int port, int timeout) {
+    this.server = server;
+    this.port = port;
+    this.timeout = timeout;
+  }
+
+  /**
+   * Builds one value of a sender data request
+   */
+  static JsonObject value(String host, String key, String value, long clock) {
+    JsonObject jObject = new JsonObject();
+    jObject.addProperty("host", host);
+    jObject.addProperty("key", key);
+    jObject.addProperty("value", value);
+    jObject.addProperty("clock", clock);
+    return jObject;
+  }
+
+  /**
+   * Sends a batch of values and returns the "info" string of the trapper
+   * response, for example "processed: 10; failed: 0; total: 10; ...".
+   */
+  String send(JsonArray values) throws IOException {
+    JsonObject jRequest = new JsonObject();
+    jRequest.addProperty("request", "sender data");
+    jRequest.add("data", values);
+    jRequest.addProperty("clock", System.currentTimeMillis() / 1000);
+    byte[] data = jRequest.toString().getBytes(ZabbixServer.UTF8);
+
+    ByteBuffer header = ByteBuffer.allocate(ZabbixServer.HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    header.put(new byte[] { 'Z', 'B', 'X', 'D', ZabbixServer.FLAG_PROTOCOL });
+    header.putInt(data.length);
+    header.putInt(0);
+
+    Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(server, port), timeout);
+      socket.setSoTimeout(timeout);
+      OutputStream out = socket.getOutputStream();
+      out.write(header.array());
+      out.write(data);
+      out.flush();
+
+      String response = readResponse(socket.getInputStream());
+      JsonElement jResponse = new JsonParser().parse(response);
+      if (!jResponse.isJsonObject() || !jResponse.getAsJsonObject().has("response")
+        || !"success".equals(jResponse.getAsJsonObject().get("response").getAsString())) {
+        throw new IOException("trapper refused the values: " + response);
+      }
+      JsonElement info = jResponse.getAsJsonObject().get("info");
+      return info == null ? "" : info.getAsString();
+    } finally {
+      socket.close();
+    }
+  }
+
+  private static String readResponse(InputStream stream) throws IOException {
+    DataInputStream in = new DataInputStream(stream);
+    byte[] header = new byte[ZabbixServer.HEADER_LENGTH];
+    in.readFully(header);
+    if (header[0] != 'Z' || header[1] != 'B' || header[2] != 'X' || header[3] != 'D') {
+      throw new IOException("invalid trapper response header");
+    }
+    int length = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).getInt(5);
+    if (length < 0 || length > ZabbixServer.MAX_REQUEST_LENGTH) {
+      throw new IOException("invalid trapper response length " + length);
+    }
+    byte[] data = new byte[length];
+    in.readFully(data);
+    return new String(data, ZabbixServer.UTF8);
+  }
+}
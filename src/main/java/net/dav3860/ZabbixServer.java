@@ -0,0 +1,416 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Non-blocking front-end of the daemon. A single selector thread accepts
+  # the Zabbix connections, reads and decodes the request frames and only
+  # hands complete requests to the worker threads. Connections sending ZBXD
+  # frames can be kept open to send several requests in a row.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class ZabbixServer {
+
+  static final Logger LOG = LoggerFactory.getLogger(ZabbixServer.class);
+
+  static final Charset UTF8           = Charset.forName("UTF-8");
+  static final int HEADER_LENGTH      = 13;
+  static final int MAX_REQUEST_LENGTH = 16 * 1024 * 1024;
+  static final int BUFFER_SIZE        = 1024;
+
+  static final byte FLAG_PROTOCOL     = 0x01;
+  static final byte FLAG_COMPRESSED   = 0x02;
+  static final byte FLAG_LARGE        = 0x04;
+
+  private final Selector selector;
+  private final ServerSocketChannel listen;
+  private final Queue<Client> replies = new ConcurrentLinkedQueue<Client>();
+  private final int idleTimeout;
+
+  /**
+   * The idle timeout is the time in ms a connection is kept open waiting
+   * for its next request. With 0, the connection is closed after the first
+   * response, as Zabbix does.
+   */
+  ZabbixServer(InetSocketAddress address, int backlog, int idleTimeout) throws IOException {
+    this.idleTimeout = idleTimeout;
+    selector = Selector.open();
+    listen = ServerSocketChannel.open();
+    listen.configureBlocking(false);
+    listen.socket().setReuseAddress(true);
+    listen.socket().bind(address, backlog);
+    listen.register(selector, SelectionKey.OP_ACCEPT);
+  }
+
+  /**
+   * A Zabbix connection. Its buffers are only touched by the selector thread,
+   * except for the reply which is handed over through the replies queue.
+   */
+  class Client {
+    final SocketChannel channel;
+    SelectionKey key;
+    ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+    ByteBuffer[] out;
+    boolean eof = false;
+    boolean framed = false;
+    boolean busy = false;
+    long lastActive = System.currentTimeMillis();
+
+    Client(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    /**
+     * Queues the response packet for this connection. Called by the worker
+     * threads, the actual write happens on the selector thread.
+     */
+    void reply(ByteBuffer[] packet) {
+      out = packet;
+      replies.add(this);
+      selector.wakeup();
+    }
+
+    /**
+     * Closes the connection without sending anything
+     */
+    void close() {
+      out = null;
+      replies.add(this);
+      selector.wakeup();
+    }
+
+    String remote() {
+      return String.valueOf(channel.socket().getRemoteSocketAddress());
+    }
+  }
+
+  /**
+   * Runs the selector loop. Never returns unless the selector fails.
+   */
+  void serve() throws IOException {
+    long nextSweep = System.currentTimeMillis();
+    while (true) {
+      if (idleTimeout > 0) {
+        selector.select(Math.min(idleTimeout, 1000));
+        long now = System.currentTimeMillis();
+        if (now >= nextSweep) {
+          closeIdle(now);
+          nextSweep = now + Math.min(idleTimeout, 1000);
+        }
+      } else {
+        selector.select();
+      }
+
+      Client client;
+      while ((client = replies.poll()) != null) {
+        startWrite(client);
+      }
+
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        if (!key.isValid()) {
+          continue;
+        }
+        try {
+          if (key.isAcceptable()) {
+            accept();
+          } else if (key.isReadable()) {
+            read((Client) key.attachment());
+          } else if (key.isWritable()) {
+            write((Client) key.attachment());
+          }
+        } catch (IOException e) {
+          LOG.info("connection I/O error: " + e.toString() + ". closing socket");
+          close((Client) key.attachment());
+        }
+      }
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel;
+    while ((channel = listen.accept()) != null) {
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      Client client = new Client(channel);
+      client.key = channel.register(selector, SelectionKey.OP_READ, client);
+    }
+  }
+
+  private void read(Client client) throws IOException {
+    if (!client.in.hasRemaining()) {
+      client.in = grow(client.in, client.in.capacity() * 2);
+    }
+    if (client.channel.read(client.in) < 0) {
+      client.eof = true;
+    }
+    client.lastActive = System.currentTimeMillis();
+    dispatch(client);
+  }
+
+  /**
+   * Hands the next complete request of a connection to the workers. Several
+   * frames may already be buffered if the client pipelines its requests,
+   * they are answered one at a time and in order.
+   */
+  private void dispatch(Client client) throws IOException {
+    String message = decode(client);
+    if (message != null) {
+      // Stop reading until the request has been answered
+      client.key.interestOps(0);
+      client.busy = true;
+      VmBix.requests++;
+      VmBix.putConnection(new VmBix.Request(client, message));
+    } else if (client.eof) {
+      close(client);
+    } else {
+      client.key.interestOps(SelectionKey.OP_READ);
+    }
+  }
+
+  private void startWrite(Client client) {
+    if (client.out == null) {
+      close(client);
+      return;
+    }
+    try {
+      client.key.interestOps(SelectionKey.OP_WRITE);
+      write(client);
+    } catch (Exception e) {
+      LOG.info("connection I/O error: " + e.toString() + ". closing socket");
+      close(client);
+    }
+  }
+
+  private void write(Client client) throws IOException {
+    // Gathering write of the header and the data
+    client.channel.write(client.out);
+    if (!hasRemaining(client.out)) {
+      client.out = null;
+      client.busy = false;
+      client.lastActive = System.currentTimeMillis();
+      // Only ZBXD frames tell where a request ends, other clients read
+      // the response until the connection is closed
+      if (idleTimeout > 0 && client.framed) {
+        dispatch(client);
+      } else {
+        close(client);
+      }
+    }
+  }
+
+  private static boolean hasRemaining(ByteBuffer[] buffers) {
+    for (ByteBuffer buffer : buffers) {
+      if (buffer.hasRemaining()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Closes the connections waiting for a request for more than idleTimeout
+   */
+  private void closeIdle(long now) {
+    for (SelectionKey key : selector.keys()) {
+      Object attachment = key.attachment();
+      if (!(attachment instanceof Client) || !key.isValid()) {
+        continue;
+      }
+      Client client = (Client) attachment;
+      if (!client.busy && now - client.lastActive > idleTimeout) {
+        LOG.debug("closing idle connection from " + client.remote());
+        close(client);
+      }
+    }
+  }
+
+  private void close(Client client) {
+    if (client == null) {
+      return;
+    }
+    try {
+      client.key.cancel();
+      client.channel.close();
+    } catch (IOException e) {
+      LOG.info("connection I/O error, can't close socket: " + e.toString());
+    }
+  }
+
+  /**
+   * Extracts a complete request from the input buffer of a connection.
+   * Returns null if more data must be read first. Zabbix 4+ requests start
+   * with a "ZBXD" header followed by a flags byte, the little-endian data
+   * length and 4 reserved bytes. When the data is zlib-compressed (flag
+   * 0x02), the reserved bytes hold its uncompressed length. Older requests
+   * are a single line of text.
+   */
+  static String decode(Client client) throws IOException {
+    ByteBuffer in = client.in;
+    int available = in.position();
+
+    if (isZabbixHeader(in, available)) {
+      if (available < HEADER_LENGTH) {
+        return null;
+      }
+      byte flags = in.get(4);
+      if ((flags & FLAG_LARGE) != 0) {
+        throw new IOException("large packets are not supported");
+      }
+      int length = in.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(5);
+      if (length < 0 || length > MAX_REQUEST_LENGTH) {
+        throw new IOException("invalid request length " + length);
+      }
+      if (available < HEADER_LENGTH + length) {
+        if (in.capacity() < HEADER_LENGTH + length) {
+          client.in = grow(in, HEADER_LENGTH + length);
+        }
+        return null;
+      }
+      String message;
+      if ((flags & FLAG_COMPRESSED) != 0) {
+        int uncompressed = in.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(9);
+        message = new String(inflate(in.array(), HEADER_LENGTH, length, uncompressed), UTF8);
+      } else {
+        message = new String(in.array(), HEADER_LENGTH, length, UTF8);
+      }
+      consume(in, HEADER_LENGTH + length);
+      client.framed = true;
+      return message;
+    }
+
+    if (available < 4 && !client.eof && isZabbixHeaderPrefix(in, available)) {
+      return null;
+    }
+
+    // Zabbix pre-4.0
+    for (int i = 0; i < available; i++) {
+      if (in.get(i) == '\n') {
+        int end = (i > 0 && in.get(i - 1) == '\r') ? i - 1 : i;
+        String message = new String(in.array(), 0, end, UTF8);
+        consume(in, i + 1);
+        client.framed = false;
+        return message;
+      }
+    }
+    if (available > MAX_REQUEST_LENGTH) {
+      throw new IOException("request line too long");
+    }
+    if (client.eof && available > 0) {
+      String message = new String(in.array(), 0, available, UTF8);
+      consume(in, available);
+      client.framed = false;
+      return message;
+    }
+    return null;
+  }
+
+  private static byte[] inflate(byte[] data, int offset, int length, int uncompressed) throws IOException {
+    if (uncompressed < 0 || uncompressed > MAX_REQUEST_LENGTH) {
+      throw new IOException("invalid uncompressed request length " + uncompressed);
+    }
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(data, offset, length);
+      byte[] message = new byte[uncompressed];
+      int size = 0;
+      while (size < uncompressed && !inflater.finished()) {
+        int n = inflater.inflate(message, size, uncompressed - size);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        size += n;
+      }
+      if (size != uncompressed) {
+        throw new IOException("compressed request is truncated");
+      }
+      return message;
+    } catch (DataFormatException e) {
+      throw new IOException("invalid compressed request: " + e.getMessage());
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Compresses a response body with zlib. Returns null if the compressed
+   * data would not be smaller.
+   */
+  static ByteBuffer deflate(ByteBuffer data) {
+    int length = data.remaining();
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(data.duplicate());
+      deflater.finish();
+      ByteBuffer compressed = ByteBuffer.allocate(length);
+      while (!deflater.finished() && compressed.hasRemaining()) {
+        deflater.deflate(compressed);
+      }
+      if (!deflater.finished()) {
+        return null;
+      }
+      compressed.flip();
+      return compressed;
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static boolean isZabbixHeader(ByteBuffer in, int available) {
+    return available >= 4
+      && in.get(0) == 'Z' && in.get(1) == 'B' && in.get(2) == 'X' && in.get(3) == 'D';
+  }
+
+  private static boolean isZabbixHeaderPrefix(ByteBuffer in, int available) {
+    byte[] header = new byte[] { 'Z', 'B', 'X', 'D' };
+    for (int i = 0; i < available; i++) {
+      if (in.get(i) != header[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Drops the first bytes of a buffer in write mode
+   */
+  private static void consume(ByteBuffer in, int length) {
+    in.flip();
+    in.position(length);
+    in.compact();
+  }
+
+  private static ByteBuffer grow(ByteBuffer in, int capacity) {
+    ByteBuffer bigger = ByteBuffer.allocate(capacity);
+    in.flip();
+    bigger.put(in);
+    return bigger;
+  }
+}
@@ -0,0 +1,198 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ActiveCollectorTest {
+
+  /**
+   * A Zabbix trapper on a local port, which records the sender data
+   * requests and answers them with the given response
+   */
+  static class FakeTrapper implements Runnable {
+    final ServerSocket socket;
+    final List<JsonObject> requests = Collections.synchronizedList(new ArrayList<JsonObject>());
+    volatile String response = "{\"response\":\"success\",\"info\":\"processed: 1\"}";
+
+    FakeTrapper() throws IOException {
+      socket = new ServerSocket(0);
+      Thread thread = new Thread(this, "fake-trapper");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    @Override
+    public void run() {
+      while (!socket.isClosed()) {
+        try (Socket client = socket.accept()) {
+          DataInputStream in = new DataInputStream(client.getInputStream());
+          byte[] header = new byte[ZabbixServer.HEADER_LENGTH];
+          in.readFully(header);
+          byte[] data = new byte[ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).getInt(5)];
+          in.readFully(data);
+          requests.add(new JsonParser().parse(new String(data, ZabbixServer.UTF8)).getAsJsonObject());
+
+          byte[] answer = response.getBytes(ZabbixServer.UTF8);
+          ByteBuffer packet = ByteBuffer.allocate(ZabbixServer.HEADER_LENGTH + answer.length).order(ByteOrder.LITTLE_ENDIAN);
+          packet.put(new byte[] { 'Z', 'B', 'X', 'D', ZabbixServer.FLAG_PROTOCOL });
+          packet.putInt(answer.length);
+          packet.putInt(0);
+          packet.put(answer);
+          OutputStream out = client.getOutputStream();
+          out.write(packet.array());
+          out.flush();
+        } catch (IOException ex) {
+          // closed
+        }
+      }
+    }
+
+    /**
+     * Returns the host and key of each value received
+     */
+    List<String> values() {
+      List<String> values = new ArrayList<String>();
+      synchronized (requests) {
+        for (JsonObject request : requests) {
+          assertEquals("sender data", request.get("request").getAsString());
+          for (JsonElement value : request.getAsJsonArray("data")) {
+            JsonObject jValue = value.getAsJsonObject();
+            values.add(jValue.get("host").getAsString() + " " + jValue.get("key").getAsString()
+              + "=" + jValue.get("value").getAsString());
+          }
+        }
+      }
+      return values;
+    }
+  }
+
+  /**
+   * Three VMs, the values of vm2 cannot be read
+   */
+  static class FakeSource implements ActiveCollector.Source {
+    @Override
+    public List<String> getEntityIds(String meType) {
+      return "VirtualMachine".equals(meType) ? Arrays.asList("vm1", "vm2", "vm3") : Collections.<String>emptyList();
+    }
+
+    @Override
+    public VmBix.ValidationResult check(String key) {
+      if (key.contains("vm2")) {
+        throw new IllegalStateException("vm2 is broken");
+      }
+      if (key.startsWith("vm.guest.os")) {
+        return new VmBix.ValidationResult(2, "No vm named found");
+      }
+      return new VmBix.ValidationResult(0, "42");
+    }
+  }
+
+  FakeTrapper trapper;
+  Map<String, String[]> items;
+  List<ActiveCollector> collectors = new ArrayList<ActiveCollector>();
+
+  @BeforeEach
+  void setUp() throws IOException {
+    trapper = new FakeTrapper();
+    items = new LinkedHashMap<String, String[]>();
+    items.put("vm", new String[] { "vm.cpu.load[{ID},used]", "vm.memory[{ID},total]", "vm.guest.os[{ID}]" });
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    for (ActiveCollector collector : collectors) {
+      collector.shutdown();
+    }
+    trapper.socket.close();
+  }
+
+  ActiveCollector collector(String host, int batchSize) {
+    ZabbixSender sender = new ZabbixSender("127.0.0.1", trapper.socket.getLocalPort(), 5000);
+    ActiveCollector collector = new ActiveCollector(sender, FakeSource::new, items, host, batchSize, 2);
+    collectors.add(collector);
+    return collector;
+  }
+
+  ActiveCollector collector(int batchSize) {
+    return collector(VmBix.TRAPPERHOST, batchSize);
+  }
+
+  @Test
+  void pushesTheValuesOfTheOtherObjectsWhenOneFails() {
+    collector(100).run();
+
+    assertEquals(Arrays.asList(
+      "vm1 vm.cpu.load[vm1,used]=42", "vm1 vm.memory[vm1,total]=42",
+      "vm3 vm.cpu.load[vm3,used]=42", "vm3 vm.memory[vm3,total]=42"), trapper.values());
+  }
+
+  @Test
+  void splitsTheValuesInBatches() {
+    collector(3).run();
+
+    assertEquals(2, trapper.requests.size());
+    assertEquals(3, trapper.requests.get(0).getAsJsonArray("data").size());
+    assertEquals(1, trapper.requests.get(1).getAsJsonArray("data").size());
+  }
+
+  @Test
+  void namesTheHostsAfterTheTemplate() {
+    collector("vmware-{ID}", 100).run();
+
+    assertEquals(Arrays.asList(
+      "vmware-vm1 vm.cpu.load[vm1,used]=42", "vmware-vm1 vm.memory[vm1,total]=42",
+      "vmware-vm3 vm.cpu.load[vm3,used]=42", "vmware-vm3 vm.memory[vm3,total]=42"), trapper.values());
+  }
+
+  @Test
+  void countsTheValuesRefusedByTheTrapper() {
+    trapper.response = "{\"response\":\"success\",\"info\":\"processed: 1; failed: 3; total: 4; seconds spent: 0.000100\"}";
+    ActiveCollector collector = collector(100);
+    collector.run();
+
+    JsonObject stats = collector.getStats();
+    assertEquals(1, stats.get("pushed").getAsInt());
+    assertEquals(3, stats.get("refused").getAsInt());
+    // The three keys of vm2
+    assertEquals(3, stats.get("unsent").getAsInt());
+  }
+
+  @Test
+  void senderFailsWhenTheTrapperRefusesTheValues() {
+    trapper.response = "{\"response\":\"failed\"}";
+    ZabbixSender sender = new ZabbixSender("127.0.0.1", trapper.socket.getLocalPort(), 5000);
+
+    assertThrows(IOException.class, () -> sender.send(new com.google.gson.JsonArray()));
+  }
+}
@@ -0,0 +1,149 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.mo.ManagedEntity;
+import com.vmware.vim25.mo.VirtualMachine;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class BulkRequestTest {
+
+  /**
+   * Answers vm.name[id] with the reference of the VM, found by a slow
+   * lookup counted in lookups. The VM named "missing" does not exist.
+   */
+  static class FakeConnection extends VmBix.Connection {
+    final AtomicInteger lookupCount;
+
+    FakeConnection(AtomicInteger lookupCount) {
+      super(new VmBix.Request(null, null), null);
+      this.lookupCount = lookupCount;
+    }
+
+    @Override
+    VmBix.Connection share(String key) {
+      FakeConnection connection = new FakeConnection(lookupCount);
+      connection.lookups = lookups;
+      return connection;
+    }
+
+    @Override
+    public VmBix.ValidationResult check(String key) throws IOException {
+      if (key.equals("boom")) {
+        throw new IllegalStateException("boom");
+      }
+      if (key.equals("slow")) {
+        try {
+          Thread.sleep(10000);
+        } catch (InterruptedException ex) {
+          throw new InterruptedIOException("canceled");
+        }
+      }
+      String id = key.substring(key.indexOf('[') + 1, key.indexOf(','));
+      ManagedEntity vm = getManagedEntity(id, "VirtualMachine");
+      if (vm == null) {
+        return new VmBix.ValidationResult(2, "No vm named " + id + " found");
+      }
+      return new VmBix.ValidationResult(0, vm.getMOR().getVal());
+    }
+
+    @Override
+    ManagedEntity lookupManagedEntity(String id, String meType) {
+      lookupCount.incrementAndGet();
+      VmBix.sleep(100);
+      if (id.equals("missing")) {
+        return null;
+      }
+      ManagedObjectReference mor = new ManagedObjectReference();
+      mor.setType(meType);
+      mor.setVal("vm-" + id);
+      return new VirtualMachine(null, mor);
+    }
+  }
+
+  final AtomicInteger lookupCount = new AtomicInteger();
+
+  @BeforeEach
+  void setUp() {
+    VmBix.bulkWorkers = Executors.newFixedThreadPool(8, new WorkerPool.Factory("test-bulk-"));
+  }
+
+  @AfterEach
+  void tearDown() {
+    VmBix.bulkWorkers.shutdownNow();
+    VmBix.bulkTimeout = Integer.parseInt(VmBix.BULKTIMEOUT);
+  }
+
+  JsonObject bulk(String... keys) throws IOException {
+    VmBix.ValidationResult result = new FakeConnection(lookupCount).getBulk(keys);
+    assertEquals(0, result.getStatus());
+    return new JsonParser().parse(result.getMessage()).getAsJsonObject();
+  }
+
+  @Test
+  void mapsEachKeyToItsValueOrError() throws IOException {
+    JsonObject answer = bulk("vm.cpu.load[web,used]", "vm.memory[missing,total]", "boom");
+
+    assertEquals(3, answer.size());
+    JsonObject value = answer.getAsJsonObject("vm.cpu.load[web,used]");
+    assertEquals("vm-web", value.get("value").getAsString());
+    assertNull(value.get("error"));
+    assertEquals("No vm named missing found", answer.getAsJsonObject("vm.memory[missing,total]").get("error").getAsString());
+    assertEquals("An error occurred : java.lang.IllegalStateException: boom",
+      answer.getAsJsonObject("boom").get("error").getAsString());
+  }
+
+  @Test
+  void sharesTheLookupsOfTheSameObject() throws IOException {
+    JsonObject answer = bulk("vm.cpu.load[web,used]", "vm.memory[web,total]", "vm.memory[web,private]",
+      "vm.status[web,]", "vm.cpu.load[db,used]");
+
+    assertEquals("vm-web", answer.getAsJsonObject("vm.status[web,]").get("value").getAsString());
+    assertEquals("vm-db", answer.getAsJsonObject("vm.cpu.load[db,used]").get("value").getAsString());
+    // One lookup for web and one for db
+    assertEquals(2, lookupCount.get());
+  }
+
+  @Test
+  void answersTheKeysTooSlowWithAnError() throws IOException {
+    VmBix.bulkTimeout = 500;
+    long start = System.currentTimeMillis();
+    JsonObject answer = bulk("slow", "vm.cpu.load[web,used]");
+
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    assertEquals("Timed out after 500 ms", answer.getAsJsonObject("slow").get("error").getAsString());
+    assertEquals("vm-web", answer.getAsJsonObject("vm.cpu.load[web,used]").get("value").getAsString());
+  }
+
+  @Test
+  void readsTheKeysOfABulkRequest() {
+    assertArrayEquals(new String[] { "vm.name[web]", "vm.cpu.load[a,used]" },
+      VmBix.Connection.getBulkKeys("[\"vm.name[web]\", \"vm.cpu.load[a,used]\"]"));
+    assertArrayEquals(new String[] { "vm.name[web]", "vm.cpu.load[a,used]" },
+      VmBix.Connection.getBulkKeys("vmbix.bulk[vm.name[web],\"vm.cpu.load[a,used]\"]"));
+    assertNull(VmBix.Connection.getBulkKeys("vm.name[web]"));
+  }
+}
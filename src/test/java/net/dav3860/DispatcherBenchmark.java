@@ -0,0 +1,89 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Compares the platform worker pool with the virtual thread workers. Each
+  # invocation dispatches a burst of requests which block for soapMillis,
+  # like a request waiting for vCenter, and waits for all of them. With
+  # soapMillis = 0 it measures the dispatch overhead alone.
+  #
+  #   mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+  #   java -cp target/test-classes:target/classes:$(cat target/cp.txt) \
+  #     org.openjdk.jmh.Main DispatcherBenchmark
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatcherBenchmark {
+
+  @Param({ "platform", "virtual" })
+  public String mode;
+
+  @Param({ "100", "1000" })
+  public int requests;
+
+  @Param({ "0", "5" })
+  public int soapMillis;
+
+  private Dispatcher dispatcher;
+
+  @Setup
+  public void setup() {
+    // The default sizes of vmbix.conf. The queue and the virtual thread
+    // limit hold a whole burst, since a rejected request would never end.
+    if ("virtual".equals(mode)) {
+      dispatcher = new VirtualWorkers(Math.max(Integer.parseInt(VmBix.MAXVIRTUALTHREADS), requests), "close");
+    } else {
+      dispatcher = new WorkerPool(Integer.parseInt(VmBix.CORETHREADS), Integer.parseInt(VmBix.MAXTHREADS),
+        Integer.parseInt(VmBix.THREADKEEPALIVE), requests, "close");
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (dispatcher instanceof WorkerPool) {
+      ((WorkerPool) dispatcher).shutdownNow();
+    }
+  }
+
+  @Benchmark
+  public void burst() throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(requests);
+    for (int i = 0; i < requests; i++) {
+      dispatcher.execute(() -> {
+        if (soapMillis > 0) {
+          VmBix.sleep(soapMillis);
+        }
+        done.countDown();
+      });
+    }
+    done.await();
+  }
+}
@@ -0,0 +1,114 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.VirtualMachineQuickStats;
+import org.junit.jupiter.api.Test;
+
+class HostVmsMemoryTest {
+
+  /**
+   * Returns the VMs given for the VMs of host-1
+   */
+  static class FakeRetriever extends PropertyRetriever {
+    final List<Map<String, Object>> vms = new ArrayList<Map<String, Object>>();
+
+    FakeRetriever() {
+      super(null);
+    }
+
+    FakeRetriever vm(VirtualMachinePowerState state, int size, int privateMb, int sharedMb, int swappedKb,
+      long compressedKb, int overheadMb, int consumedMb, int balloonedMb, int activeMb) {
+      VirtualMachineQuickStats qs = new VirtualMachineQuickStats();
+      qs.setPrivateMemory(privateMb);
+      qs.setSharedMemory(sharedMb);
+      qs.setSwappedMemory(swappedKb);
+      qs.setCompressedMemory(compressedKb);
+      qs.setConsumedOverheadMemory(overheadMb);
+      qs.setHostMemoryUsage(consumedMb);
+      qs.setBalloonedMemory(balloonedMb);
+      qs.setGuestMemoryUsage(activeMb);
+      Map<String, Object> props = new HashMap<String, Object>();
+      props.put("summary.quickStats", qs);
+      props.put("summary.config.memorySizeMB", size);
+      props.put("runtime.powerState", state);
+      vms.add(props);
+      return this;
+    }
+
+    @Override
+    void retrieve(ManagedObjectReference parent, String path, String type, String[] paths, Handler handler)
+      throws IOException {
+      assertEquals("host-1", parent.getVal());
+      assertEquals("vm", path);
+      assertEquals("VirtualMachine", type);
+      assertArrayEquals(HostVmsMemory.PATHS, paths);
+      for (int i = 0; i < vms.size(); i++) {
+        ManagedObjectReference mor = new ManagedObjectReference();
+        mor.setType("VirtualMachine");
+        mor.setVal("vm-" + i);
+        handler.handle(mor, vms.get(i));
+      }
+    }
+  }
+
+  static HostVmsMemory collect(FakeRetriever retriever) throws IOException {
+    ManagedObjectReference host = new ManagedObjectReference();
+    host.setType("HostSystem");
+    host.setVal("host-1");
+    return HostVmsMemory.collect(retriever, host);
+  }
+
+  @Test
+  void averagesThePoweredOnVms() throws IOException {
+    HostVmsMemory memory = collect(new FakeRetriever()
+      .vm(VirtualMachinePowerState.poweredOn, 4096, 1000, 200, 300000, 50000L, 40, 2000, 100, 900)
+      .vm(VirtualMachinePowerState.poweredOn, 2048, 2047, 0, 1023, 2049L, 30, 2048, 0, 10)
+      .vm(VirtualMachinePowerState.poweredOff, 1024, 1024, 1024, 1048576, 1048576L, 1024, 1024, 1024, 1024));
+
+    // The formulas of the former per item getters : each VM's share of its
+    // memory size in integer percents, swapped and compressed in KB
+    assertEquals((1000 * 100 / 4096 + 2047 * 100 / 2048) / 2, memory.getAverage("private"));
+    assertEquals((200 * 100 / 4096 + 0 * 100 / 2048) / 2, memory.getAverage("shared"));
+    assertEquals(((300000 / 1024) * 100 / 4096 + (1023 / 1024) * 100 / 2048) / 2, memory.getAverage("swapped"));
+    assertEquals(((50000L / 1024) * 100 / 4096 + (2049L / 1024) * 100 / 2048) / 2, memory.getAverage("compressed"));
+    assertEquals((40 * 100 / 4096 + 30 * 100 / 2048) / 2, memory.getAverage("overheadConsumed"));
+    assertEquals((2000 * 100 / 4096 + 2048 * 100 / 2048) / 2, memory.getAverage("consumed"));
+    assertEquals((100 * 100 / 4096 + 0 * 100 / 2048) / 2, memory.getAverage("ballooned"));
+    assertEquals((900 * 100 / 4096 + 10 * 100 / 2048) / 2, memory.getAverage("active"));
+
+    // The same values, worked out
+    assertEquals(61, memory.getAverage("private"));
+    assertEquals(3, memory.getAverage("swapped"));
+    assertEquals(0, memory.getAverage("compressed"));
+    assertEquals(74, memory.getAverage("consumed"));
+  }
+
+  @Test
+  void returnsZeroWithoutPoweredOnVms() throws IOException {
+    HostVmsMemory memory = collect(new FakeRetriever()
+      .vm(VirtualMachinePowerState.suspended, 1024, 512, 512, 1024, 1024L, 10, 512, 0, 256));
+    for (String stat : HostVmsMemory.STATS) {
+      assertEquals(0, memory.getAverage(stat), stat);
+    }
+  }
+}
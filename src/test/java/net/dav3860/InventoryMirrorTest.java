@@ -0,0 +1,379 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.mo.ServiceInstance;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class InventoryMirrorTest {
+
+  InventoryMirror mirror;
+
+  @BeforeEach
+  void setUp() {
+    mirror = new InventoryMirror();
+  }
+
+  @AfterEach
+  void tearDown() {
+    VmBix.useUuid = Boolean.parseBoolean(VmBix.USEUUID);
+  }
+
+  /**
+   * An update of a VM, the properties are given as name, value pairs
+   */
+  static ObjectUpdate vm(ObjectUpdateKind kind, String mor, Object... props) {
+    ManagedObjectReference ref = new ManagedObjectReference();
+    ref.setType("VirtualMachine");
+    ref.setVal(mor);
+    ObjectUpdate update = new ObjectUpdate();
+    update.setKind(kind);
+    update.setObj(ref);
+    PropertyChange[] changes = new PropertyChange[props.length / 2];
+    for (int i = 0; i < changes.length; i++) {
+      changes[i] = new PropertyChange();
+      changes[i].setName((String) props[2 * i]);
+      changes[i].setVal(props[2 * i + 1]);
+      changes[i].setOp(props[2 * i + 1] == null ? PropertyChangeOp.remove : PropertyChangeOp.assign);
+    }
+    update.setChangeSet(changes);
+    return update;
+  }
+
+  static UpdateSet set(ObjectUpdate... updates) {
+    PropertyFilterUpdate filter = new PropertyFilterUpdate();
+    filter.setObjectSet(updates);
+    UpdateSet set = new UpdateSet();
+    set.setFilterSet(new PropertyFilterUpdate[] { filter });
+    set.setVersion("1");
+    return set;
+  }
+
+  Map<String, String> names() {
+    return mirror.names.get("VirtualMachine");
+  }
+
+  Map<String, String> uuids() {
+    return mirror.uuids.get("VirtualMachine");
+  }
+
+  String memory(String id) throws IOException {
+    VmBix.ValidationResult result = mirror.evaluate("vm.memory[" + id + ",total]");
+    return result == null ? null : result.getMessage();
+  }
+
+  @Test
+  void answersOnceSynchronized() throws IOException {
+    UpdateSet truncated = set(vm(ObjectUpdateKind.enter, "vm-1", "name", "web", "summary.config.memorySizeMB", 1024));
+    truncated.setTruncated(true);
+    mirror.update(truncated);
+    assertNull(memory("web"));
+
+    mirror.update(set(vm(ObjectUpdateKind.enter, "vm-2", "name", "db", "summary.config.memorySizeMB", 2048)));
+    assertEquals("1024", memory("web"));
+    assertEquals("2048", memory("db"));
+    assertNull(memory("mail"));
+  }
+
+  @Test
+  void appliesTheChangedProperties() throws IOException {
+    mirror.update(set(vm(ObjectUpdateKind.enter, "vm-1", "name", "web", "config.uuid", "4210-a",
+      "summary.config.memorySizeMB", 1024)));
+    mirror.update(set(vm(ObjectUpdateKind.modify, "vm-1", "summary.config.memorySizeMB", 4096)));
+    assertEquals("4096", memory("web"));
+    assertEquals("vm-1", names().get("web"));
+    assertEquals("vm-1", uuids().get("4210-a"));
+
+    mirror.update(set(vm(ObjectUpdateKind.modify, "vm-1", "name", "www")));
+    assertEquals("4096", memory("www"));
+    assertNull(memory("web"));
+    assertEquals("vm-1", names().get("www"));
+    assertFalse(names().containsKey("web"));
+
+    VmBix.useUuid = true;
+    assertEquals("4096", memory("4210-a"));
+
+    mirror.update(set(vm(ObjectUpdateKind.modify, "vm-1", "summary.config.memorySizeMB", null)));
+    assertNull(memory("4210-a"));
+  }
+
+  @Test
+  void forgetsTheObjectsWhichLeave() throws IOException {
+    mirror.update(set(vm(ObjectUpdateKind.enter, "vm-1", "name", "web", "config.uuid", "4210-a",
+      "summary.config.memorySizeMB", 1024)));
+    mirror.update(set(vm(ObjectUpdateKind.leave, "vm-1")));
+    assertNull(memory("web"));
+    assertFalse(names().containsKey("web"));
+    assertFalse(uuids().containsKey("4210-a"));
+    assertEquals(0, mirror.getStats().get("objects").getAsInt());
+  }
+
+  @Test
+  void findsTheOtherObjectOfTheSameName() throws IOException {
+    mirror.update(set(
+      vm(ObjectUpdateKind.enter, "vm-1", "name", "web", "summary.config.memorySizeMB", 1024),
+      vm(ObjectUpdateKind.enter, "vm-2", "name", "web", "summary.config.memorySizeMB", 2048),
+      vm(ObjectUpdateKind.enter, "vm-3", "name", "web", "summary.config.memorySizeMB", 4096)));
+    assertEquals("vm-1", names().get("web"));
+    assertEquals("1024", memory("web"));
+
+    mirror.update(set(vm(ObjectUpdateKind.leave, "vm-1")));
+    String survivor = names().get("web");
+    assertEquals(survivor.equals("vm-2") ? "2048" : "4096", memory("web"));
+
+    // A rename moves the name to the last object
+    mirror.update(set(vm(ObjectUpdateKind.modify, survivor, "name", "www")));
+    String last = survivor.equals("vm-2") ? "vm-3" : "vm-2";
+    assertEquals(last, names().get("web"));
+    assertEquals(survivor, names().get("www"));
+
+    // Leaving objects which are not indexed keeps the name
+    mirror.update(set(vm(ObjectUpdateKind.enter, "vm-4", "name", "web")));
+    mirror.update(set(vm(ObjectUpdateKind.leave, "vm-4")));
+    assertEquals(last, names().get("web"));
+  }
+
+  static final String ENVELOPE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+    + "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\""
+    + " xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">"
+    + "<soapenv:Body>%s</soapenv:Body></soapenv:Envelope>";
+  static final String SERVICE_CONTENT = "<returnval><rootFolder type=\"Folder\">group-d1</rootFolder>"
+    + "<propertyCollector type=\"PropertyCollector\">propertyCollector</propertyCollector>"
+    + "<viewManager type=\"ViewManager\">ViewManager</viewManager>"
+    + "<about><name>VMware vCenter Server</name><fullName>VMware vCenter Server 6.0.0</fullName>"
+    + "<vendor>VMware, Inc.</vendor><version>6.0.0</version><build>1</build><osType>linux-x64</osType>"
+    + "<productLineId>vpx</productLineId><apiType>VirtualCenter</apiType><apiVersion>6.0</apiVersion></about>"
+    + "<sessionManager type=\"SessionManager\">SessionManager</sessionManager></returnval>";
+  static final String CANCELED = "<soapenv:Fault><faultcode>ServerFaultCode</faultcode>"
+    + "<faultstring>The task was canceled by a user.</faultstring><detail>"
+    + "<RequestCanceledFault xmlns=\"urn:vim25\" xsi:type=\"RequestCanceled\"></RequestCanceledFault>"
+    + "</detail></soapenv:Fault>";
+  static final String NOTHING = "";
+  static final Pattern OPERATION = Pattern.compile("<soapenv:Body><(\\w+)");
+  static final Pattern VERSION = Pattern.compile("<version>(.*?)</version>");
+
+  /**
+   * A set of updates of the filter, as sent by WaitForUpdatesEx. The
+   * changes are given as name, XML value pairs.
+   */
+  static String updates(String version, boolean truncated, String... objects) {
+    StringBuilder set = new StringBuilder("<returnval><version>" + version + "</version><filterSet>"
+      + "<filter type=\"PropertyFilter\">session[1]filter</filter>");
+    for (String object : objects) {
+      set.append(object);
+    }
+    return set.append("</filterSet><truncated>" + truncated + "</truncated></returnval>").toString();
+  }
+
+  static String object(String kind, String mor, String... changes) {
+    StringBuilder object = new StringBuilder("<objectSet><kind>" + kind + "</kind><obj type=\"VirtualMachine\">"
+      + mor + "</obj>");
+    for (int i = 0; i < changes.length; i += 2) {
+      object.append("<changeSet><name>" + changes[i] + "</name><op>assign</op>" + changes[i + 1] + "</changeSet>");
+    }
+    return object.append("</objectSet>").toString();
+  }
+
+  /**
+   * A vCenter stand-in for the inventory watch. It records the calls, the
+   * filter and the versions asked by WaitForUpdatesEx, and answers each
+   * wait with the next queued update set. A wait is canceled by
+   * CancelWaitForUpdates.
+   */
+  class Vcenter {
+    final HttpServer server;
+    final ExecutorService executor = Executors.newCachedThreadPool();
+    final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    final BlockingQueue<String> versions = new LinkedBlockingQueue<String>();
+    final BlockingQueue<String> answers = new LinkedBlockingQueue<String>();
+    volatile String filter;
+
+    Vcenter() throws IOException {
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      // A wait is pending while the other calls are answered
+      server.setExecutor(executor);
+      server.createContext("/sdk", this::answer);
+      server.start();
+    }
+
+    ServiceInstance login() throws IOException {
+      return new ServiceInstance(new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/sdk"),
+        "root", "secret", true);
+    }
+
+    void answer(HttpExchange exchange) throws IOException {
+      String request = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+      Matcher matcher = OPERATION.matcher(request);
+      String operation = matcher.find() ? matcher.group(1) : "";
+      calls.add(operation);
+      int code = 200;
+      String body = "";
+      switch (operation) {
+        case "RetrieveServiceContent":
+          body = SERVICE_CONTENT;
+          break;
+        case "Login":
+          body = "<returnval><key>52a1</key><userName>root</userName><fullName>root</fullName></returnval>";
+          break;
+        case "CreatePropertyCollector":
+          body = "<returnval type=\"PropertyCollector\">session[1]pc</returnval>";
+          break;
+        case "CreateContainerView":
+          body = "<returnval type=\"ContainerView\">session[1]view</returnval>";
+          break;
+        case "CreateFilter":
+          filter = request;
+          body = "<returnval type=\"PropertyFilter\">session[1]filter</returnval>";
+          break;
+        case "WaitForUpdatesEx":
+          Matcher version = VERSION.matcher(request);
+          versions.add(version.find() ? version.group(1) : "?");
+          try {
+            String answer = answers.poll(30, TimeUnit.SECONDS);
+            body = answer == null ? NOTHING : answer;
+          } catch (InterruptedException ex) {
+            body = NOTHING;
+          }
+          break;
+        case "CancelWaitForUpdates":
+          answers.add(CANCELED);
+          break;
+        default:
+          break;
+      }
+      String xml;
+      if (CANCELED.equals(body)) {
+        code = 500;
+        xml = String.format(ENVELOPE, body);
+      } else {
+        xml = String.format(ENVELOPE, "<" + operation + "Response xmlns=\"urn:vim25\">" + body + "</" + operation + "Response>");
+      }
+      byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+      exchange.sendResponseHeaders(code, bytes.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(bytes);
+      }
+    }
+
+    String version() throws InterruptedException {
+      String version = versions.poll(10, TimeUnit.SECONDS);
+      assertTrue(version != null, "no WaitForUpdatesEx call");
+      return version;
+    }
+
+    void stop() {
+      server.stop(0);
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void watchesTheInventoryUntilTheSessionChanges() throws Exception {
+    Vcenter vcenter = new Vcenter();
+    ExecutorService watcher = Executors.newSingleThreadExecutor();
+    try {
+      ServiceInstance[] current = new ServiceInstance[] { vcenter.login() };
+      mirror = new InventoryMirror() {
+        @Override
+        ServiceInstance serviceInstance() {
+          return current[0];
+        }
+      };
+      vcenter.answers.add(updates("1", true,
+        object("enter", "vm-1", "name", "<val xsi:type=\"xsd:string\">web</val>",
+          "summary.config.memorySizeMB", "<val xsi:type=\"xsd:int\">1024</val>",
+          "summary.quickStats", "<val xsi:type=\"VirtualMachineQuickStats\">"
+            + "<overallCpuUsage>120</overallCpuUsage><privateMemory>512</privateMemory></val>")));
+      Future<?> watch = watcher.submit(() -> {
+        mirror.watch();
+        return null;
+      });
+
+      assertEquals("", vcenter.version());
+      // The first set is truncated : it is applied, but the mirror does not
+      // answer until the rest is received
+      assertEquals("1", vcenter.version());
+      assertEquals(1, mirror.getStats().get("objects").getAsInt());
+      assertNull(memory("web"));
+
+      // Nothing changed during the wait : the same version is asked again
+      vcenter.answers.add(NOTHING);
+      assertEquals("1", vcenter.version());
+
+      vcenter.answers.add(updates("2", false,
+        object("enter", "vm-2", "name", "<val xsi:type=\"xsd:string\">db</val>",
+          "summary.config.memorySizeMB", "<val xsi:type=\"xsd:int\">2048</val>"),
+        object("modify", "vm-1", "summary.config.memorySizeMB", "<val xsi:type=\"xsd:int\">4096</val>")));
+      assertEquals("2", vcenter.version());
+      assertEquals("4096", memory("web"));
+      assertEquals("2048", memory("db"));
+      assertEquals("120", mirror.evaluate("vm.cpu.load[web,used]").getMessage());
+      assertEquals(1, mirror.getStats().get("ready").getAsInt());
+
+      // One filter over a view of all the mirrored types, with whole values
+      String filter = vcenter.filter;
+      assertTrue(filter.contains("<obj type=\"ContainerView\">session[1]view</obj><skip>true</skip>"));
+      assertTrue(filter.contains("<path>view</path><skip>false</skip>"));
+      assertTrue(filter.contains("<partialUpdates>false</partialUpdates>"));
+      for (MetricsServer.Kind kind : MetricsServer.KINDS) {
+        assertTrue(filter.contains("<propSet><type>" + kind.type + "</type><all>false</all><pathSet>"
+          + String.join("</pathSet><pathSet>", kind.paths) + "</pathSet></propSet>"), kind.type);
+      }
+
+      // A new session cancels the pending wait, and the watch ends
+      current[0] = vcenter.login();
+      mirror.sessionChanged();
+      watch.get(10, TimeUnit.SECONDS);
+      assertTrue(vcenter.calls.contains("CancelWaitForUpdates"));
+      assertTrue(vcenter.calls.contains("DestroyView"));
+      assertTrue(vcenter.calls.contains("DestroyPropertyCollector"));
+      assertEquals(4, Collections.frequency(vcenter.calls, "WaitForUpdatesEx"));
+    } finally {
+      watcher.shutdownNow();
+      vcenter.stop();
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Compares the dispatch cost of an item key with the former regular
+  # expressions, compiled and all matched on each request, and with the
+  # key router. The router has the routes of VmBix with handlers doing
+  # nothing, so that only the dispatch is measured.
+  #
+  #   mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+  #   java -cp target/test-classes:target/classes:$(cat target/cp.txt) \
+  #     org.openjdk.jmh.Main KeyRouterBenchmark
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyRouterBenchmark {
+
+  // The patterns of the former checkAllPatterns
+  static final String[] REGEXES = {
+    "^(?:\\s*ZBXD.)?.*pool\\.(discovery)",
+    "^(?:\\s*ZBXD.)?.*pool\\.mem\\[(.+),usage\\]",
+    "^(?:\\s*ZBXD.)?.*pool\\.cpu\\[(.+),usage\\]",
+    "^(?:\\s*ZBXD.)?.*(ping)",
+    "^(?:\\s*ZBXD.)?.*(about)",
+    "^(?:\\s*ZBXD.)?.*(vmbix\\.version)",
+    "^(?:\\s*ZBXD.)?.*(vmbix\\.stats\\[threads\\])",
+    "^(?:\\s*ZBXD.)?.*(vmbix\\.stats\\[queue\\])",
+    "^(?:\\s*ZBXD.)?.*(vmbix\\.stats\\[requests\\])",
+    "^(?:\\s*ZBXD.)?.*vmbix\\.stats\\[cachesize,(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*vmbix\\.stats\\[hitrate,(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*cluster\\.(discovery)",
+    "^(?:\\s*ZBXD.)?.*cluster\\.cpu\\[(.+),free\\]",
+    "^(?:\\s*ZBXD.)?.*cluster\\.cpu\\[(.+),total\\]",
+    "^(?:\\s*ZBXD.)?.*cluster\\.cpu\\[(.+),usage\\]",
+    "^(?:\\s*ZBXD.)?.*cluster\\.cpu.num\\[(.+),threads\\]",
+    "^(?:\\s*ZBXD.)?.*cluster\\.cpu.num\\[(.+),cores\\]",
+    "^(?:\\s*ZBXD.)?.*cluster\\.mem\\[(.+),free\\]",
+    "^(?:\\s*ZBXD.)?.*cluster\\.mem\\[(.+),total\\]",
+    "^(?:\\s*ZBXD.)?.*cluster\\.mem\\[(.+),usage\\]",
+    "^(?:\\s*ZBXD.)?.*cluster\\.hosts\\[(.+),online\\]",
+    "^(?:\\s*ZBXD.)?.*cluster\\.hosts\\[(.+),maint\\]",
+    "^(?:\\s*ZBXD.)?.*cluster\\.hosts\\[(.+),total\\]",
+    "^(?:\\s*ZBXD.)?.*datacenter\\.(discovery)",
+    "^(?:\\s*ZBXD.)?.*datacenter\\.status\\[(.+),(overall|config)\\]",
+    "^(?:\\s*ZBXD.)?.*(event\\.latest)",
+    "^(?:\\s*ZBXD.)?.*vm\\.(discovery)\\.(full)",
+    "^(?:\\s*ZBXD.)?.*vm\\.(discovery)",
+    "^(?:\\s*ZBXD.)?.*esx\\.(discovery)",
+    "^(?:\\s*ZBXD.)?.*datastore\\.(discovery)",
+    "^(?:\\s*ZBXD.)?.*esx\\.connection\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*esx\\.uptime\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*esx\\.status\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*esx\\.name\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.status\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*esx\\.maintenance\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*esx\\.cpu\\.load\\[(.+),used\\]",
+    "^(?:\\s*ZBXD.)?.*esx\\.path\\[(.+),disabled\\]",
+    "^(?:\\s*ZBXD.)?.*esx\\.path\\[(.+),active\\]",
+    "^(?:\\s*ZBXD.)?.*esx\\.path\\[(.+),standby\\]",
+    "^(?:\\s*ZBXD.)?.*esx\\.path\\[(.+),dead\\]",
+    "^(?:\\s*ZBXD.)?.*esx\\.cpu\\.load\\[(.+),total\\]",
+    "^(?:\\s*ZBXD.)?.*esx\\.vms\\.count\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*esx\\.cpu\\.load\\[(.+),cores\\]",
+    "^(?:\\s*ZBXD.)?.*esx\\.memory\\[(.+),used\\]",
+    "^(?:\\s*ZBXD.)?.*esx\\.memory\\[(.+),total\\]",
+    "^(?:\\s*ZBXD.)?.*esx\\.vms.memory\\[(.+),private\\]",
+    "^(?:\\s*ZBXD.)?.*esx\\.vms.memory\\[(.+),shared\\]",
+    "^(?:\\s*ZBXD.)?.*esx\\.vms.memory\\[(.+),swapped\\]",
+    "^(?:\\s*ZBXD.)?.*esx\\.vms.memory\\[(.+),compressed\\]",
+    "^(?:\\s*ZBXD.)?.*esx\\.vms.memory\\[(.+),overheadConsumed\\]",
+    "^(?:\\s*ZBXD.)?.*esx\\.vms.memory\\[(.+),consumed\\]",
+    "^(?:\\s*ZBXD.)?.*esx\\.vms.memory\\[(.+),ballooned\\]",
+    "^(?:\\s*ZBXD.)?.*esx\\.vms.memory\\[(.+),active\\]",
+    "^(?:\\s*ZBXD.)?.*esx\\.counter\\.list\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*esx\\.counter\\[([^,]+),([^,]+)(?:,([^,]*))?(?:,([^,]*))?\\]",
+    "^(?:\\s*ZBXD.)?.*esx\\.counter\\.discovery\\[([^,]+),([^,]+)(?:,([^,]*))?\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.name\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.cpu\\.load\\[(.+),used\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.cpu\\.load\\[(.+),total\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.cpu\\.load\\[(.+),cores\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.memory\\[(.+),private\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.memory\\[(.+),shared\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.memory\\[(.+),swapped\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.memory\\[(.+),compressed\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.memory\\[(.+),overheadConsumed\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.memory\\[(.+),consumed\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.memory\\[(.+),ballooned\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.memory\\[(.+),active\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.memory\\[(.+),total\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.host\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.powerstate\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.folder\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.uptime\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.annotation\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.snapshot\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.storage\\.committed\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.storage\\.uncommitted\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.storage\\.unshared\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.guest\\.os\\.short\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.guest\\.os\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.guest\\.name\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.guest\\.disk\\.all\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.guest\\.disk\\.discovery\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.guest\\.disk\\.capacity\\[(.+),(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.guest\\.disk\\.free\\[(.+),(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.counter\\.list\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.counter\\[([^,]+),([^,]+)(?:,([^,]*))?(?:,([^,]*))?\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.counter\\.discovery\\[([^,]+),([^,]+)(?:,([^,]*))?\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.guest\\.ip\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.guest\\.tools\\.running\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.guest\\.tools\\.version\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.consolidation\\[(.+),needed\\]",
+    "^(?:\\s*ZBXD.)?.*vm\\.guest\\.tools\\.mounted\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*datastore\\.local\\[(.+)\\]",
+    "^(?:\\s*ZBXD.)?.*datastore\\.size\\[(.+),free\\]",
+    "^(?:\\s*ZBXD.)?.*datastore\\.size\\[(.+),total\\]",
+    "^(?:\\s*ZBXD.)?.*datastore\\.size\\[(.+),provisioned\\]",
+    "^(?:\\s*ZBXD.)?.*datastore\\.size\\[(.+),uncommitted\\]",
+  };
+
+  static final VmBix.ValidationResult OK = new VmBix.ValidationResult(0, "1");
+
+  @Param({ "ping", "vm.cpu.load[web-server-01,used]", "esx.vms.memory[esx01.example.com,private]", "vm.guest.disk.free[db01,/var/lib]" })
+  public String key;
+
+  private KeyRouter<Void> router;
+
+  @Setup
+  public void setup() {
+    router = new KeyRouter<Void>();
+    for (HandlerStats stats : VmBix.Connection.ROUTER.getStats()) {
+      router.add(stats.name, (target, params) -> OK);
+    }
+  }
+
+  /**
+   * Compiles and runs all the patterns, the last match wins
+   */
+  @Benchmark
+  public String regex() {
+    String found = null;
+    for (String regex : REGEXES) {
+      Matcher matcher = Pattern.compile(regex).matcher(key);
+      if (matcher.find()) {
+        found = matcher.group(1);
+      }
+    }
+    return found;
+  }
+
+  @Benchmark
+  public VmBix.ValidationResult router() throws IOException {
+    return router.route(null, key);
+  }
+}
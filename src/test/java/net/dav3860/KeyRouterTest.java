@@ -0,0 +1,160 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import org.junit.jupiter.api.Test;
+
+class KeyRouterTest {
+
+  /**
+   * Answers the route pattern followed by the parameters it received
+   */
+  static KeyRouter.Handler<Void> echo(String pattern) {
+    return (target, params) -> new VmBix.ValidationResult(0, pattern + " " + String.join("|", params));
+  }
+
+  static KeyRouter<Void> router(String... patterns) {
+    KeyRouter<Void> router = new KeyRouter<Void>();
+    for (String pattern : patterns) {
+      router.add(pattern, echo(pattern));
+    }
+    return router;
+  }
+
+  static String route(KeyRouter<Void> router, String key) throws IOException {
+    VmBix.ValidationResult result = router.route(null, key);
+    return result == null ? null : result.getMessage();
+  }
+
+  @Test
+  void plainName() throws IOException {
+    KeyRouter<Void> router = router("ping", "vm.discovery");
+    assertEquals("ping ", route(router, "ping"));
+    assertEquals("ping ", route(router, "  ping \n"));
+    assertEquals("vm.discovery ", route(router, "vm.discovery[]"));
+    assertNull(route(router, "pong"));
+  }
+
+  @Test
+  void literalParameters() throws IOException {
+    KeyRouter<Void> router = router("vmbix.stats[threads]", "vmbix.stats[*]");
+    assertEquals("vmbix.stats[threads] threads", route(router, "vmbix.stats[threads]"));
+    assertEquals("vmbix.stats[*] queue", route(router, "vmbix.stats[queue]"));
+  }
+
+  @Test
+  void anyParameters() throws IOException {
+    KeyRouter<Void> router = router("vm.name[*]");
+    assertEquals("vm.name[*] my vm", route(router, "vm.name[my vm]"));
+    assertEquals("vm.name[*] a,b", route(router, "vm.name[a,b]"));
+    assertNull(route(router, "vm.name[]"));
+    assertNull(route(router, "vm.name[unclosed"));
+  }
+
+  @Test
+  void lastParameterSelector() throws IOException {
+    KeyRouter<Void> router = router("vm.cpu.load[*,used]", "vm.cpu.load[*,total]");
+    assertEquals("vm.cpu.load[*,used] vm1", route(router, "vm.cpu.load[vm1,used]"));
+    assertEquals("vm.cpu.load[*,total] vm1", route(router, "vm.cpu.load[vm1,total]"));
+    // The object name may contain commas
+    assertEquals("vm.cpu.load[*,used] web,db", route(router, "vm.cpu.load[web,db,used]"));
+    assertNull(route(router, "vm.cpu.load[vm1,cores]"));
+    assertNull(route(router, "vm.cpu.load[,used]"));
+  }
+
+  @Test
+  void firstParameterSelector() throws IOException {
+    KeyRouter<Void> router = router("vmbix.stats[cachesize,*]");
+    assertEquals("vmbix.stats[cachesize,*] vm", route(router, "vmbix.stats[cachesize,vm]"));
+    assertEquals("vmbix.stats[cachesize,*] a,b", route(router, "vmbix.stats[cachesize,a,b]"));
+    assertNull(route(router, "vmbix.stats[cachesize,]"));
+    assertNull(route(router, "vmbix.stats[hitrate,vm]"));
+  }
+
+  @Test
+  void twoParameters() throws IOException {
+    KeyRouter<Void> router = router("vm.guest.disk.free[*,*]");
+    assertEquals("vm.guest.disk.free[*,*] vm1|C:\\", route(router, "vm.guest.disk.free[vm1,C:\\]"));
+    // Split at the last comma
+    assertEquals("vm.guest.disk.free[*,*] a,b|/var", route(router, "vm.guest.disk.free[a,b,/var]"));
+    assertNull(route(router, "vm.guest.disk.free[vm1,]"));
+    assertNull(route(router, "vm.guest.disk.free[vm1]"));
+  }
+
+  @Test
+  void selectorRoutesComeFirst() throws IOException {
+    KeyRouter<Void> router = router("vm.memory[*,private]", "vm.memory[*,*]", "vm.memory[*]");
+    assertEquals("vm.memory[*,private] vm1", route(router, "vm.memory[vm1,private]"));
+    assertEquals("vm.memory[*,*] vm1|shared", route(router, "vm.memory[vm1,shared]"));
+    assertEquals("vm.memory[*] vm1", route(router, "vm.memory[vm1]"));
+  }
+
+  @Test
+  void quotedParameters() throws IOException {
+    KeyRouter<Void> router = router("vm.cpu.load[*,used]", "vm.name[*]", "vmbix.stats[cachesize,*]", "vm.guest.disk.free[*,*]");
+    assertEquals("vm.name[*] my vm", route(router, "vm.name[\"my vm\"]"));
+    assertEquals("vm.name[*] a,b]", route(router, "vm.name[\"a,b]\"]"));
+    assertEquals("vm.name[*] say \"hi\"", route(router, "vm.name[\"say \\\"hi\\\"\"]"));
+    assertEquals("vm.cpu.load[*,used] web,db", route(router, "vm.cpu.load[\"web,db\",used]"));
+    assertEquals("vm.cpu.load[*,used] vm1", route(router, "vm.cpu.load[\"vm1\",\"used\"]"));
+    assertEquals("vmbix.stats[cachesize,*] vm", route(router, "vmbix.stats[\"cachesize\",vm]"));
+    // A quoted comma does not separate the parameters
+    assertEquals("vm.guest.disk.free[*,*] vm1|a,b", route(router, "vm.guest.disk.free[vm1,\"a,b\"]"));
+    assertEquals("vm.guest.disk.free[*,*] x,y|/", route(router, "vm.guest.disk.free[\"x,y\",/]"));
+  }
+
+  @Test
+  void splitsCounterParameters() {
+    assertArrayEquals(new String[] { "esx1", "cpu.usage.average", null, null }, KeyRouter.split("esx1,cpu.usage.average", 4));
+    assertArrayEquals(new String[] { "esx1", "cpu", "", "300" }, KeyRouter.split("esx1,cpu,,300", 4));
+    assertArrayEquals(new String[] { "esx,1", "cpu", "a,b" }, KeyRouter.split("\"esx,1\",cpu,a,b", 3));
+    assertArrayEquals(new String[] { "esx1", "net,rx", "vmnic0" }, KeyRouter.split("esx1,\"net,rx\",\"vmnic0\"", 3));
+  }
+
+  @Test
+  void unquotesOnlySingleQuotedParameters() {
+    assertEquals("a", KeyRouter.unquote(" \"a\" "));
+    assertEquals("\"a\",\"b\"", KeyRouter.unquote("\"a\",\"b\""));
+    assertEquals("plain", KeyRouter.unquote("plain"));
+    assertEquals("\"", KeyRouter.unquote("\""));
+  }
+
+  @Test
+  void recordsTheHandlerStats() throws IOException {
+    KeyRouter<Void> router = new KeyRouter<Void>()
+      .add("ok", (target, params) -> new VmBix.ValidationResult(0, "1"))
+      .add("failed", (target, params) -> new VmBix.ValidationResult(1, "error"))
+      .add("missing", (target, params) -> new VmBix.ValidationResult(2, "not found"))
+      .add("none", (target, params) -> null);
+    router.route(null, "ok");
+    router.route(null, "failed");
+    router.route(null, "missing");
+    router.route(null, "none");
+
+    assertEquals(1, router.getStats("ok").getCalls());
+    assertEquals(0, router.getStats("ok").getErrors());
+    assertEquals(1, router.getStats("failed").getErrors());
+    assertEquals(0, router.getStats("missing").getErrors());
+    assertEquals(0, router.getStats("none").getErrors());
+  }
+
+  @Test
+  void refusesDuplicateRoutes() {
+    assertThrows(IllegalArgumentException.class, () -> router("ping", "ping"));
+  }
+}
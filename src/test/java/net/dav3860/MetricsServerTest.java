@@ -0,0 +1,193 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import com.vmware.vim25.HostHardwareSummary;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.VirtualMachineQuickStats;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class MetricsServerTest {
+
+  /**
+   * Returns a number of VMs and one host, and fails on the type given
+   */
+  static class FakeRetriever extends PropertyRetriever {
+    final int vms;
+    final String failing;
+
+    FakeRetriever(int vms, String failing) {
+      super(null);
+      this.vms = vms;
+      this.failing = failing;
+    }
+
+    @Override
+    void retrieve(String type, String[] paths, Handler handler) throws IOException {
+      if (type.equals(failing)) {
+        throw new IOException("session lost");
+      }
+      if (type.equals("VirtualMachine")) {
+        for (int i = 0; i < vms; i++) {
+          VirtualMachineQuickStats qs = new VirtualMachineQuickStats();
+          qs.setOverallCpuUsage(120);
+          qs.setPrivateMemory(512);
+          Map<String, Object> props = new HashMap<String, Object>();
+          props.put("name", i == 0 ? "web \"prod\"\\a\nb" : "vm" + i);
+          props.put("config.uuid", "4201-" + i);
+          props.put("summary.quickStats", qs);
+          props.put("summary.config.memorySizeMB", 1024);
+          handler.handle(mor("VirtualMachine", "vm-" + i), props);
+        }
+      } else if (type.equals("HostSystem")) {
+        HostHardwareSummary hw = new HostHardwareSummary();
+        hw.setCpuMhz(2400);
+        hw.setNumCpuCores((short) 16);
+        hw.setMemorySize(68719476736L);
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put("name", "esx1");
+        props.put("summary.hardware", hw);
+        props.put("runtime.connectionState", "connected");
+        handler.handle(mor("HostSystem", "host-1"), props);
+      }
+    }
+  }
+
+  static ManagedObjectReference mor(String type, String val) {
+    ManagedObjectReference mor = new ManagedObjectReference();
+    mor.setType(type);
+    mor.setVal(val);
+    return mor;
+  }
+
+  MetricsServer server;
+
+  MetricsServer start(PropertyRetriever retriever) throws IOException {
+    server = new MetricsServer(new InetSocketAddress("127.0.0.1", 0)) {
+      @Override
+      PropertyRetriever retriever() {
+        return retriever;
+      }
+    };
+    server.start();
+    return server;
+  }
+
+  @AfterEach
+  void tearDown() {
+    if (server != null) {
+      server.stop();
+    }
+  }
+
+  HttpURLConnection scrape(String encoding) throws IOException {
+    URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/metrics");
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    if (encoding != null) {
+      connection.setRequestProperty("Accept-Encoding", encoding);
+    }
+    return connection;
+  }
+
+  static String read(InputStream in) throws IOException {
+    try (InputStream stream = in) {
+      return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+
+  @Test
+  void writesTheTextFormat() throws IOException {
+    start(new FakeRetriever(2, null));
+    HttpURLConnection connection = scrape(null);
+    assertEquals(200, connection.getResponseCode());
+    assertEquals(MetricsServer.CONTENT_TYPE, connection.getHeaderField("Content-Type"));
+    assertNull(connection.getHeaderField("Content-Encoding"));
+    String text = read(connection.getInputStream());
+
+    assertTrue(text.startsWith("# HELP vmbix_vm_cpu_used_mhz Zabbix item vm.cpu.load[*,used]\n"
+      + "# TYPE vmbix_vm_cpu_used_mhz gauge\n"));
+    assertTrue(text.contains("# HELP vmbix_vm_status Zabbix item vm.status[*] (0 grey, 1 green, 2 yellow, 3 red, 4 unknown)\n"));
+    assertTrue(text.contains("vmbix_vm_cpu_used_mhz{vm=\"vm1\",uuid=\"4201-1\",moref=\"vm-1\"} 120\n"));
+    assertTrue(text.contains("vmbix_vm_memory_size_mb{vm=\"vm1\",uuid=\"4201-1\",moref=\"vm-1\"} 1024\n"));
+    assertTrue(text.contains("vmbix_vm_powerstate{vm=\"vm1\",uuid=\"4201-1\",moref=\"vm-1\"} 3\n"));
+    assertTrue(text.contains("vmbix_esx_cpu_total_mhz{host=\"esx1\",moref=\"host-1\"} 2400\n"));
+    assertTrue(text.contains("vmbix_esx_memory_total_bytes{host=\"esx1\",moref=\"host-1\"} 68719476736\n"));
+    assertTrue(text.contains("vmbix_esx_connection{host=\"esx1\",moref=\"host-1\"} 0\n"));
+    // The values which are not set are left out
+    assertFalse(text.contains("vmbix_vm_memory_shared_mb{"));
+    assertFalse(text.contains("vmbix_esx_cpu_used_mhz{"));
+    assertTrue(text.endsWith("vmbix_scrape_success 1\n"));
+  }
+
+  @Test
+  void escapesTheLabelValues() throws IOException {
+    start(new FakeRetriever(1, null));
+    String text = read(scrape(null).getInputStream());
+    assertTrue(text.contains("vmbix_vm_cpu_used_mhz{vm=\"web \\\"prod\\\"\\\\a\\nb\",uuid=\"4201-0\",moref=\"vm-0\"} 120\n"));
+    assertEquals("a\\\\b \\\"c\\\" \\nd", MetricsServer.escape("a\\b \"c\" \nd"));
+    assertEquals("", MetricsServer.escape(null));
+  }
+
+  @Test
+  void compressesTheResponseWhenAsked() throws IOException {
+    start(new FakeRetriever(3000, null));
+    HttpURLConnection connection = scrape("gzip, deflate");
+    assertEquals(200, connection.getResponseCode());
+    assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+    String text = read(new GZIPInputStream(connection.getInputStream()));
+
+    assertTrue(text.contains("vmbix_vm_memory_private_mb{vm=\"vm2999\",uuid=\"4201-2999\",moref=\"vm-2999\"} 512\n"));
+    assertEquals(3000, text.split("\nvmbix_vm_cpu_used_mhz\\{", -1).length - 1);
+    assertTrue(text.endsWith("vmbix_scrape_success 1\n"));
+  }
+
+  @Test
+  void answersAnErrorBeforeTheFirstLines() throws IOException {
+    start(new FakeRetriever(1, "VirtualMachine"));
+    assertEquals(500, scrape(null).getResponseCode());
+  }
+
+  @Test
+  void reportsAnErrorAfterTheFirstLines() throws IOException {
+    // Enough VMs to send the first lines before the hosts are read
+    start(new FakeRetriever(3000, "HostSystem"));
+    HttpURLConnection connection = scrape(null);
+    assertEquals(200, connection.getResponseCode());
+    String text = read(connection.getInputStream());
+    assertTrue(text.contains("vmbix_vm_cpu_used_mhz{vm=\"vm2999\""));
+    assertFalse(text.contains("vmbix_esx_cpu_total_mhz{"));
+    assertTrue(text.endsWith("vmbix_scrape_success 0\n"));
+  }
+
+  @Test
+  void refusesOtherMethods() throws IOException {
+    start(new FakeRetriever(1, null));
+    HttpURLConnection connection = scrape(null);
+    connection.setRequestMethod("POST");
+    assertEquals(405, connection.getResponseCode());
+  }
+}
@@ -0,0 +1,83 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SessionPoolTest {
+
+  final Session primary = SessionTest.session(1);
+  Session previous;
+
+  @BeforeEach
+  void setUp() {
+    previous = VmBix.session.getAndSet(primary);
+  }
+
+  @AfterEach
+  void tearDown() {
+    VmBix.session.set(previous);
+  }
+
+  @Test
+  void givesUpWhenNoSessionIsFreed() {
+    // The primary session only, running one request at a time
+    SessionPool pool = new SessionPool(1, 1, 200);
+    assertSame(primary, pool.lease());
+
+    long start = System.currentTimeMillis();
+    assertNull(pool.lease());
+    assertTrue(System.currentTimeMillis() - start >= 200);
+    assertEquals(1, primary.getInFlightCount());
+
+    pool.release(primary);
+    assertSame(primary, pool.lease());
+    JsonObject stats = pool.getStats();
+    assertEquals(2, stats.get("leases").getAsInt());
+    assertEquals(1, stats.get("waits").getAsInt());
+    assertEquals(1, stats.get("timeouts").getAsInt());
+  }
+
+  @Test
+  void leasesTheNewSessionOnceTheOldOneIsRetired() {
+    SessionPool pool = new SessionPool(1, 2, 200);
+    Session old = pool.lease();
+    assertSame(primary, old);
+
+    Session next = SessionTest.session(2);
+    VmBix.session.set(next);
+    old.retire(false);
+    assertSame(next, pool.lease());
+    assertEquals(1, old.getInFlightCount());
+
+    pool.release(old);
+    assertTrue(old.isLoggedOut());
+    assertEquals(1, next.getInFlightCount());
+  }
+
+  @Test
+  void leasesWithoutLimit() {
+    SessionPool pool = new SessionPool(1, 0, 200);
+    for (int i = 0; i < 5; i++) {
+      assertSame(primary, pool.lease());
+    }
+    assertEquals(5, primary.getInFlightCount());
+  }
+}
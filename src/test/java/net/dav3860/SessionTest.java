@@ -0,0 +1,108 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import org.junit.jupiter.api.Test;
+
+class SessionTest {
+
+  static Session session(long epoch) {
+    // Without a service instance : the logout fails and is only logged
+    return new Session(null, null, null, "vc-1", epoch);
+  }
+
+  final Session first = session(1);
+  final Session second = session(2);
+  final AtomicReference<Session> holder = new AtomicReference<Session>(first);
+
+  /**
+   * Reads the holder, and runs the replacement right after the first read
+   */
+  Supplier<Session> replacedAfterRead(Runnable replacement) {
+    AtomicInteger reads = new AtomicInteger();
+    return () -> {
+      Session session = holder.get();
+      if (reads.incrementAndGet() == 1) {
+        replacement.run();
+      }
+      return session;
+    };
+  }
+
+  @Test
+  void acquiresTheNewSessionWhenRetiredBeforeTheAcquire() {
+    Session session = Session.acquire(replacedAfterRead(() -> {
+      holder.set(second);
+      first.retire(false);
+    }));
+
+    assertSame(second, session);
+    assertEquals(1, second.getInFlightCount());
+    assertEquals(0, first.getInFlightCount());
+    assertTrue(first.isLoggedOut());
+    assertFalse(second.isLoggedOut());
+  }
+
+  @Test
+  void acquiresTheNewSessionWhenReplacedBeforeTheAcquire() {
+    // The session is replaced but not retired yet
+    Session session = Session.acquire(replacedAfterRead(() -> holder.set(second)));
+
+    assertSame(second, session);
+    assertEquals(0, first.getInFlightCount());
+    first.retire(false);
+    assertTrue(first.isLoggedOut());
+  }
+
+  @Test
+  void keepsTheSessionRetiredAfterTheAcquire() {
+    Session session = Session.acquire(holder::get);
+    assertSame(first, session);
+
+    holder.set(second);
+    first.retire(false);
+    assertFalse(first.isLoggedOut());
+
+    first.release();
+    assertTrue(first.isLoggedOut());
+  }
+
+  @Test
+  void logsOutAnExpiredSessionAtOnce() {
+    Session session = Session.acquire(holder::get);
+    session.retire(true);
+    assertTrue(session.isLoggedOut());
+    assertFalse(session.acquireLive());
+    assertEquals(1, session.getInFlightCount());
+  }
+
+  @Test
+  void refusesToCountRequestsOnARetiredSession() {
+    assertTrue(first.tryAcquire(2));
+    first.retire(false);
+    assertFalse(first.tryAcquire(2));
+    assertFalse(first.acquireLive());
+    assertEquals(1, first.getInFlightCount());
+    assertFalse(first.isLoggedOut());
+
+    first.release();
+    assertTrue(first.isLoggedOut());
+  }
+}
@@ -0,0 +1,207 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsExchange;
+import com.sun.net.httpserver.HttpsServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SoapTransportTest {
+
+  static final String SOAP_ACTION = "urn:vim25/6.0";
+  static final String COOKIE = "vmware_soap_session=\"52a1\"; Path=/";
+
+  // The client ports and TLS sessions seen by the server
+  static final Set<Integer> ports = ConcurrentHashMap.newKeySet();
+  static final Set<String> tlsSessions = ConcurrentHashMap.newKeySet();
+
+  static HttpsServer server;
+  static SoapTransport transport;
+  static String large;
+
+  /**
+   * A vCenter stand-in on a self-signed certificate for "localhost",
+   * reached on 127.0.0.1 so that the host name does not match. It answers
+   * a fault with an HTTP 500, echoes the session cookie it received, and
+   * compresses the responses when asked to.
+   */
+  @BeforeAll
+  static void startServer(@TempDir Path dir) throws Exception {
+    Path keystore = dir.resolve("vcenter.p12");
+    Process keytool = new ProcessBuilder(
+      Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+      "-genkeypair", "-alias", "vcenter", "-keyalg", "RSA", "-keysize", "2048",
+      "-dname", "CN=localhost", "-validity", "1", "-storetype", "PKCS12",
+      "-keystore", keystore.toString(), "-storepass", "secret", "-keypass", "secret")
+      .redirectErrorStream(true).start();
+    keytool.getInputStream().readAllBytes();
+    assertEquals(0, keytool.waitFor());
+
+    KeyStore keys = KeyStore.getInstance("PKCS12");
+    try (InputStream in = new FileInputStream(keystore.toFile())) {
+      keys.load(in, "secret".toCharArray());
+    }
+    KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    factory.init(keys, "secret".toCharArray());
+    SSLContext ssl = SSLContext.getInstance("TLS");
+    ssl.init(factory.getKeyManagers(), null, null);
+
+    StringBuilder returnvals = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      returnvals.append("<returnval><obj type=\"VirtualMachine\">vm-").append(i).append("</obj></returnval>");
+    }
+    large = returnvals.toString();
+
+    server = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.setHttpsConfigurator(new HttpsConfigurator(ssl));
+    server.createContext("/sdk", exchange -> {
+      ports.add(exchange.getRemoteAddress().getPort());
+      tlsSessions.add(Base64.getEncoder().encodeToString(((HttpsExchange) exchange).getSSLSession().getId()));
+      String request = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+      int code = SOAP_ACTION.equals(exchange.getRequestHeaders().getFirst("SOAPAction")) ? 200 : 400;
+      String body;
+      if (request.contains("<Fault/>")) {
+        code = 500;
+        body = "<soapenv:Fault><faultstring>bad</faultstring></soapenv:Fault>";
+      } else if (request.contains("<Large/>")) {
+        body = large;
+      } else {
+        body = "<cookie>" + exchange.getRequestHeaders().getFirst("Cookie") + "</cookie>";
+      }
+      byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().add("Set-Cookie", COOKIE);
+      if ("gzip".equals(exchange.getRequestHeaders().getFirst("Accept-Encoding"))) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+          gzip.write(bytes);
+        }
+        bytes = compressed.toByteArray();
+        exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+      }
+      exchange.sendResponseHeaders(code, bytes.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(bytes);
+      }
+    });
+    server.start();
+
+    // Not installed : the handler factory can only be set once in a JVM
+    transport = new SoapTransport(5000);
+  }
+
+  @AfterAll
+  static void stopServer() {
+    server.stop(0);
+  }
+
+  /**
+   * Sends a SOAP call like the yavijava client does
+   */
+  static HttpURLConnection call(String body, String cookie) throws IOException {
+    URL url = new URL(null, "https://127.0.0.1:" + server.getAddress().getPort() + "/sdk", transport);
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setConnectTimeout(5000);
+    connection.setReadTimeout(10000);
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setDoInput(true);
+    connection.setRequestProperty("SOAPAction", SOAP_ACTION);
+    connection.setRequestProperty("Content-Type", "text/xml; charset=utf-8");
+    if (cookie != null) {
+      connection.setRequestProperty("Cookie", cookie);
+    }
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(body.getBytes(StandardCharsets.UTF_8));
+    }
+    return connection;
+  }
+
+  static String read(InputStream in) throws IOException {
+    try (InputStream stream = in) {
+      return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+
+  @Test
+  void replaysTheSessionCookie() throws IOException {
+    HttpURLConnection login = call("<Login/>", null);
+    assertEquals("<cookie>null</cookie>", read(login.getInputStream()));
+    String cookie = login.getHeaderField("Set-Cookie");
+    assertEquals(COOKIE, cookie);
+
+    HttpURLConnection next = call("<RetrieveProperties/>", cookie);
+    assertEquals("<cookie>" + COOKIE + "</cookie>", read(next.getInputStream()));
+  }
+
+  @Test
+  void returnsTheFaultOnTheErrorStream() throws IOException {
+    HttpURLConnection connection = call("<Fault/>", null);
+    assertEquals(500, connection.getResponseCode());
+    assertThrows(IOException.class, connection::getInputStream);
+    assertTrue(read(connection.getErrorStream()).contains("<faultstring>bad</faultstring>"));
+  }
+
+  @Test
+  void decodesCompressedResponses() throws IOException {
+    long received = SoapTransport.RECEIVED.get();
+    long decoded = SoapTransport.DECODED.get();
+    HttpURLConnection connection = call("<Large/>", null);
+    assertEquals(large, read(connection.getInputStream()));
+
+    long bytes = large.length();
+    assertEquals(bytes, SoapTransport.DECODED.get() - decoded);
+    assertTrue(SoapTransport.RECEIVED.get() - received < bytes / 5);
+  }
+
+  @Test
+  void reusesTheConnection() throws IOException {
+    // One call first, the other tests may have left no open connection
+    read(call("<Login/>", null).getInputStream());
+    ports.clear();
+    tlsSessions.clear();
+    for (int i = 0; i < 5; i++) {
+      HttpURLConnection connection = call(i == 2 ? "<Fault/>" : "<RetrieveProperties/>", null);
+      if (connection.getResponseCode() == 500) {
+        read(connection.getErrorStream());
+      } else {
+        read(connection.getInputStream());
+      }
+    }
+    assertEquals(1, ports.size());
+    assertEquals(1, tlsSessions.size());
+  }
+}
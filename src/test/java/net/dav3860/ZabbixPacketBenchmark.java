@@ -0,0 +1,95 @@
+/*
+  # VmBix - VMWare API communication daemon.
+  #
+  # Compares the response packet built as buffers for a gathering write
+  # with the former packet, copied into a payload array then into a packet
+  # array and decoded back into a String, for discovery payloads of about
+  # 1 KB and 5 MB. The compression of large responses is disabled.
+  #
+  #   mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+  #   java -cp target/test-classes:target/classes:$(cat target/cp.txt) \
+  #     org.openjdk.jmh.Main ZabbixPacketBenchmark
+  #
+  # Redistribution and use in source and binary forms, with or without
+  # modification, are permitted provided that the conditions stated in
+  # VmBix.java are met.
+  #
+  # Copyright (c) 2014 <dav3860chom@yahoo.fr>
+  # All rights reserved.
+*/
+
+package net.dav3860;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZabbixPacketBenchmark {
+
+  @Param({ "1024", "5242880" })
+  public int size;
+
+  private VmBix.ValidationResult result;
+
+  @Setup
+  public void setup() {
+    VmBix.compressThreshold = 0;
+    StringBuilder json = new StringBuilder("{\"data\":[");
+    for (int i = 0; json.length() < size - 64; i++) {
+      json.append(i == 0 ? "" : ",").append(String.format(
+        "{\"{#VIRTUALMACHINE}\":\"vm-%06d\",\"{#UUID}\":\"4210%028x\"}", i, i));
+    }
+    result = new VmBix.ValidationResult(0, json.append("]}").toString());
+  }
+
+  @Benchmark
+  public ByteBuffer[] gathering() {
+    return VmBix.Connection.makeZabbixPacket(result);
+  }
+
+  @Benchmark
+  public void copying(Blackhole blackhole) throws Exception {
+    byte[] data = result.message.getBytes();
+    byte[] err = new byte[] {};
+
+    byte[] payload = new byte[err.length + data.length];
+    System.arraycopy(err, 0, payload, 0, err.length);
+    System.arraycopy(data, 0, payload, err.length, data.length);
+
+    byte[] header = new byte[] {
+      'Z', 'B', 'X', 'D', '\1',
+      (byte) (payload.length & 0xFF),
+      (byte) ((payload.length >> 8) & 0xFF),
+      (byte) ((payload.length >> 16) & 0xFF),
+      (byte) ((payload.length >> 24) & 0xFF),
+      '\0', '\0', '\0', '\0'
+    };
+
+    byte[] packet = new byte[header.length + payload.length];
+    System.arraycopy(header, 0, packet, 0, header.length);
+    System.arraycopy(payload, 0, packet, header.length, payload.length);
+
+    // Decoded like the former sendZabbixPacket did
+    String s = new String(packet, StandardCharsets.UTF_8);
+    blackhole.consume(packet);
+    blackhole.consume(s);
+  }
+}